@@ -0,0 +1,49 @@
+#!/bin/sh
+#
+# Builds the benchmarks with plain javac and runs one of them on the JVM.
+#
+#   ./run.sh FramingAllocationBenchmark
+#   ./run.sh jmh [JMH options] [benchmark regexp]
+#   ./run.sh LoadHarness [options]
+#
+# The jars the benchmarks need are fetched from Maven Central into libs/ the
+# first time. Only the library classes a benchmark actually uses are compiled,
+# all of them from pubsub.io.core, which needs no Android.
+
+set -e
+cd "$(dirname "$0")"
+
+MAVEN=https://repo1.maven.org/maven2
+mkdir -p libs bin
+
+fetch() {
+	[ -f "libs/$2" ] || curl -sSfL -o "libs/$2" "$MAVEN/$1/$2"
+}
+
+fetch org/json/json/20231013 json-20231013.jar
+fetch org/openjdk/jmh/jmh-core/1.37 jmh-core-1.37.jar
+fetch org/openjdk/jmh/jmh-generator-annprocess/1.37 jmh-generator-annprocess-1.37.jar
+fetch net/sf/jopt-simple/jopt-simple/5.0.4 jopt-simple-5.0.4.jar
+fetch org/apache/commons/commons-math3/3.6.1 commons-math3-3.6.1.jar
+
+JMH_CP=libs/jmh-core-1.37.jar:libs/jopt-simple-5.0.4.jar:libs/commons-math3-3.6.1.jar
+BUILD_CP=libs/json-20231013.jar:$JMH_CP
+RUN_CP=bin:libs/json-20231013.jar:$JMH_CP
+
+rm -rf bin
+mkdir -p bin/generated
+javac -nowarn -encoding UTF-8 -d bin -s bin/generated -cp "$BUILD_CP" \
+	-processorpath libs/jmh-generator-annprocess-1.37.jar:$JMH_CP \
+	-sourcepath src:../src \
+	$(find src -name '*.java')
+
+BENCHMARK=$1
+shift
+if [ "$BENCHMARK" = jmh ]; then
+	exec java -cp "$RUN_CP" org.openjdk.jmh.Main "$@"
+fi
+# The ones that need the library's package private parts live in its package
+if [ -f "bin/pubsub/io/core/$BENCHMARK.class" ]; then
+	exec java -cp "$RUN_CP" pubsub.io.core.$BENCHMARK "$@"
+fi
+exec java -cp "$RUN_CP" pubsub.io.core.benchmark.$BENCHMARK "$@"
@@ -0,0 +1,196 @@
+/*
+ * pubsub.io Android Library
+ * Copyright (C) 2011  Andreas Göransson
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package pubsub.io.core;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import pubsub.io.core.benchmark.Docs;
+
+/**
+ * Time for the reader to handle a burst of messages that arrived in one read,
+ * scores are per burst:
+ *
+ * decode - FrameDecoder finding the frames, nothing else.
+ *
+ * process - decode, then PubsubClient.process() parsing every message and
+ * calling a listener on the reading thread (PubsubExecutors.CALLER).
+ *
+ * handoff - decode and process, with every doc handed to a listener on
+ * another thread, like the Handler of an app. Includes the thread switch, so
+ * it's the time until the last doc was handled.
+ *
+ * With the msgpack codec the messages come in binary frames and are handled
+ * by processBinary(), in PARSE_LAZY mode too.
+ *
+ * In the library package, process() is not public.
+ *
+ * Run with ./run.sh jmh InboundBenchmark
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class InboundBenchmark {
+
+	/** Subscription id of every message */
+	private static final int ID = 1;
+
+	/** Fields per doc, see Docs */
+	@Param({ "4", "32", "256" })
+	public int fields;
+
+	/** Messages per read */
+	@Param({ "1", "16", "256" })
+	public int burst;
+
+	/** PubsubClient.PARSE_FULL or PARSE_LAZY */
+	@Param({ "full", "lazy" })
+	public String parse;
+
+	/** Codec the messages are in, json or msgpack */
+	@Param({ "json", "msgpack" })
+	public String codec;
+
+	private byte[] mStream;
+	private FrameDecoder mDecoder;
+	private MessageScanner mScanner;
+
+	private PubsubClient mListenerClient;
+	private PubsubClient mHandoffClient;
+	private ExecutorService mHandoffThread;
+	private Semaphore mHandled;
+
+	/** Where the listener puts the docs, set by the benchmark */
+	private Blackhole mOut;
+
+	@Setup
+	public void setup() {
+		byte[] message = Docs.message(ID, Docs.json(fields));
+		Codec wire = Codec.JSON;
+		if (MessagePackCodec.NAME.equals(codec)) {
+			wire = new MessagePackCodec();
+			try {
+				message = wire.encode(message);
+			} catch (JSONException e) {
+				throw new RuntimeException(e);
+			}
+			FrameBuffer frames = new FrameBuffer();
+			for (int i = 0; i < burst; i++)
+				frames.appendBinaryFrame(message);
+			mStream = new byte[frames.length()];
+			System.arraycopy(frames.array(), 0, mStream, 0, mStream.length);
+		} else {
+			mStream = Docs.frames(message, burst);
+		}
+		mDecoder = new FrameDecoder();
+		mScanner = new MessageScanner();
+		int mode = "lazy".equals(parse) ? PubsubClient.PARSE_LAZY
+				: PubsubClient.PARSE_FULL;
+
+		mListenerClient = new PubsubClient(new PubsubClient.SimpleCallback());
+		mListenerClient.setParseMode(mode);
+		mListenerClient.mWireCodec = wire;
+		mListenerClient.addRoute(ID);
+		mListenerClient.addListener(new Delivery(ID, new PubsubListener() {
+			public void onDoc(int handle, JSONObject doc) {
+				mOut.consume(doc);
+			}
+		}, PubsubExecutors.CALLER));
+
+		mHandled = new Semaphore(0);
+		mHandoffThread = Executors.newSingleThreadExecutor();
+		mHandoffClient = new PubsubClient(new PubsubClient.SimpleCallback());
+		mHandoffClient.setParseMode(mode);
+		mHandoffClient.mWireCodec = wire;
+		mHandoffClient.addRoute(ID);
+		mHandoffClient.addListener(new Delivery(ID, new PubsubListener() {
+			public void onDoc(int handle, JSONObject doc) {
+				mHandled.release();
+			}
+		}, mHandoffThread));
+	}
+
+	@TearDown
+	public void tearDown() {
+		mHandoffThread.shutdown();
+	}
+
+	@Benchmark
+	public void decode(final Blackhole out) {
+		mDecoder.decode(mStream, 0, mStream.length,
+				new FrameDecoder.BinaryListener() {
+					public void onFrame(byte[] buffer, int offset, int length) {
+						out.consume(length);
+					}
+
+					public void onBinaryFrame(byte[] buffer, int offset, int length) {
+						out.consume(length);
+					}
+				});
+	}
+
+	@Benchmark
+	public void process(Blackhole out) {
+		mOut = out;
+		mDecoder.decode(mStream, 0, mStream.length, reader(mListenerClient));
+	}
+
+	@Benchmark
+	public void handoff() throws InterruptedException {
+		mDecoder.decode(mStream, 0, mStream.length, reader(mHandoffClient));
+		mHandled.acquire(burst);
+	}
+
+	/**
+	 * Hands the frames to client the way its reader does.
+	 */
+	private FrameDecoder.Listener reader(final PubsubClient client) {
+		return new FrameDecoder.BinaryListener() {
+			public void onFrame(byte[] buffer, int offset, int length) {
+				client.process(mScanner, buffer, offset, length, 0);
+			}
+
+			public void onBinaryFrame(byte[] buffer, int offset, int length) {
+				client.processBinary(buffer, offset, length, 0);
+			}
+		};
+	}
+}
@@ -0,0 +1,113 @@
+/*
+ * pubsub.io Android Library
+ * Copyright (C) 2011  Andreas Göransson
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package pubsub.io.core.benchmark;
+
+import java.io.UnsupportedEncodingException;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import pubsub.io.core.DocWriter;
+import pubsub.io.core.FrameBuffer;
+import pubsub.io.core.JsonWriter;
+
+/**
+ * The docs the benchmarks send, in the shape of a sensor reading: a sensor
+ * name followed by fields alternating between floats and short strings. About
+ * 60 bytes at 4 fields, 500 at 32 and 4K at 256.
+ */
+public class Docs {
+
+	private Docs() {
+	}
+
+	/**
+	 * @param fields
+	 *          Number of fields, the size of the doc
+	 */
+	public static JSONObject json(int fields) {
+		JSONObject doc = new JSONObject();
+		try {
+			doc.put("sensor", "accelerometer");
+			for (int i = 1; i < fields; i++) {
+				if (i % 2 == 1)
+					doc.put("v" + i, i * 0.123456f);
+				else
+					doc.put("v" + i, "value" + i);
+			}
+		} catch (JSONException e) {
+			throw new RuntimeException(e);
+		}
+		return doc;
+	}
+
+	/**
+	 * @param fields
+	 * @return Writes the same doc as json(fields), without a JSONObject
+	 */
+	public static DocWriter writer(final int fields) {
+		return new DocWriter() {
+			public void writeDoc(JsonWriter json) {
+				json.beginObject().name("sensor").value("accelerometer");
+				for (int i = 1; i < fields; i++) {
+					json.name("v" + i);
+					if (i % 2 == 1)
+						json.value(i * 0.123456f);
+					else
+						json.value("value" + i);
+				}
+				json.endObject();
+			}
+		};
+	}
+
+	/**
+	 * @param id
+	 * @param doc
+	 * @return The payload of the message the hub sends for doc, unframed
+	 */
+	public static byte[] message(int id, JSONObject doc) {
+		try {
+			JSONObject message = new JSONObject();
+			message.put("id", id);
+			message.put("doc", doc);
+			return message.toString().getBytes("UTF-8");
+		} catch (JSONException e) {
+			throw new RuntimeException(e);
+		} catch (UnsupportedEncodingException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * @param payload
+	 * @param count
+	 * @return count frames of payload back to back, as they'd be read
+	 */
+	public static byte[] frames(byte[] payload, int count) {
+		FrameBuffer frames = new FrameBuffer();
+		for (int i = 0; i < count; i++)
+			frames.appendFrame(payload);
+
+		byte[] stream = new byte[frames.length()];
+		System.arraycopy(frames.array(), 0, stream, 0, stream.length);
+		return stream;
+	}
+}
@@ -0,0 +1,83 @@
+/*
+ * pubsub.io Android Library
+ * Copyright (C) 2011  Andreas Göransson
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package pubsub.io.core.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import pubsub.io.core.DocWriter;
+import pubsub.io.core.PubsubParser;
+
+/**
+ * Time to build one publish message from a doc, with the JSONObject based
+ * PubsubParser.publish() and with the streaming encodePublish() fed by a
+ * JSONObject and by a DocWriter.
+ *
+ * Run with ./run.sh jmh EncodeBenchmark
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EncodeBenchmark {
+
+	/** Fields per doc, see Docs */
+	@Param({ "4", "32", "256" })
+	public int fields;
+
+	private JSONObject mDoc;
+	private DocWriter mWriter;
+
+	@Setup
+	public void setup() {
+		mDoc = Docs.json(fields);
+		mWriter = Docs.writer(fields);
+	}
+
+	@Benchmark
+	public byte[] publishString() throws JSONException {
+		return PubsubParser.publish(mDoc).getBytes();
+	}
+
+	@Benchmark
+	public byte[] encodeJSONObject() {
+		return PubsubParser.encodePublish(mDoc);
+	}
+
+	@Benchmark
+	public byte[] encodeDocWriter() {
+		return PubsubParser.encodePublish(mWriter);
+	}
+}
@@ -0,0 +1,376 @@
+/*
+ * pubsub.io Android Library
+ * Copyright (C) 2011  Andreas Göransson
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pubsub.io.core.benchmark;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import pubsub.io.core.DocWriter;
+import pubsub.io.core.FrameBuffer;
+import pubsub.io.core.JsonWriter;
+import pubsub.io.core.PubsubParser;
+
+/**
+ * Measures the bytes allocated per publish by the outgoing path, before and
+ * after framing into a reusable FrameBuffer. The "before" path is the old
+ * ConnectedThread.attachHeaderAndFooter, which allocated a new array for every
+ * message and copied the payload into it.
+ *
+ * Every path is measured twice: the framing alone (payload bytes already
+ * encoded) and the whole publish including PubsubParser. The whole publish is
+ * measured with the JSONObject based PubsubParser methods, with the streaming
+ * encode methods fed by a JSONObject and by a DocWriter, and with the doc
+ * encoded straight into the batch like the blocking writer does now. The
+ * encode methods copy the payload into an array of its own and the writer
+ * copies it again into the batch; encoded straight into the batch, the only
+ * copy is the one handed to Callback.onSent().
+ *
+ * Run with ./run.sh FramingAllocationBenchmark [iterations]
+ */
+public class FramingAllocationBenchmark {
+
+	/** Messages per batch handed to the writer */
+	private static final int BATCH = 32;
+
+	public static void main(String[] args) throws Exception {
+		int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+
+		JSONObject doc = new JSONObject();
+		doc.put("x", 0.123456f);
+		doc.put("y", 9.81f);
+		doc.put("z", -0.5f);
+		doc.put("sensor", "accelerometer");
+
+		byte[] payload = PubsubParser.publish(doc).getBytes("UTF-8");
+
+		System.out.println("payload: " + payload.length + " bytes, " + iterations
+				+ " publishes, batches of " + BATCH);
+		System.out.println();
+
+		Path[] paths = new Path[] { new LegacyFraming(payload),
+				new BufferFraming(payload), new LegacyPublish(doc),
+				new BufferPublish(doc), new StreamingPublish(doc),
+				new DocWriterPublish(), new BatchPublish(doc),
+				new BatchDocWriterPublish() };
+
+		// Warm up so the JIT has settled before we measure
+		for (Path path : paths)
+			path.run(iterations);
+
+		System.out.println(String.format("%-36s %14s %12s", "path",
+				"bytes/publish", "ns/publish"));
+		for (Path path : paths) {
+			long allocated = allocatedBytes();
+			long start = System.nanoTime();
+			path.run(iterations);
+			long elapsed = System.nanoTime() - start;
+			allocated = allocatedBytes() - allocated;
+
+			System.out.println(String.format("%-36s %14.1f %12.1f", path.name(),
+					(double) allocated / iterations, (double) elapsed / iterations));
+		}
+	}
+
+	/**
+	 * Bytes allocated by this thread so far, HotSpot only.
+	 */
+	private static long allocatedBytes() {
+		com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean) ManagementFactory
+				.getThreadMXBean();
+		return bean.getThreadAllocatedBytes(Thread.currentThread().getId());
+	}
+
+	private static abstract class Path {
+		/** Stands in for the socket */
+		final NullOutputStream mOut = new NullOutputStream();
+
+		abstract String name();
+
+		abstract void run(int iterations) throws Exception;
+	}
+
+	/** The old way: a new framed array per message, one write per message */
+	private static class LegacyFraming extends Path {
+		private final byte[] mPayload;
+
+		LegacyFraming(byte[] payload) {
+			mPayload = payload;
+		}
+
+		String name() {
+			return "framing, attachHeaderAndFooter";
+		}
+
+		void run(int iterations) throws IOException {
+			for (int i = 0; i < iterations; i++)
+				mOut.write(attachHeaderAndFooter(mPayload));
+		}
+	}
+
+	/** The new way: batches framed into one reused buffer */
+	private static class BufferFraming extends Path {
+		private final byte[] mPayload;
+		private final FrameBuffer mFrames = new FrameBuffer();
+
+		BufferFraming(byte[] payload) {
+			mPayload = payload;
+		}
+
+		String name() {
+			return "framing, FrameBuffer";
+		}
+
+		void run(int iterations) throws IOException {
+			for (int i = 0; i < iterations; i++) {
+				mFrames.appendFrame(mPayload);
+				if ((i + 1) % BATCH == 0) {
+					mOut.write(mFrames.array(), 0, mFrames.length());
+					mFrames.clear();
+				}
+			}
+			mFrames.clear();
+		}
+	}
+
+	/** Full publish, old framing */
+	private static class LegacyPublish extends Path {
+		private final JSONObject mDoc;
+
+		LegacyPublish(JSONObject doc) {
+			mDoc = doc;
+		}
+
+		String name() {
+			return "publish, attachHeaderAndFooter";
+		}
+
+		void run(int iterations) throws JSONException, IOException {
+			for (int i = 0; i < iterations; i++)
+				mOut.write(attachHeaderAndFooter(PubsubParser.publish(mDoc).getBytes()));
+		}
+	}
+
+	/** Full publish, new framing */
+	private static class BufferPublish extends Path {
+		private final JSONObject mDoc;
+		private final FrameBuffer mFrames = new FrameBuffer();
+		private final List<byte[]> mBatch = new ArrayList<byte[]>(BATCH);
+
+		BufferPublish(JSONObject doc) {
+			mDoc = doc;
+		}
+
+		String name() {
+			return "publish, FrameBuffer";
+		}
+
+		void run(int iterations) throws JSONException, IOException {
+			for (int i = 0; i < iterations; i++) {
+				mBatch.add(PubsubParser.publish(mDoc).getBytes());
+				if (mBatch.size() == BATCH)
+					flush(mBatch, mFrames, mOut);
+			}
+			mBatch.clear();
+		}
+	}
+
+	/** Full publish, JSONObject doc streamed by JsonWriter */
+	private static class StreamingPublish extends Path {
+		private final JSONObject mDoc;
+		private final FrameBuffer mFrames = new FrameBuffer();
+		private final List<byte[]> mBatch = new ArrayList<byte[]>(BATCH);
+
+		StreamingPublish(JSONObject doc) {
+			mDoc = doc;
+		}
+
+		String name() {
+			return "publish, encodePublish, JSONObject";
+		}
+
+		void run(int iterations) throws IOException {
+			for (int i = 0; i < iterations; i++) {
+				mBatch.add(PubsubParser.encodePublish(mDoc));
+				if (mBatch.size() == BATCH)
+					flush(mBatch, mFrames, mOut);
+			}
+			mBatch.clear();
+		}
+	}
+
+	/** Full publish, doc written by a DocWriter, no JSONObject at all */
+	private static class DocWriterPublish extends Path implements DocWriter {
+		private final FrameBuffer mFrames = new FrameBuffer();
+		private final List<byte[]> mBatch = new ArrayList<byte[]>(BATCH);
+
+		String name() {
+			return "publish, encodePublish, DocWriter";
+		}
+
+		public void writeDoc(JsonWriter json) {
+			json.beginObject().name("x").value(0.123456f).name("y").value(9.81f)
+					.name("z").value(-0.5f).name("sensor").value("accelerometer")
+					.endObject();
+		}
+
+		void run(int iterations) throws IOException {
+			for (int i = 0; i < iterations; i++) {
+				mBatch.add(PubsubParser.encodePublish(this));
+				if (mBatch.size() == BATCH)
+					flush(mBatch, mFrames, mOut);
+			}
+			mBatch.clear();
+		}
+	}
+
+	/** Full publish, JSONObject doc encoded straight into the batch */
+	private static class BatchPublish extends Path {
+		private final JSONObject mDoc;
+		private final FrameBuffer mFrames = new FrameBuffer();
+		private final JsonWriter mJson = new JsonWriter(mFrames);
+		private final List<byte[]> mSent = new ArrayList<byte[]>(BATCH);
+
+		BatchPublish(JSONObject doc) {
+			mDoc = doc;
+		}
+
+		String name() {
+			return "publish, into batch, JSONObject";
+		}
+
+		void run(int iterations) throws IOException {
+			for (int i = 0; i < iterations; i++) {
+				int start = beginPublish(mFrames, mJson);
+				PubsubParser.writePublish(mJson, mDoc);
+				mSent.add(endPublish(mFrames, start));
+				if (mSent.size() == BATCH)
+					writeBatch(mSent, mFrames, mOut);
+			}
+			mSent.clear();
+			mFrames.clear();
+		}
+	}
+
+	/** Full publish, doc written by a DocWriter straight into the batch */
+	private static class BatchDocWriterPublish extends Path {
+		private final DocWriter mDoc = new DocWriterPublish();
+		private final FrameBuffer mFrames = new FrameBuffer();
+		private final JsonWriter mJson = new JsonWriter(mFrames);
+		private final List<byte[]> mSent = new ArrayList<byte[]>(BATCH);
+
+		String name() {
+			return "publish, into batch, DocWriter";
+		}
+
+		void run(int iterations) throws IOException {
+			for (int i = 0; i < iterations; i++) {
+				int start = beginPublish(mFrames, mJson);
+				PubsubParser.writePublish(mJson, mDoc);
+				mSent.add(endPublish(mFrames, start));
+				if (mSent.size() == BATCH)
+					writeBatch(mSent, mFrames, mOut);
+			}
+			mSent.clear();
+			mFrames.clear();
+		}
+	}
+
+	/**
+	 * Start a publish in the batch, like BlockingTransport does.
+	 *
+	 * @return Where the payload starts
+	 */
+	private static int beginPublish(FrameBuffer frames, JsonWriter json) {
+		frames.beginFrame();
+		json.reset(frames);
+		return frames.length();
+	}
+
+	/**
+	 * Finish a publish in the batch, with the copy for Callback.onSent().
+	 */
+	private static byte[] endPublish(FrameBuffer frames, int start) {
+		byte[] message = new byte[frames.length() - start];
+		System.arraycopy(frames.array(), start, message, 0, message.length);
+		frames.endFrame();
+		return message;
+	}
+
+	/**
+	 * Write a batch that was framed as it was filled, and hand the messages to
+	 * the app like the writer thread does.
+	 */
+	private static void writeBatch(List<byte[]> sent, FrameBuffer frames,
+			NullOutputStream out) throws IOException {
+		out.write(frames.array(), 0, frames.length());
+		for (int j = 0; j < sent.size(); j++)
+			out.mChecksum += sent.get(j).length;
+		frames.clear();
+		sent.clear();
+	}
+
+	/**
+	 * Frame a batch into the buffer and write it, like the writer thread did
+	 * before the messages were framed as they were queued.
+	 */
+	private static void flush(List<byte[]> batch, FrameBuffer frames,
+			OutputStream out) throws IOException {
+		for (int j = 0; j < batch.size(); j++)
+			frames.appendFrame(batch.get(j));
+		out.write(frames.array(), 0, frames.length());
+		frames.clear();
+		batch.clear();
+	}
+
+	/**
+	 * The framing PubsubComm used before FrameBuffer, kept here as the baseline.
+	 */
+	private static byte[] attachHeaderAndFooter(byte[] buffer) {
+		byte[] sendbuffer = new byte[buffer.length + 2];
+		sendbuffer[0] = (byte) 0x000000;
+		for (int i = 1; i < sendbuffer.length - 1; i++)
+			sendbuffer[i] = buffer[i - 1];
+		sendbuffer[sendbuffer.length - 1] = (byte) 0xFFFFFD;
+		return sendbuffer;
+	}
+
+	/**
+	 * Swallows everything, but reads the bytes so the writes can't be
+	 * optimized away.
+	 */
+	private static class NullOutputStream extends OutputStream {
+		int mChecksum;
+
+		@Override
+		public void write(int b) {
+			mChecksum += b;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) {
+			mChecksum += b[off] + b[off + len - 1] + len;
+		}
+	}
+}
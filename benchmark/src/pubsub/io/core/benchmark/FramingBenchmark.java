@@ -0,0 +1,98 @@
+/*
+ * pubsub.io Android Library
+ * Copyright (C) 2011  Andreas Göransson
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package pubsub.io.core.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import pubsub.io.core.FrameBuffer;
+import pubsub.io.core.PubsubParser;
+
+/**
+ * Time to frame a burst of encoded messages for the socket: the old
+ * attachHeaderAndFooter, a new array and a write per message, against one
+ * FrameBuffer per burst written at once. Scores are per burst.
+ *
+ * Run with ./run.sh jmh FramingBenchmark
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FramingBenchmark {
+
+	/** Fields per doc, see Docs */
+	@Param({ "4", "32", "256" })
+	public int fields;
+
+	/** Messages per burst */
+	@Param({ "1", "16", "256" })
+	public int burst;
+
+	private byte[] mPayload;
+	private FrameBuffer mFrames;
+
+	@Setup
+	public void setup() {
+		mPayload = PubsubParser.encodePublish(Docs.json(fields));
+		mFrames = new FrameBuffer();
+	}
+
+	@Benchmark
+	public void attachHeaderAndFooter(Blackhole out) {
+		for (int i = 0; i < burst; i++)
+			out.consume(attachHeaderAndFooter(mPayload));
+	}
+
+	@Benchmark
+	public void frameBuffer(Blackhole out) {
+		for (int i = 0; i < burst; i++)
+			mFrames.appendFrame(mPayload);
+		out.consume(mFrames.array());
+		out.consume(mFrames.length());
+		mFrames.clear();
+	}
+
+	/**
+	 * The framing PubsubComm used before FrameBuffer, kept here as the baseline.
+	 */
+	private static byte[] attachHeaderAndFooter(byte[] buffer) {
+		byte[] sendbuffer = new byte[buffer.length + 2];
+		sendbuffer[0] = (byte) 0x000000;
+		for (int i = 1; i < sendbuffer.length - 1; i++)
+			sendbuffer[i] = buffer[i - 1];
+		sendbuffer[sendbuffer.length - 1] = (byte) 0xFFFFFD;
+		return sendbuffer;
+	}
+}
@@ -0,0 +1,517 @@
+/*
+ * pubsub.io Android Library
+ * Copyright (C) 2011  Andreas Göransson
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package pubsub.io.core.benchmark;
+
+import java.io.BufferedReader;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import pubsub.io.core.BufferPool;
+import pubsub.io.core.Compression;
+import pubsub.io.core.DocWriter;
+import pubsub.io.core.HistogramMetrics;
+import pubsub.io.core.JsonWriter;
+import pubsub.io.core.LatencyHistogram;
+import pubsub.io.core.LocalHub;
+import pubsub.io.core.MessagePackCodec;
+import pubsub.io.core.MetricsSink;
+import pubsub.io.core.PubsubClient;
+import pubsub.io.core.PubsubExecutors;
+import pubsub.io.core.PubsubListener;
+import pubsub.io.core.PubsubSelector;
+import pubsub.io.core.ThreadScheduler;
+
+/**
+ * Starts many clients against a hub, has them publish and subscribe at a
+ * steady rate for a while, and reports what came of it as JSON: docs per
+ * second, end to end latency, reconnects, and heap, memory, threads and GC per
+ * client.
+ * Keep the output to compare later runs against.
+ *
+ * Every client gets a role from the mix, in turn: "pub" only publishes, "sub"
+ * only subscribes and "pubsub" does both. Subscribers subscribe to one topic
+ * each, publishers spread their docs over all topics, so with 100 subscribers
+ * and 10 topics every doc goes to 10 of them. The latency is measured from
+ * the publish to the listener, which is called on the reading thread.
+ *
+ * Without --hub a LocalHub is started in the process, which then shares the
+ * heap, threads and CPU with the clients. To measure the clients alone, run
+ * the hub in another process with --serve and point --hub at it:
+ *
+ * <pre>
+ * ./run.sh LoadHarness --serve 10547 &amp;
+ * ./run.sh LoadHarness --hub localhost:10547 --transport virtual --clients 10000
+ * </pre>
+ *
+ * Threads are the platform threads of the process, memory is its resident
+ * set where the system tells, which also counts thread stacks outside the
+ * heap.
+ *
+ * Run with ./run.sh LoadHarness [options], for example
+ *
+ * <pre>
+ * ./run.sh LoadHarness --clients 500 --mix pub,sub,sub,sub --rate 20 --duration 300
+ * </pre>
+ *
+ * Options, with their defaults:
+ *
+ * <pre>
+ * --clients 100        number of clients
+ * --mix pubsub         roles, comma separated, handed out to the clients in turn
+ * --topics 1           topics the subscribers are spread over
+ * --rate 10            docs published per second by every publisher
+ * --fields 4           size of the docs, see Docs
+ * --duration 30        seconds measured
+ * --warmup 5           seconds run before measuring
+ * --transport nio      blocking, virtual or nio, virtual is blocking on
+ *                      PubsubExecutors.virtualThreads()
+ * --codec json         json or msgpack, see PubsubClient.setCodec()
+ * --deflate none       none, wifi or mobile, the Compression level asked for
+ * --hub host:port      a hub to use instead of a LocalHub
+ * --sub load           the sub everyone uses
+ * --latency 0          LocalHub latency, milliseconds
+ * --throughput 0       LocalHub bytes per second per client, 0 for no cap
+ * --output file        write the report here too
+ * --serve port         only run a LocalHub on the port, until killed
+ * </pre>
+ */
+public class LoadHarness {
+
+	/** Time between rounds of publishes */
+	private static final long TICK_MILLIS = 10;
+
+	private static final long CONNECT_TIMEOUT_MILLIS = 60 * 1000;
+
+	// Options
+	private int mClientCount = 100;
+	private String[] mMix = { "pubsub" };
+	private int mTopics = 1;
+	private double mRate = 10;
+	private int mFields = 4;
+	private int mDuration = 30;
+	private int mWarmup = 5;
+	private String mTransport = "nio";
+	private String mCodec = "json";
+	private String mDeflate = "none";
+	private String mHub;
+	private String mSub = "load";
+	private long mLatency;
+	private long mThroughput;
+	private String mOutput;
+	private int mServe;
+
+	private final List<Client> mClients = new ArrayList<Client>();
+
+	/** Publish to listener, in microseconds */
+	private final LatencyHistogram mLatencyHistogram = new LatencyHistogram();
+	private final HistogramMetrics mMetrics = new HistogramMetrics();
+	private final AtomicLong mPublished = new AtomicLong();
+	private final AtomicLong mReceived = new AtomicLong();
+
+	/** Measurements are kept while this is set */
+	private volatile boolean mMeasuring;
+
+	public static void main(String[] args) throws Exception {
+		LoadHarness harness = new LoadHarness();
+		harness.parse(args);
+		if (harness.mServe != 0) {
+			harness.serve();
+			return;
+		}
+		JSONObject report = harness.run();
+
+		String json = report.toString(2);
+		System.out.println(json);
+		if (harness.mOutput != null) {
+			Writer out = new OutputStreamWriter(
+					new FileOutputStream(harness.mOutput), "UTF-8");
+			out.write(json);
+			out.write('\n');
+			out.close();
+		}
+		System.exit(0);
+	}
+
+	private void parse(String[] args) {
+		for (int i = 0; i + 1 < args.length; i += 2) {
+			String name = args[i];
+			String value = args[i + 1];
+			if (name.equals("--clients"))
+				mClientCount = Integer.parseInt(value);
+			else if (name.equals("--mix"))
+				mMix = value.split(",");
+			else if (name.equals("--topics"))
+				mTopics = Integer.parseInt(value);
+			else if (name.equals("--rate"))
+				mRate = Double.parseDouble(value);
+			else if (name.equals("--fields"))
+				mFields = Integer.parseInt(value);
+			else if (name.equals("--duration"))
+				mDuration = Integer.parseInt(value);
+			else if (name.equals("--warmup"))
+				mWarmup = Integer.parseInt(value);
+			else if (name.equals("--transport"))
+				mTransport = value;
+			else if (name.equals("--codec"))
+				mCodec = value;
+			else if (name.equals("--deflate"))
+				mDeflate = value;
+			else if (name.equals("--hub"))
+				mHub = value;
+			else if (name.equals("--sub"))
+				mSub = value;
+			else if (name.equals("--latency"))
+				mLatency = Long.parseLong(value);
+			else if (name.equals("--throughput"))
+				mThroughput = Long.parseLong(value);
+			else if (name.equals("--output"))
+				mOutput = value;
+			else if (name.equals("--serve"))
+				mServe = Integer.parseInt(value);
+			else
+				throw new IllegalArgumentException("Unknown option " + name);
+		}
+		if (args.length % 2 != 0)
+			throw new IllegalArgumentException("No value for " + args[args.length - 1]);
+	}
+
+	private void serve() throws Exception {
+		LocalHub localHub = new LocalHub(mServe);
+		localHub.setLatency(mLatency);
+		localHub.setThroughput(mThroughput);
+		System.out.println("LocalHub on port " + localHub.getPort());
+		while (true)
+			Thread.sleep(Long.MAX_VALUE);
+	}
+
+	private JSONObject run() throws Exception {
+		LocalHub localHub = null;
+		String host;
+		int port;
+		if (mHub == null) {
+			localHub = new LocalHub();
+			localHub.setLatency(mLatency);
+			localHub.setThroughput(mThroughput);
+			host = "localhost";
+			port = localHub.getPort();
+		} else {
+			int colon = mHub.lastIndexOf(':');
+			host = mHub.substring(0, colon);
+			port = Integer.parseInt(mHub.substring(colon + 1));
+		}
+
+		long heapBefore = usedHeap();
+		long rssBefore = residentSet();
+		int threadsBefore = platformThreads();
+
+		// Connect everyone, then subscribe
+		for (int i = 0; i < mClientCount; i++) {
+			Client client = new Client(i, mMix[i % mMix.length]);
+			mClients.add(client);
+			client.mClient.connect(host, Integer.toString(port), mSub);
+		}
+		long deadline = System.currentTimeMillis() + CONNECT_TIMEOUT_MILLIS;
+		for (Client client : mClients) {
+			while (client.mClient.getState() != PubsubClient.STATE_CONNECTED) {
+				if (System.currentTimeMillis() > deadline)
+					throw new IllegalStateException("Client " + client.mId
+							+ " didn't connect");
+				Thread.sleep(10);
+			}
+			client.subscribe();
+		}
+
+		Publisher publisher = new Publisher();
+		publisher.start();
+
+		Thread.sleep(mWarmup * 1000L);
+		mMetrics.reset();
+		long gcCount = gcCount();
+		long gcMillis = gcMillis();
+		long start = System.nanoTime();
+		mMeasuring = true;
+
+		Thread.sleep(mDuration * 1000L);
+
+		mMeasuring = false;
+		double seconds = (System.nanoTime() - start) / 1e9;
+		gcCount = gcCount() - gcCount;
+		gcMillis = gcMillis() - gcMillis;
+		int threads = platformThreads() - threadsBefore;
+		publisher.cancel();
+
+		// Heap still held by the clients, while they're connected
+		long heap = usedHeap() - heapBefore;
+		long rss = rssBefore < 0 ? -1 : residentSet() - rssBefore;
+
+		for (Client client : mClients)
+			client.mClient.stop();
+		if (localHub != null)
+			localHub.close();
+
+		return report(seconds, heap, rss, threads, gcCount, gcMillis, localHub);
+	}
+
+	private JSONObject report(double seconds, long heap, long rss, int threads,
+			long gcCount, long gcMillis, LocalHub localHub) throws JSONException {
+		JSONObject config = new JSONObject();
+		config.put("clients", mClientCount);
+		config.put("mix", join(mMix));
+		config.put("topics", mTopics);
+		config.put("rate", mRate);
+		config.put("fields", mFields);
+		config.put("duration_s", mDuration);
+		config.put("warmup_s", mWarmup);
+		config.put("transport", mTransport);
+		config.put("codec", mCodec);
+		config.put("deflate", mDeflate);
+		config.put("hub", mHub != null ? mHub : "local");
+		config.put("latency_ms", mLatency);
+		config.put("throughput", mThroughput);
+
+		LatencyHistogram latency = mLatencyHistogram.copy();
+		JSONObject latencyJson = new JSONObject();
+		latencyJson.put("n", latency.getCount());
+		latencyJson.put("p50", latency.getPercentile(50));
+		latencyJson.put("p99", latency.getPercentile(99));
+		latencyJson.put("p999", latency.getPercentile(99.9));
+		latencyJson.put("max", latency.getMax());
+		latencyJson.put("mean", latency.getMean());
+
+		JSONObject perClient = new JSONObject();
+		perClient.put("heap_bytes", heap / mClientCount);
+		if (rss >= 0)
+			perClient.put("rss_bytes", rss / mClientCount);
+		perClient.put("threads", (double) threads / mClientCount);
+		perClient.put("gc_count", (double) gcCount / mClientCount);
+		perClient.put("gc_ms", (double) gcMillis / mClientCount);
+
+		JSONObject report = new JSONObject();
+		report.put("config", config);
+		report.put("seconds", seconds);
+		report.put("published", mPublished.get());
+		report.put("received", mReceived.get());
+		report.put("published_per_s", mPublished.get() / seconds);
+		report.put("received_per_s", mReceived.get() / seconds);
+		report.put("latency_us", latencyJson);
+		report.put("reconnects", mMetrics.getCount(MetricsSink.RECONNECTS));
+		report.put("heap_bytes", heap);
+		report.put("rss_bytes", rss);
+		report.put("threads", threads);
+		report.put("gc_count", gcCount);
+		report.put("gc_ms", gcMillis);
+		report.put("per_client", perClient);
+		if (localHub != null)
+			report.put("hub_dropped", localHub.getDropped());
+		report.put("metrics", mMetrics.toJSON());
+		return report;
+	}
+
+	/**
+	 * One client, with its own connection.
+	 */
+	private class Client implements PubsubListener {
+		final int mId;
+		final boolean mPublishes;
+		final boolean mSubscribes;
+		final PubsubClient mClient;
+
+		/** Docs published so far, to keep to the rate */
+		long mSent;
+
+		Client(int id, String role) throws Exception {
+			mId = id;
+			mPublishes = role.startsWith("pub");
+			mSubscribes = role.endsWith("sub");
+			if (!mPublishes && !mSubscribes)
+				throw new IllegalArgumentException("Unknown role " + role);
+
+			PubsubClient.Callback callback = new PubsubClient.SimpleCallback();
+			if ("nio".equals(mTransport)) {
+				mClient = new PubsubClient(callback, ThreadScheduler.getDefault(),
+						PubsubSelector.getDefault(), BufferPool.getDefault());
+			} else {
+				mClient = new PubsubClient(callback);
+				if ("virtual".equals(mTransport)) {
+					Executor virtual = PubsubExecutors.virtualThreads();
+					if (virtual == null)
+						throw new IllegalStateException(
+								"No virtual threads in this VM, use Java 21 or later");
+					mClient.setConnectionExecutor(virtual);
+				}
+			}
+			mClient.setReconnect(500, 10 * 1000, 0.5);
+			mClient.setMetrics(mMetrics);
+			if (MessagePackCodec.NAME.equals(mCodec))
+				mClient.setCodec(new MessagePackCodec());
+			if (!"none".equals(mDeflate)) {
+				Compression compression = new Compression();
+				compression.setLevel("wifi".equals(mDeflate) ? Compression.LEVEL_WIFI
+						: Compression.LEVEL_MOBILE);
+				mClient.setCompression(compression);
+			}
+		}
+
+		void subscribe() throws JSONException {
+			if (!mSubscribes)
+				return;
+
+			JSONObject filter = new JSONObject();
+			filter.put("topic", mId % mTopics);
+			mClient.subscribe(filter, this, PubsubExecutors.CALLER);
+		}
+
+		public void onDoc(int handle, JSONObject doc) {
+			long now = System.nanoTime();
+			if (!mMeasuring)
+				return;
+
+			mReceived.incrementAndGet();
+			mLatencyHistogram.record((now - doc.optLong("t")) / 1000);
+		}
+
+		void publish(final int topic) {
+			mClient.publish(new DocWriter() {
+				public void writeDoc(JsonWriter json) {
+					json.beginObject().name("topic").value(topic).name("from")
+							.value(mId).name("t").value(System.nanoTime());
+					for (int i = 3; i < mFields; i++)
+						json.name("v" + i).value(i * 0.123456f);
+					json.endObject();
+				}
+			});
+			if (mMeasuring)
+				mPublished.incrementAndGet();
+		}
+	}
+
+	/**
+	 * Publishes for every publisher, keeping each to the rate.
+	 */
+	private class Publisher extends Thread {
+		private volatile boolean mRunning = true;
+
+		Publisher() {
+			super("LoadHarness publisher");
+			setDaemon(true);
+		}
+
+		void cancel() {
+			mRunning = false;
+			interrupt();
+		}
+
+		@Override
+		public void run() {
+			long start = System.nanoTime();
+			int topic = 0;
+			while (mRunning) {
+				double due = (System.nanoTime() - start) / 1e9 * mRate;
+				for (Client client : mClients) {
+					if (!client.mPublishes)
+						continue;
+					for (; client.mSent < due; client.mSent++)
+						client.publish(topic++ % mTopics);
+				}
+
+				try {
+					Thread.sleep(TICK_MILLIS);
+				} catch (InterruptedException e) {
+					return;
+				}
+			}
+		}
+	}
+
+	private static long usedHeap() throws InterruptedException {
+		Runtime runtime = Runtime.getRuntime();
+		for (int i = 0; i < 3; i++) {
+			System.gc();
+			Thread.sleep(100);
+		}
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+
+	/** Live platform threads, virtual threads aren't counted */
+	private static int platformThreads() {
+		return ManagementFactory.getThreadMXBean().getThreadCount();
+	}
+
+	/** Resident set of the process in bytes, or -1 where not known */
+	private static long residentSet() {
+		try {
+			BufferedReader in = new BufferedReader(new FileReader(
+					"/proc/self/status"));
+			try {
+				String line;
+				while ((line = in.readLine()) != null) {
+					// VmRSS:	  123456 kB
+					if (line.startsWith("VmRSS:")) {
+						String kilobytes = line.substring(6).trim().split("\\s+")[0];
+						return Long.parseLong(kilobytes) * 1024;
+					}
+				}
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			// Not on Linux
+		}
+		return -1;
+	}
+
+	private static long gcCount() {
+		long count = 0;
+		for (GarbageCollectorMXBean gc : ManagementFactory
+				.getGarbageCollectorMXBeans())
+			count += Math.max(0, gc.getCollectionCount());
+		return count;
+	}
+
+	private static long gcMillis() {
+		long millis = 0;
+		for (GarbageCollectorMXBean gc : ManagementFactory
+				.getGarbageCollectorMXBeans())
+			millis += Math.max(0, gc.getCollectionTime());
+		return millis;
+	}
+
+	private static String join(String[] values) {
+		StringBuilder joined = new StringBuilder();
+		for (int i = 0; i < values.length; i++) {
+			if (i > 0)
+				joined.append(',');
+			joined.append(values[i]);
+		}
+		return joined.toString();
+	}
+}
@@ -0,0 +1,125 @@
+/*
+ * pubsub.io Android Library
+ * Copyright (C) 2011  Andreas Göransson
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package pubsub.io.core.benchmark;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import pubsub.io.core.BufferPool;
+import pubsub.io.core.LocalHub;
+import pubsub.io.core.PubsubClient;
+import pubsub.io.core.PubsubExecutors;
+import pubsub.io.core.PubsubListener;
+import pubsub.io.core.PubsubParser;
+import pubsub.io.core.PubsubSelector;
+import pubsub.io.core.ThreadScheduler;
+
+/**
+ * Time from publishing a burst of docs until all of them came back from a
+ * LocalHub on localhost to a listener subscribed to them, over the
+ * blocking and the NIO transport. Scores are per burst.
+ *
+ * Run with ./run.sh jmh LoopbackBenchmark
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LoopbackBenchmark {
+
+	/** Time to connect and subscribe before giving up */
+	private static final long SETUP_TIMEOUT_MILLIS = 10 * 1000;
+
+	@Param({ "blocking", "nio" })
+	public String transport;
+
+	/** Fields per doc, see Docs */
+	@Param({ "4", "32", "256" })
+	public int fields;
+
+	/** Docs published before waiting for them to come back */
+	@Param({ "1", "16", "256" })
+	public int burst;
+
+	private LocalHub mHub;
+	private PubsubClient mClient;
+	private JSONObject mDoc;
+	private Semaphore mReceived;
+
+	@Setup
+	public void setup() throws Exception {
+		mHub = new LocalHub();
+		mDoc = Docs.json(fields);
+		mReceived = new Semaphore(0);
+
+		PubsubClient.Callback callback = new PubsubClient.SimpleCallback();
+		mClient = "nio".equals(transport) ? new PubsubClient(callback,
+				ThreadScheduler.getDefault(), PubsubSelector.getDefault(),
+				BufferPool.getDefault()) : new PubsubClient(callback);
+		mClient.connect("localhost", Integer.toString(mHub.getPort()), "loopback");
+
+		long deadline = System.currentTimeMillis() + SETUP_TIMEOUT_MILLIS;
+		while (mClient.getState() != PubsubClient.STATE_CONNECTED) {
+			if (System.currentTimeMillis() > deadline)
+				throw new IllegalStateException("Not connected to the hub");
+			Thread.sleep(10);
+		}
+
+		mClient.subscribe(new JSONObject(), new PubsubListener() {
+			public void onDoc(int handle, JSONObject doc) {
+				mReceived.release();
+			}
+		}, PubsubExecutors.CALLER);
+
+		// The first doc back means the subscription is in place
+		mClient.write(PubsubParser.encodePublish(mDoc));
+		if (!mReceived.tryAcquire(SETUP_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS))
+			throw new IllegalStateException("Nothing came back from the hub");
+	}
+
+	@TearDown
+	public void tearDown() throws Exception {
+		mClient.stop();
+		mHub.close();
+	}
+
+	@Benchmark
+	public void publishAndReceive() throws InterruptedException {
+		for (int i = 0; i < burst; i++)
+			mClient.write(PubsubParser.encodePublish(mDoc));
+		mReceived.acquire(burst);
+	}
+}
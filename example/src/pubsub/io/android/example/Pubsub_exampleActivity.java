@@ -24,6 +24,7 @@ import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import pubsub.io.android.ConflatingPublisher;
 import pubsub.io.android.Pubsub;
 import android.app.Activity;
 import android.content.ComponentName;
@@ -74,6 +75,9 @@ public class Pubsub_exampleActivity extends Activity implements
 	// Pubsub object
 	private Pubsub mPubsub;
 
+	// Sends at most 5 sensor readings a second per sensor, the latest ones
+	private ConflatingPublisher mSensorPublisher;
+
 	private SensorManager mSensorManager;
 	private Sensor mAccelerometer;
 
@@ -91,11 +95,13 @@ public class Pubsub_exampleActivity extends Activity implements
 		super.onCreate(savedInstanceState);
 		setContentView(R.layout.main);
 
-		timer = System.currentTimeMillis();
-
 		mPubsub = new Pubsub(this, mHandler);
+		// Come back by itself after 1s, 2s, 4s... (at most a minute), jittered
+		mPubsub.setReconnect(1000, 60 * 1000, 1.0);
 		mPubsub.connect("android");
 
+		mSensorPublisher = new ConflatingPublisher(mPubsub, "sensor", 5);
+
 		// Sensors
 		mSensorManager = (SensorManager) getSystemService(SENSOR_SERVICE);
 		mAccelerometer = mSensorManager.getDefaultSensor(Sensor.TYPE_ACCELEROMETER);
@@ -200,8 +206,7 @@ public class Pubsub_exampleActivity extends Activity implements
 				break;
 
 			case Pubsub.CONNECTION_LOST:
-				// Connection lost, what to do?
-				mPubsub.reconnect();
+				// Connection lost, Pubsub reconnects by itself
 				break;
 
 			case Pubsub.SUBSCRIBES:
@@ -249,12 +254,12 @@ public class Pubsub_exampleActivity extends Activity implements
 
 	@Override
 	public void onSensorChanged(SensorEvent event) {
-		// We're just making sure that
-		if (publishing_acc && time_to_publish(200)) {
+		if (publishing_acc) {
 			float[] vals = event.values;
 
 			JSONObject doc = new JSONObject();
 			try {
+				doc.put("sensor", "accelerometer");
 				doc.put("x", vals[0]);
 				doc.put("y", vals[1]);
 				doc.put("z", vals[2]);
@@ -263,26 +268,26 @@ public class Pubsub_exampleActivity extends Activity implements
 				e.printStackTrace();
 			}
 
-			mPubsub.publish(doc);
+			mSensorPublisher.publish(doc);
 		}
 	}
 
 	@Override
 	public void onLocationChanged(Location location) {
-		// We're just making sure that
-		if (publishing_gps && time_to_publish(200)) {
+		if (publishing_gps) {
 			double lat = location.getLatitude();
 			double lon = location.getLongitude();
 
 			JSONObject doc = new JSONObject();
 			try {
+				doc.put("sensor", "gps");
 				doc.put("lat", lat);
 				doc.put("lon", lon);
 			} catch (JSONException e) {
 				e.printStackTrace();
 			}
 
-			mPubsub.publish(doc);
+			mSensorPublisher.publish(doc);
 		}
 	}
 
@@ -297,24 +302,4 @@ public class Pubsub_exampleActivity extends Activity implements
 	@Override
 	public void onStatusChanged(String provider, int status, Bundle extras) {
 	}
-
-	/** Contains the last known time for publish */
-	private long timer = 0;
-
-	/**
-	 * Determines if it's time to publish another value to the stream.
-	 * 
-	 * @param delay
-	 * @return
-	 */
-	private boolean time_to_publish(long delay) {
-		long currenttime = System.currentTimeMillis();
-
-		boolean timetopublish = (currenttime - timer > delay ? true : false);
-
-		if (timetopublish)
-			timer = currenttime;
-
-		return timetopublish;
-	}
-}
\ No newline at end of file
+}
@@ -0,0 +1,36 @@
+/*
+ * pubsub.io Android Library
+ * Copyright (C) 2011  Andreas Göransson
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pubsub.io.android;
+
+import pubsub.io.core.PubsubLog;
+import android.util.Log;
+
+/**
+ * Sends what the core logs to android.util.Log, see PubsubLog.setSink().
+ */
+class AndroidLog implements PubsubLog.Sink {
+
+	public void log(int priority, String tag, String message, Throwable tr) {
+		// Log.println() doesn't take null
+		String line = String.valueOf(message);
+		if (tr != null)
+			line = line + '\n' + Log.getStackTraceString(tr);
+		Log.println(priority, tag, line);
+	}
+}
@@ -0,0 +1,265 @@
+/*
+ * pubsub.io Android Library
+ * Copyright (C) 2011  Andreas Göransson
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pubsub.io.android;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Publishes at most one doc per key and interval, the latest one. Made for
+ * sensor streams that produce far more samples than are worth sending:
+ *
+ * <pre>
+ * // At most 5 docs a second per sensor
+ * ConflatingPublisher publisher = new ConflatingPublisher(mPubsub, &quot;sensor&quot;, 5);
+ * ...
+ * publisher.publish(doc); // in onSensorChanged()
+ * </pre>
+ *
+ * The key is read from the doc with a dotted path, docs without it share one
+ * key. A doc for a key that hasn't been sent during the current interval goes
+ * out right away; anything after that waits for the end of the interval, and
+ * only the latest doc per key is sent then. The docs that were replaced are
+ * counted by getSuppressed().
+ *
+ * The delayed docs are published from the main thread.
+ */
+public class ConflatingPublisher {
+
+	private static final String TAG = "ConflatingPublisher";
+
+	/** Where the docs go, a Pubsub or a PubsubChannel */
+	private interface Target {
+		void publish(JSONObject doc) throws JSONException;
+	}
+
+	private final Target mTarget;
+	private final String[] mKeyPath;
+	private final long mIntervalMillis;
+	private final Handler mHandler;
+
+	/** Latest doc per key, waiting for the end of the interval */
+	private final LinkedHashMap<Object, JSONObject> mPending;
+
+	/** When each key was last sent, for keys sent within the interval */
+	private final Map<Object, Long> mSent;
+
+	private boolean mScheduled;
+	private long mPublished;
+	private long mSuppressed;
+
+	private final Runnable mFlush = new Runnable() {
+		public void run() {
+			synchronized (ConflatingPublisher.this) {
+				mScheduled = false;
+			}
+			flush(false);
+		}
+	};
+
+	/**
+	 * @param pubsub
+	 *          Publishes to the connected sub
+	 * @param keyPath
+	 *          Dotted path of the field docs are conflated by, null for a single
+	 *          stream
+	 * @param rate
+	 *          Max docs per second and key
+	 */
+	public ConflatingPublisher(final Pubsub pubsub, String keyPath, double rate) {
+		this(new Target() {
+			public void publish(JSONObject doc) throws JSONException {
+				pubsub.publish(doc);
+			}
+		}, keyPath, rate);
+	}
+
+	/**
+	 * @param channel
+	 *          Publishes to the sub of the channel
+	 * @param keyPath
+	 *          Dotted path of the field docs are conflated by, null for a single
+	 *          stream
+	 * @param rate
+	 *          Max docs per second and key
+	 */
+	public ConflatingPublisher(final PubsubChannel channel, String keyPath,
+			double rate) {
+		this(new Target() {
+			public void publish(JSONObject doc) throws JSONException {
+				channel.publish(doc);
+			}
+		}, keyPath, rate);
+	}
+
+	private ConflatingPublisher(Target target, String keyPath, double rate) {
+		if (rate <= 0)
+			throw new IllegalArgumentException("rate must be > 0");
+
+		mTarget = target;
+		mKeyPath = keyPath != null ? keyPath.split("\\.") : new String[0];
+		mIntervalMillis = Math.max(1, Math.round(1000 / rate));
+		mHandler = new Handler(Looper.getMainLooper());
+		mPending = new LinkedHashMap<Object, JSONObject>();
+		mSent = new HashMap<Object, Long>();
+	}
+
+	/**
+	 * Publish a doc, now or at the end of the interval if a doc with the same
+	 * key was sent recently. The doc must not be changed afterwards, it may be
+	 * sent later.
+	 *
+	 * @param doc
+	 */
+	public void publish(JSONObject doc) {
+		Object key = key(doc);
+		long now = SystemClock.uptimeMillis();
+
+		synchronized (this) {
+			Long sent = mSent.get(key);
+			if (sent == null || now - sent.longValue() >= mIntervalMillis) {
+				// Quiet key, nothing to wait for
+				if (mPending.remove(key) != null)
+					mSuppressed++;
+				mSent.put(key, now);
+				mPublished++;
+			} else {
+				if (mPending.put(key, doc) != null)
+					mSuppressed++;
+
+				if (!mScheduled) {
+					mScheduled = true;
+					mHandler.postAtTime(mFlush, sent.longValue() + mIntervalMillis);
+				}
+				return;
+			}
+		}
+
+		send(doc);
+	}
+
+	/**
+	 * Send every pending doc right away.
+	 */
+	public void flush() {
+		flush(true);
+	}
+
+	/**
+	 * Send the pending docs whose interval is over, or all of them.
+	 */
+	private void flush(boolean all) {
+		List<JSONObject> docs = new ArrayList<JSONObject>();
+		synchronized (this) {
+			long now = SystemClock.uptimeMillis();
+			long next = Long.MAX_VALUE;
+
+			Iterator<Map.Entry<Object, JSONObject>> pending = mPending.entrySet()
+					.iterator();
+			while (pending.hasNext()) {
+				Map.Entry<Object, JSONObject> entry = pending.next();
+				long due = mSent.get(entry.getKey()).longValue() + mIntervalMillis;
+				if (all || due <= now) {
+					docs.add(entry.getValue());
+					mSent.put(entry.getKey(), now);
+					pending.remove();
+				} else {
+					next = Math.min(next, due);
+				}
+			}
+			mPublished += docs.size();
+
+			// Forget keys that have gone quiet so the map doesn't grow forever
+			Iterator<Map.Entry<Object, Long>> sent = mSent.entrySet().iterator();
+			while (sent.hasNext()) {
+				Map.Entry<Object, Long> entry = sent.next();
+				if (now - entry.getValue().longValue() >= mIntervalMillis
+						&& !mPending.containsKey(entry.getKey()))
+					sent.remove();
+			}
+
+			if (next != Long.MAX_VALUE && !mScheduled) {
+				mScheduled = true;
+				mHandler.postAtTime(mFlush, next);
+			}
+		}
+
+		for (int i = 0; i < docs.size(); i++)
+			send(docs.get(i));
+	}
+
+	/**
+	 * Drop the pending docs without sending them.
+	 */
+	public synchronized void clear() {
+		mSuppressed += mPending.size();
+		mPending.clear();
+		mHandler.removeCallbacks(mFlush);
+		mScheduled = false;
+	}
+
+	/**
+	 * @return Number of docs sent
+	 */
+	public synchronized long getPublished() {
+		return mPublished;
+	}
+
+	/**
+	 * @return Number of docs replaced by a later doc with the same key, and
+	 *         never sent
+	 */
+	public synchronized long getSuppressed() {
+		return mSuppressed;
+	}
+
+	private void send(JSONObject doc) {
+		try {
+			mTarget.publish(doc);
+		} catch (JSONException e) {
+			Log.e(TAG, e.getMessage(), e);
+		}
+	}
+
+	private Object key(JSONObject doc) {
+		// Without a key path every doc is the same stream
+		if (mKeyPath.length == 0)
+			return "";
+
+		Object value = doc;
+		for (int i = 0; i < mKeyPath.length; i++) {
+			if (!(value instanceof JSONObject))
+				return "";
+			value = ((JSONObject) value).opt(mKeyPath[i]);
+		}
+		return value != null ? value.toString() : "";
+	}
+}
@@ -0,0 +1,48 @@
+/*
+ * pubsub.io Android Library
+ * Copyright (C) 2011  Andreas Göransson
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pubsub.io.android;
+
+import pubsub.io.core.Delivery;
+import android.os.Handler;
+import android.os.Message;
+
+/**
+ * Delivers docs to a Handler, as messages with what set to handler_callback.
+ */
+class HandlerDelivery extends Delivery {
+
+	private final Handler mHandler;
+
+	HandlerDelivery(int handler_callback, Handler handler) {
+		super(handler_callback, new HandlerExecutor(handler));
+		mHandler = handler;
+	}
+
+	@Override
+	protected void post(Object doc) {
+		mHandler.obtainMessage(mHandle, doc).sendToTarget();
+	}
+
+	@Override
+	protected void handle(Object doc) {
+		// Straight to handleMessage, we're already on the Handler's thread
+		Message msg = mHandler.obtainMessage(mHandle, doc);
+		mHandler.dispatchMessage(msg);
+	}
+}
@@ -0,0 +1,61 @@
+/*
+ * pubsub.io Android Library
+ * Copyright (C) 2011  Andreas Göransson
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pubsub.io.android;
+
+import java.util.concurrent.Executor;
+
+import pubsub.io.core.Scheduler;
+import android.os.Handler;
+import android.os.Looper;
+
+/**
+ * Runs listeners and the housekeeping of a connection on the thread of a
+ * Handler.
+ */
+public class HandlerExecutor implements Executor, Scheduler {
+
+	private static HandlerExecutor sMain;
+
+	private final Handler mHandler;
+
+	/**
+	 * @return Runs listeners on the main (UI) thread, in order
+	 */
+	public static synchronized HandlerExecutor mainThread() {
+		if (sMain == null)
+			sMain = new HandlerExecutor(new Handler(Looper.getMainLooper()));
+		return sMain;
+	}
+
+	public HandlerExecutor(Handler handler) {
+		mHandler = handler;
+	}
+
+	public void execute(Runnable command) {
+		mHandler.post(command);
+	}
+
+	public void schedule(Runnable task, long delayMillis) {
+		mHandler.postDelayed(task, delayMillis);
+	}
+
+	public void cancel(Runnable task) {
+		mHandler.removeCallbacks(task);
+	}
+}
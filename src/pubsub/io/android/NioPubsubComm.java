@@ -0,0 +1,50 @@
+/*
+ * pubsub.io Android Library
+ * Copyright (C) 2011  Andreas Göransson
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pubsub.io.android;
+
+import java.io.IOException;
+
+import pubsub.io.core.BufferPool;
+import pubsub.io.core.PubsubSelector;
+import android.content.Context;
+import android.os.Handler;
+
+/**
+ * Non-blocking version of PubsubComm. Instead of a ConnectThread and a
+ * ConnectedThread per connection every connection is served by the one shared
+ * PubsubSelector thread, and reads and writes go through pooled direct
+ * buffers.
+ *
+ * The connect, write and stop contract is the same as for PubsubComm, the only
+ * difference is that RAW_TEXT is not sent since the read bytes never end up in
+ * a byte array. The selector thread is the writer of every connection, the
+ * write queue capacity and max batch size from setWriteQueue() apply, there is
+ * no linger.
+ */
+public class NioPubsubComm extends PubsubComm {
+
+	public NioPubsubComm(Context context, Handler handler) throws IOException {
+		this(context, handler, PubsubSelector.getDefault(), BufferPool.getDefault());
+	}
+
+	public NioPubsubComm(Context context, Handler handler,
+			PubsubSelector selector, BufferPool pool) {
+		super(context, handler, selector, pool);
+	}
+}
@@ -18,14 +18,29 @@
 
 package pubsub.io.android;
 
+import java.io.IOException;
+import java.util.concurrent.Executor;
+
 import org.json.JSONException;
 import org.json.JSONObject;
 
-import android.annotation.SuppressLint;
+import pubsub.io.core.Codec;
+import pubsub.io.core.Compression;
+import pubsub.io.core.ConnectionFactory;
+import pubsub.io.core.Dedup;
+import pubsub.io.core.Delivery;
+import pubsub.io.core.DocPublisher;
+import pubsub.io.core.DocWriter;
+import pubsub.io.core.LatencyHistogram;
+import pubsub.io.core.MetricsSink;
+import pubsub.io.core.Outbox;
+import pubsub.io.core.PubsubClient;
+import pubsub.io.core.PubsubListener;
+import pubsub.io.core.PubsubParser;
+import pubsub.io.core.PubsubWriter;
 import android.content.Context;
 import android.net.ConnectivityManager;
 import android.net.NetworkInfo;
-import android.os.AsyncTask;
 import android.os.Handler;
 import android.util.Log;
 import android.widget.Toast;
@@ -68,7 +83,79 @@ public class Pubsub {
 	public static final String HOST_NAME = "host";
 
 	/** Message sent by this client to PubSub.io host */
-	public static final int SENT_MESSAGE = 16;
+	public static final int SENT_MESSAGE = 17;
+
+	// Overflow policies of the delivery queue, see setDeliveryQueue()
+	/** Stop reading from the hub until there's room, TCP pushes back */
+	public static final int OVERFLOW_BLOCK = PubsubClient.OVERFLOW_BLOCK;
+
+	/** Drop the oldest waiting doc to make room */
+	public static final int OVERFLOW_DROP_OLDEST = PubsubClient.OVERFLOW_DROP_OLDEST;
+
+	/** Drop the doc that just arrived */
+	public static final int OVERFLOW_DROP_NEWEST = PubsubClient.OVERFLOW_DROP_NEWEST;
+
+	/**
+	 * A doc replaces the waiting doc with the same key, the oldest is dropped
+	 * if all keys are different
+	 */
+	public static final int OVERFLOW_CONFLATE = PubsubClient.OVERFLOW_CONFLATE;
+
+	// Transport constants
+	/** Blocking sockets, with a connect and a read thread per connection */
+	public static final int TRANSPORT_BLOCKING = 0;
+
+	/** Non-blocking channels, all connections share one selector thread */
+	public static final int TRANSPORT_NIO = 1;
+
+	private int mTransport = TRANSPORT_BLOCKING;
+
+	// Write queue settings, see setWriteQueue()
+	private int mWriteCapacity = PubsubWriter.DEFAULT_CAPACITY;
+	private int mWriteMaxBatch = PubsubWriter.DEFAULT_MAX_BATCH;
+	private long mWriteLingerMillis = 0;
+
+	// Parse mode, see setParseMode()
+	private int mParseMode = PubsubComm.PARSE_FULL;
+
+	// See setLocalRouting()
+	private boolean mLocalRouting = false;
+
+	// Delivery queue settings, see setDeliveryQueue()
+	private int mQueueCapacity = 0;
+	private int mQueuePolicy = OVERFLOW_DROP_OLDEST;
+	private String mQueueKeyPath = null;
+
+	// See setOutbox()
+	private Outbox mOutbox = null;
+
+	// See setConnectionFactory()
+	private ConnectionFactory mConnectionFactory = ConnectionFactory
+			.getDefault();
+
+	// See setMetrics()
+	private MetricsSink mMetrics = MetricsSink.NONE;
+
+	// See setCodec()
+	private Codec mCodec = Codec.JSON;
+
+	// See setCompression()
+	private Compression mCompression = null;
+
+	// See setDedup()
+	private Dedup mDedup = null;
+
+	// Heartbeat, see setHeartbeat()
+	private long mHeartbeatMillis = 0;
+	private int mHeartbeatMaxMissed = 0;
+
+	// Reconnect backoff, see setReconnect()
+	private long mReconnectInitialMillis = 0;
+	private long mReconnectMaxMillis = 0;
+	private double mReconnectJitter = 0;
+
+	/** Next handle for subscribe() with a listener */
+	private int mNextHandle = Delivery.FIRST_HANDLE;
 
 	private PubsubComm mPubsubComm = null;
 	private Handler mHandler;
@@ -101,15 +188,171 @@ public class Pubsub {
 			Log.i(TAG, "setupPubsub()");
 
 		// Initialize the BluetoothChatService to perform bluetooth connections
-		mPubsubComm = new PubsubComm(mContext, mHandler);
+		PubsubComm comm = null;
+		if (mTransport == TRANSPORT_NIO) {
+			try {
+				comm = new NioPubsubComm(mContext, mHandler);
+			} catch (IOException e) {
+				Log.e(TAG, "Unable to open selector, using blocking sockets", e);
+			}
+		}
+		if (comm == null)
+			comm = new PubsubComm(mContext, mHandler);
+		mPubsubComm = comm;
+
+		// The settings outlive the connection, whatever the transport
+		mPubsubComm.setWriteQueue(mWriteCapacity, mWriteMaxBatch,
+				mWriteLingerMillis);
+		mPubsubComm.setParseMode(mParseMode);
+		mPubsubComm.setLocalRouting(mLocalRouting);
+		mPubsubComm.setDeliveryQueue(mQueueCapacity, mQueuePolicy, mQueueKeyPath);
+		mPubsubComm.setOutbox(mOutbox);
+		mPubsubComm.setReconnect(mReconnectInitialMillis, mReconnectMaxMillis,
+				mReconnectJitter);
+		mPubsubComm.setConnectionFactory(mConnectionFactory);
+		mPubsubComm.setHeartbeat(mHeartbeatMillis, mHeartbeatMaxMissed);
+		mPubsubComm.setMetrics(mMetrics);
+		mPubsubComm.setCodec(mCodec);
+		mPubsubComm.setCompression(mCompression);
+		mPubsubComm.setDedup(mDedup);
+	}
+
+	/**
+	 * Select how the connection talks to the hub, TRANSPORT_BLOCKING (default)
+	 * or TRANSPORT_NIO. Any open connection is closed, call connect() again
+	 * afterwards.
+	 * 
+	 * @param transport
+	 */
+	public void setTransport(int transport) {
+		if (DEBUG)
+			Log.i(TAG, "setTransport(" + transport + ")");
+
+		if (transport == mTransport)
+			return;
+
+		disconnect();
+
+		mTransport = transport;
+		setupPubsub();
+	}
+
+	/**
+	 * Configure how publishes are written. All messages go through a single
+	 * writer per connection that writes everything queued in one batch. Takes
+	 * effect on the next connect.
+	 * 
+	 * @param capacity
+	 *          Number of messages that can be queued, more are dropped
+	 * @param maxBatch
+	 *          Max number of messages written in one batch
+	 * @param lingerMillis
+	 *          How long to wait for more messages before writing a batch that
+	 *          isn't full (blocking transport only), 0 writes right away
+	 */
+	public void setWriteQueue(int capacity, int maxBatch, long lingerMillis) {
+		mWriteCapacity = capacity;
+		mWriteMaxBatch = maxBatch;
+		mWriteLingerMillis = lingerMillis;
+
+		mPubsubComm.setWriteQueue(capacity, maxBatch, lingerMillis);
+	}
+
+	/**
+	 * Select how incoming docs are parsed. With PubsubComm.PARSE_LAZY only the
+	 * id is read when a message arrives: messages for a handler_callback you
+	 * have unsubscribed are dropped without parsing them, and msg.obj is a
+	 * LazyDoc that is parsed when you call get() on it.
+	 * 
+	 * @param mode
+	 *          PubsubComm.PARSE_FULL (default) or PubsubComm.PARSE_LAZY
+	 */
+	public void setParseMode(int mode) {
+		mParseMode = mode;
+
+		mPubsubComm.setParseMode(mode);
+	}
+
+	/**
+	 * Fold overlapping subscriptions on the client. Only the broadest filters are
+	 * sent to the hub, so {version: {$gt: 0.1}} and {version: {$gt: 0.5}} make a
+	 * single subscription and a matching doc is received once; it is then
+	 * handed to every handler_callback whose filter it matches. Set this before
+	 * connect().
+	 * 
+	 * @param enabled
+	 */
+	public void setLocalRouting(boolean enabled) {
+		mLocalRouting = enabled;
+
+		mPubsubComm.setLocalRouting(enabled);
+	}
+
+	/**
+	 * Limit how many docs can wait for each subscription made from now on. By
+	 * default every doc is posted to the Handler right away, so when the
+	 * activity falls behind the message queue grows without bound; with a
+	 * queue the policy decides what happens when it's full.
+	 * 
+	 * OVERFLOW_BLOCK stops reading from the hub until the activity has taken
+	 * half of the docs, which holds up every subscription of the connection;
+	 * nothing is dropped. Other connections keep going.
+	 * 
+	 * @param capacity
+	 *          Max docs waiting per subscription, 0 (default) for no limit
+	 * @param policy
+	 *          OVERFLOW_BLOCK, OVERFLOW_DROP_OLDEST, OVERFLOW_DROP_NEWEST or
+	 *          OVERFLOW_CONFLATE
+	 * @param keyPath
+	 *          For OVERFLOW_CONFLATE, the dotted path of the doc field that
+	 *          identifies docs that replace each other, like "sensor" or
+	 *          "device.id"
+	 */
+	public void setDeliveryQueue(int capacity, int policy, String keyPath) {
+		mQueueCapacity = capacity;
+		mQueuePolicy = policy;
+		mQueueKeyPath = keyPath;
+
+		mPubsubComm.setDeliveryQueue(capacity, policy, keyPath);
+	}
+
+	/**
+	 * Set up the delivery queue of a single subscription, until it's
+	 * unsubscribed. See setDeliveryQueue(int, int, String).
+	 * 
+	 * @param handler_callback
+	 *          The handler_callback or listener handle
+	 * @param capacity
+	 * @param policy
+	 * @param keyPath
+	 */
+	public void setDeliveryQueue(int handler_callback, int capacity,
+			int policy, String keyPath) {
+		mPubsubComm.setDeliveryQueue(handler_callback, capacity, policy, keyPath);
+	}
+
+	/**
+	 * @param handler_callback
+	 * @return Number of docs for the subscription dropped by its queue
+	 */
+	public long getDroppedDocs(int handler_callback) {
+		return mPubsubComm.getDroppedDocs(handler_callback);
+	}
+
+	/**
+	 * @param handler_callback
+	 * @return Number of docs for the subscription replaced by a newer one with
+	 *         the same key
+	 */
+	public long getConflatedDocs(int handler_callback) {
+		return mPubsubComm.getConflatedDocs(handler_callback);
 	}
 
 	/**
 	 * Connect to the default sub at hub.pubsub.io.
 	 */
 	public void connect() {
-		// connect("hub.pubsub.io", "10547", "/");
-		connect("79.125.4.43", "10547", "/");
+		connect("hub.pubsub.io", "10547", "/");
 	}
 
 	/**
@@ -118,8 +361,7 @@ public class Pubsub {
 	 * @param sub
 	 */
 	public void connect(String sub) {
-		// connect("hub.pubsub.io", "10547", sub);
-		connect("79.125.4.43", "10547", sub);
+		connect("hub.pubsub.io", "10547", sub);
 	}
 
 	/**
@@ -147,6 +389,178 @@ public class Pubsub {
 		mPubsubComm.connect(mHost, mPort, mSub);
 	}
 
+	/**
+	 * Set how the hub is resolved and connected to. The default factory caches
+	 * the hub address for a minute, tries every address it resolves to for 10
+	 * seconds each, and turns off Nagle's algorithm so small publishes aren't
+	 * held back. Takes effect on the next connect().
+	 * 
+	 * <pre>
+	 * ConnectionFactory factory = new ConnectionFactory();
+	 * factory.setConnectTimeout(5000);
+	 * factory.setIdleTimeout(90 * 1000);
+	 * mPubsub.setConnectionFactory(factory);
+	 * </pre>
+	 * 
+	 * @param factory
+	 */
+	public void setConnectionFactory(ConnectionFactory factory) {
+		mConnectionFactory = factory;
+
+		mPubsubComm.setConnectionFactory(factory);
+	}
+
+	/**
+	 * Measure the connection, see MetricsSink for what's measured. Nothing is
+	 * measured by default.
+	 * 
+	 * <pre>
+	 * HistogramMetrics metrics = new HistogramMetrics();
+	 * mPubsub.setMetrics(metrics);
+	 * ...
+	 * Log.i(TAG, metrics.toJSON().toString());
+	 * </pre>
+	 * 
+	 * @param metrics
+	 *          Where the measurements go, MetricsSink.NONE to stop measuring
+	 */
+	public void setMetrics(MetricsSink metrics) {
+		mMetrics = metrics;
+
+		mPubsubComm.setMetrics(metrics);
+	}
+
+	/**
+	 * Ask the hub for a more compact encoding than JSON text. Docs of numbers
+	 * shrink by about half in MessagePack, and are parsed faster. A hub that
+	 * doesn't know the codec stays with JSON, and listeners get the same docs
+	 * either way. Takes effect on the next connect().
+	 * 
+	 * <pre>
+	 * mPubsub.setCodec(new MessagePackCodec());
+	 * </pre>
+	 * 
+	 * @param codec
+	 *          The codec, Codec.JSON (default) to not ask
+	 */
+	public void setCodec(Codec codec) {
+		mCodec = codec;
+
+		mPubsubComm.setCodec(codec);
+	}
+
+	/**
+	 * Ask the hub for compressed frames. Messages of at least
+	 * compression.getThreshold() bytes are deflated with a dictionary the hub
+	 * has, which pays off for large docs on a slow link. The level is picked
+	 * whenever the connection is made, reconnects included,
+	 * Compression.LEVEL_WIFI on WiFi and Compression.LEVEL_MOBILE otherwise. A
+	 * hub that doesn't know the dictionary gets everything uncompressed. Takes
+	 * effect on the next connect().
+	 * 
+	 * <pre>
+	 * mPubsub.setCompression(new Compression());
+	 * </pre>
+	 * 
+	 * @param compression
+	 *          The compression, null (default) to not ask
+	 */
+	public void setCompression(Compression compression) {
+		mCompression = compression;
+
+		mPubsubComm.setCompression(compression);
+	}
+
+	/**
+	 * Deliver a doc only once per subscription even if it comes in again
+	 * within a short while, like after a reconnect. Repeats are dropped before
+	 * they are parsed, and never reach the Handler; every subscription that
+	 * matches a doc still gets it. Docs that have an id of their own are
+	 * better told apart by it:
+	 * 
+	 * <pre>
+	 * Dedup dedup = new Dedup();
+	 * dedup.setKeyField(&quot;uuid&quot;);
+	 * mPubsub.setDedup(dedup);
+	 * </pre>
+	 * 
+	 * @param dedup
+	 *          The recent docs, null (default) to deliver every doc
+	 */
+	public void setDedup(Dedup dedup) {
+		mDedup = dedup;
+
+		mPubsubComm.setDedup(dedup);
+	}
+
+	/**
+	 * Send a small probe doc through the hub every interval, and time how long
+	 * it takes to come back. After maxMissed probes in a row don't come back
+	 * the connection is dropped and CONNECTION_LOST is sent, which on a mobile
+	 * network is usually long before the socket would notice. Takes effect on
+	 * the next connect().
+	 * 
+	 * <pre>
+	 * mPubsub.setHeartbeat(15 * 1000, 3);
+	 * ...
+	 * LatencyHistogram rtt = mPubsub.getLatency();
+	 * Log.i(TAG, &quot;p50 &quot; + rtt.getPercentile(50) / 1000 + &quot; ms, p99 &quot;
+	 * 		+ rtt.getPercentile(99) / 1000 + &quot; ms&quot;);
+	 * </pre>
+	 * 
+	 * The probes are published to the connected sub with a "pubsub_probe"
+	 * field, a subscription that matches everything sees them too.
+	 * 
+	 * @param intervalMillis
+	 *          Time between probes, 0 for no probes (default)
+	 * @param maxMissed
+	 *          Probes in a row that may go missing, 0 to only measure
+	 */
+	public void setHeartbeat(long intervalMillis, int maxMissed) {
+		mHeartbeatMillis = intervalMillis;
+		mHeartbeatMaxMissed = maxMissed;
+
+		mPubsubComm.setHeartbeat(intervalMillis, maxMissed);
+	}
+
+	/**
+	 * @return Round trip times of the heartbeat probes, in microseconds
+	 */
+	public LatencyHistogram getLatency() {
+		return mPubsubComm.getLatency();
+	}
+
+	/**
+	 * Reconnect by itself when the connection fails or is lost, until
+	 * disconnect() is called. The delays double from initialMillis up to
+	 * maxMillis, with a random part taken off each so that when a hub restarts
+	 * its clients don't all come back in the same instant. Every subscription
+	 * that was active is sent again as soon as the connection is back, there's
+	 * no need to subscribe again on SUBSCRIBES (doing so is harmless).
+	 * 
+	 * <pre>
+	 * // 1s, 2s, 4s... up to a minute, each anywhere between 0 and that
+	 * mPubsub.setReconnect(1000, 60 * 1000, 1.0);
+	 * </pre>
+	 * 
+	 * CONNECTION_LOST and CONNECTION_FAILED are still sent to the Handler.
+	 * 
+	 * @param initialMillis
+	 *          Delay before the first attempt, 0 to leave reconnecting to the
+	 *          app (default)
+	 * @param maxMillis
+	 *          Longest delay
+	 * @param jitter
+	 *          Part of each delay that is random, from 0 to 1
+	 */
+	public void setReconnect(long initialMillis, long maxMillis, double jitter) {
+		mReconnectInitialMillis = initialMillis;
+		mReconnectMaxMillis = maxMillis;
+		mReconnectJitter = jitter;
+
+		mPubsubComm.setReconnect(initialMillis, maxMillis, jitter);
+	}
+
 	public void reconnect() {
 		if (mHost != null && mPort != null && mSub != null)
 			this.connect(mHost, mPort, mSub);
@@ -162,17 +576,13 @@ public class Pubsub {
 			Log.i(TAG, "Sub: " + sub);
 
 		// Check that we're actually connected before trying anything
-		if (mPubsubComm.getState() != mPubsubComm.STATE_CONNECTED) {
+		if (mPubsubComm.getState() != PubsubComm.STATE_CONNECTED) {
 			Toast.makeText(mContext, R.string.not_connected, Toast.LENGTH_SHORT)
 					.show();
 			return;
 		}
 
-		try {
-			mPubsubComm.write(PubsubParser.sub(sub).getBytes());
-		} catch (JSONException e) {
-			Log.e(TAG, e.getMessage(), e);
-		}
+		mPubsubComm.write(PubsubParser.encodeSub(sub));
 	}
 
 	/**
@@ -190,18 +600,80 @@ public class Pubsub {
 			Log.i(TAG, "Subscribe: " + json_filter.toString());
 
 		// Check that we're actually connected before trying anything
-		if (mPubsubComm.getState() != mPubsubComm.STATE_CONNECTED) {
+		if (mPubsubComm.getState() != PubsubComm.STATE_CONNECTED) {
 			Toast.makeText(mContext, R.string.not_connected, Toast.LENGTH_SHORT)
 					.show();
 			return;
 		}
 
-		new CommTask().execute(PubsubParser.subscribe(json_filter,
-				handler_callback).getBytes());
+		mPubsubComm.subscribe(json_filter, handler_callback);
 	}
 
 	/**
-	 * Unsubscribe the specified handler_callback.
+	 * Subscribe to a filter with a listener, which is called on the main thread.
+	 * 
+	 * @param json_filter
+	 * @param listener
+	 * @return The handle of the subscription, for unsubscribe(), or -1 if we're
+	 *         not connected
+	 * @throws JSONException
+	 */
+	public int subscribe(JSONObject json_filter, PubsubListener listener)
+			throws JSONException {
+		return subscribe(json_filter, listener, HandlerExecutor.mainThread());
+	}
+
+	/**
+	 * Subscribe to a filter with a listener. The docs don't go through the
+	 * Handler, they are handed to the listener on the given executor; use
+	 * PubsubExecutors.CALLER to skip the hop to another thread altogether.
+	 * 
+	 * @param json_filter
+	 * @param listener
+	 * @param executor
+	 *          Where the listener is called, see PubsubExecutors
+	 * @return The handle of the subscription, for unsubscribe(), or -1 if we're
+	 *         not connected
+	 * @throws JSONException
+	 */
+	public int subscribe(JSONObject json_filter, PubsubListener listener,
+			Executor executor) throws JSONException {
+		if (DEBUG)
+			Log.i(TAG, "Subscribe: " + json_filter.toString());
+
+		// Check that we're actually connected before trying anything
+		if (mPubsubComm.getState() != PubsubComm.STATE_CONNECTED) {
+			Toast.makeText(mContext, R.string.not_connected, Toast.LENGTH_SHORT)
+					.show();
+			return -1;
+		}
+
+		int handle = mNextHandle++;
+		mPubsubComm.addListener(new Delivery(handle, listener, executor));
+		mPubsubComm.subscribe(json_filter, handle);
+		return handle;
+	}
+
+	/**
+	 * The docs matching a filter as a PubsubFlow.Publisher, with the
+	 * subscribers called on the main thread. Nothing is sent to the hub until
+	 * something subscribes to it, and a subscriber that falls capacity docs
+	 * behind holds up reading from the hub until it catches up; see
+	 * DocPublisher. Lasts until the transport is changed.
+	 * 
+	 * @param json_filter
+	 * @param capacity
+	 *          Docs buffered per subscriber
+	 * @return The publisher
+	 */
+	public DocPublisher publisher(JSONObject json_filter, int capacity) {
+		return new DocPublisher(mPubsubComm, mNextHandle++, json_filter, capacity,
+				HandlerExecutor.mainThread());
+	}
+
+	/**
+	 * Unsubscribe the specified handler_callback, or the handle returned by
+	 * subscribe() with a listener.
 	 * 
 	 * @param handler_callback
 	 * @throws JSONException
@@ -211,14 +683,34 @@ public class Pubsub {
 			Log.i(TAG, "Unsubscribe: " + handler_callback);
 
 		// Check that we're actually connected before trying anything
-		if (mPubsubComm.getState() != mPubsubComm.STATE_CONNECTED) {
+		if (mPubsubComm.getState() != PubsubComm.STATE_CONNECTED) {
 			Toast.makeText(mContext, R.string.not_connected, Toast.LENGTH_SHORT)
 					.show();
-			return;
 		}
 
-		new CommTask().execute(PubsubParser.unsubscribe(handler_callback)
-				.getBytes());
+		// Nothing is written if we're not connected, but late docs for this
+		// callback are dropped all the same
+		mPubsubComm.unsubscribe(handler_callback);
+	}
+
+	/**
+	 * Keep docs published while we're offline, or faster than they can be
+	 * written, in an outbox on disk and send them in order once we're connected
+	 * again. They survive the app being restarted as long as the next outbox is
+	 * opened in the same directory:
+	 * 
+	 * <pre>
+	 * pubsub.setOutbox(new Outbox(new File(getFilesDir(), &quot;outbox&quot;),
+	 * 		Outbox.DEFAULT_SEGMENT_SIZE, 4 * 1024 * 1024, 24 * 60 * 60 * 1000));
+	 * </pre>
+	 * 
+	 * @param outbox
+	 *          The outbox, null to drop docs published while offline (default)
+	 */
+	public void setOutbox(Outbox outbox) {
+		mOutbox = outbox;
+
+		mPubsubComm.setOutbox(outbox);
 	}
 
 	/**
@@ -231,14 +723,38 @@ public class Pubsub {
 		if (DEBUG)
 			Log.i(TAG, "Publish: " + doc.toString());
 
-		// Check that we're actually connected before trying anything
-		if (mPubsubComm.getState() != mPubsubComm.STATE_CONNECTED) {
+		// Check that we're actually connected before trying anything, unless the
+		// outbox can keep the doc until we are
+		if (mOutbox == null
+				&& mPubsubComm.getState() != PubsubComm.STATE_CONNECTED) {
 			Toast.makeText(mContext, R.string.not_connected, Toast.LENGTH_SHORT)
 					.show();
 			return;
 		}
 
-		new CommTask().execute(PubsubParser.publish(doc).getBytes());
+		mPubsubComm.publish(doc);
+	}
+
+	/**
+	 * Publish a document to the connected sub. The doc is streamed straight to
+	 * the wire by the DocWriter, no JSONObject is needed.
+	 * 
+	 * @param doc
+	 */
+	public void publish(DocWriter doc) {
+		if (DEBUG)
+			Log.i(TAG, "Publish: DocWriter");
+
+		// Check that we're actually connected before trying anything, unless the
+		// outbox can keep the doc until we are
+		if (mOutbox == null
+				&& mPubsubComm.getState() != PubsubComm.STATE_CONNECTED) {
+			Toast.makeText(mContext, R.string.not_connected, Toast.LENGTH_SHORT)
+					.show();
+			return;
+		}
+
+		mPubsubComm.publish(doc);
 	}
 
 	/**
@@ -283,7 +799,7 @@ public class Pubsub {
 			Log.i(TAG, "Write: " + message);
 
 		// Check that we're actually connected before trying anything
-		if (mPubsubComm.getState() != mPubsubComm.STATE_CONNECTED) {
+		if (mPubsubComm.getState() != PubsubComm.STATE_CONNECTED) {
 			Toast.makeText(mContext, R.string.not_connected, Toast.LENGTH_SHORT)
 					.show();
 			return;
@@ -332,14 +848,4 @@ public class Pubsub {
 		return false;
 	}
 
-	@SuppressLint("NewApi")
-	private class CommTask extends AsyncTask<byte[], Void, Void> {
-
-		@Override
-		protected Void doInBackground(byte[]... params) {
-			mPubsubComm.write(params[0]);
-			return null;
-		}
-	}
-
 }
@@ -0,0 +1,181 @@
+/*
+ * pubsub.io Android Library
+ * Copyright (C) 2011  Andreas Göransson
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pubsub.io.android;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import pubsub.io.core.Delivery;
+import pubsub.io.core.DocWriter;
+import pubsub.io.core.PubsubListener;
+import pubsub.io.core.PubsubParser;
+import android.os.Handler;
+import android.util.Log;
+
+/**
+ * One sub of a PubsubSession. A channel publishes to its own sub and keeps its
+ * own subscriptions, the handler_callback ids only have to be unique within
+ * the channel.
+ *
+ * The Handler of the channel receives the docs for its subscriptions as well
+ * as the usual connection callbacks (STATE_CHANGE, CONNECTED_TO_HOST,
+ * SUBSCRIBES, CONNECTION_LOST and CONNECTION_FAILED).
+ */
+public class PubsubChannel {
+
+	private static final String TAG = "PubsubChannel";
+
+	private final PubsubSession mSession;
+	final PubsubSession.SharedConnection mConnection;
+	final Handler mHandler;
+
+	/** handler_callback to the id the subscription has on the wire */
+	final Map<Integer, Integer> mWireIds;
+
+	/** Next handle for subscribe() with a listener, guarded by the session */
+	int mNextHandle = Delivery.FIRST_HANDLE;
+
+	PubsubChannel(PubsubSession session,
+			PubsubSession.SharedConnection connection, Handler handler) {
+		mSession = session;
+		mConnection = connection;
+		mHandler = handler;
+		mWireIds = new HashMap<Integer, Integer>();
+	}
+
+	/**
+	 * Subscribe to a filter on this channel's sub. The subscription is kept by
+	 * the session and sent again whenever the connection is re-established, so
+	 * it's fine to call this before the channel is connected.
+	 *
+	 * @param json_filter
+	 * @param handler_callback
+	 * @throws JSONException
+	 */
+	public void subscribe(JSONObject json_filter, int handler_callback)
+			throws JSONException {
+		mSession.subscribe(this, json_filter, handler_callback);
+	}
+
+	/**
+	 * Subscribe to a filter with a listener, which is called on the main thread.
+	 *
+	 * @param json_filter
+	 * @param listener
+	 * @return The handle of the subscription, for unsubscribe()
+	 * @throws JSONException
+	 */
+	public int subscribe(JSONObject json_filter, PubsubListener listener)
+			throws JSONException {
+		return subscribe(json_filter, listener, HandlerExecutor.mainThread());
+	}
+
+	/**
+	 * Subscribe to a filter with a listener that is called on the given
+	 * executor, see PubsubExecutors.
+	 *
+	 * @param json_filter
+	 * @param listener
+	 * @param executor
+	 * @return The handle of the subscription, for unsubscribe()
+	 * @throws JSONException
+	 */
+	public int subscribe(JSONObject json_filter, PubsubListener listener,
+			Executor executor) throws JSONException {
+		return mSession.subscribe(this, json_filter, listener, executor);
+	}
+
+	/**
+	 * Unsubscribe the specified handler_callback, or listener handle.
+	 *
+	 * @param handler_callback
+	 */
+	public void unsubscribe(int handler_callback) {
+		mSession.unsubscribe(this, handler_callback);
+	}
+
+	/**
+	 * Publish a document to this channel's sub.
+	 *
+	 * @param doc
+	 * @throws JSONException
+	 */
+	public void publish(JSONObject doc) throws JSONException {
+		if (mConnection.getState() != PubsubComm.STATE_CONNECTED) {
+			Log.w(TAG, "publish() while not connected, doc dropped");
+			return;
+		}
+
+		mConnection.write(PubsubParser.encodePublish(doc));
+	}
+
+	/**
+	 * Publish a document to this channel's sub, streamed by the DocWriter.
+	 *
+	 * @param doc
+	 */
+	public void publish(DocWriter doc) {
+		if (mConnection.getState() != PubsubComm.STATE_CONNECTED) {
+			Log.w(TAG, "publish() while not connected, doc dropped");
+			return;
+		}
+
+		mConnection.write(PubsubParser.encodePublish(doc));
+	}
+
+	/**
+	 * @param handler_callback
+	 *          The handler_callback or listener handle
+	 * @return Docs for the subscription dropped by its delivery queue, see
+	 *         PubsubSession.setDeliveryQueue()
+	 */
+	public long getDroppedDocs(int handler_callback) {
+		Delivery delivery = mSession.delivery(this, handler_callback);
+		return delivery != null ? delivery.getDropped() : 0;
+	}
+
+	/**
+	 * @param handler_callback
+	 *          The handler_callback or listener handle
+	 * @return Docs for the subscription replaced by a newer one with the same key
+	 */
+	public long getConflatedDocs(int handler_callback) {
+		Delivery delivery = mSession.delivery(this, handler_callback);
+		return delivery != null ? delivery.getConflated() : 0;
+	}
+
+	/**
+	 * @return The connection state of this channel, see PubsubComm
+	 */
+	public int getState() {
+		return mConnection.getState();
+	}
+
+	/**
+	 * Drop all subscriptions of this channel, the connection is closed when the
+	 * last channel on it is closed.
+	 */
+	public void close() {
+		mSession.close(this);
+	}
+}
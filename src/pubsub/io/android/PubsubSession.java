@@ -0,0 +1,503 @@
+/*
+ * pubsub.io Android Library
+ * Copyright (C) 2011  Andreas Göransson
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pubsub.io.android;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import pubsub.io.core.BufferPool;
+import pubsub.io.core.Codec;
+import pubsub.io.core.Compression;
+import pubsub.io.core.ConnectionFactory;
+import pubsub.io.core.Dedup;
+import pubsub.io.core.Delivery;
+import pubsub.io.core.MetricsSink;
+import pubsub.io.core.PubsubListener;
+import pubsub.io.core.PubsubParser;
+import pubsub.io.core.PubsubSelector;
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Message;
+import android.util.Log;
+
+/**
+ * A session serves many subs, on one or more hubs, from a single object. Every
+ * sub is opened as a PubsubChannel which has its own publish channel and its
+ * own table of subscriptions.
+ *
+ * The pubsub.io protocol binds a sub to a connection, so channels for the same
+ * hub and sub share one connection while different subs get a connection
+ * each. All connections of a session are non-blocking and served by the one
+ * shared PubsubSelector thread, so a dozen subs cost a dozen sockets but no
+ * extra threads.
+ *
+ * Subscriptions are remembered by the session and sent again every time a
+ * connection is (re)established.
+ */
+public class PubsubSession {
+
+	private static final String TAG = "PubsubSession";
+
+	private final Context mContext;
+	private final PubsubSelector mSelector;
+	private final BufferPool mPool;
+
+	/** Open connections, keyed by host:port/sub */
+	private final Map<String, SharedConnection> mConnections;
+
+	/** Parse mode of every connection, see PubsubComm.setParseMode() */
+	private int mParseMode = PubsubComm.PARSE_FULL;
+
+	// Delivery queue of new subscriptions, see setDeliveryQueue()
+	private int mQueueCapacity = 0;
+	private int mQueuePolicy = Pubsub.OVERFLOW_DROP_OLDEST;
+	private String mQueueKeyPath;
+
+	/** Opens the sockets of new connections, see setConnectionFactory() */
+	private ConnectionFactory mConnectionFactory = ConnectionFactory
+			.getDefault();
+
+	/** Measurements of every connection, see setMetrics() */
+	private MetricsSink mMetrics = MetricsSink.NONE;
+
+	/** Codec asked for by new connections, see setCodec() */
+	private Codec mCodec = Codec.JSON;
+
+	/** Compression asked for by new connections, see setCompression() */
+	private Compression mCompression = null;
+
+	/** Drops repeats on every connection, see setDedup() */
+	private Dedup mDedup = null;
+
+	// Reconnect backoff of every connection, see setReconnect()
+	private long mReconnectInitialMillis = 0;
+	private long mReconnectMaxMillis = 0;
+	private double mReconnectJitter = 0;
+
+	public PubsubSession(Context ctx) throws IOException {
+		this(ctx, PubsubSelector.getDefault(), BufferPool.getDefault());
+	}
+
+	public PubsubSession(Context ctx, PubsubSelector selector, BufferPool pool) {
+		mContext = ctx;
+		mSelector = selector;
+		mPool = pool;
+		mConnections = new HashMap<String, SharedConnection>();
+	}
+
+	/**
+	 * Select how incoming messages are parsed by every connection of the
+	 * session, see PubsubComm.setParseMode().
+	 *
+	 * @param mode
+	 *          PubsubComm.PARSE_FULL (default) or PubsubComm.PARSE_LAZY
+	 */
+	public synchronized void setParseMode(int mode) {
+		mParseMode = mode;
+		for (SharedConnection connection : mConnections.values())
+			connection.setParseMode(mode);
+	}
+
+	/**
+	 * Limit how many docs can wait for each subscription made from now on, see
+	 * Pubsub.setDeliveryQueue(). With Pubsub.OVERFLOW_BLOCK a full queue stops
+	 * the reads of its connection, and so every channel sharing it.
+	 *
+	 * @param capacity
+	 *          Max docs waiting per subscription, 0 (default) for no limit
+	 * @param policy
+	 *          One of the Pubsub.OVERFLOW_ constants
+	 * @param keyPath
+	 *          For Pubsub.OVERFLOW_CONFLATE, the field docs are conflated by
+	 */
+	public synchronized void setDeliveryQueue(int capacity, int policy,
+			String keyPath) {
+		mQueueCapacity = capacity;
+		mQueuePolicy = policy;
+		mQueueKeyPath = keyPath;
+	}
+
+	/**
+	 * Set how the hubs of new connections are resolved and connected to, see
+	 * Pubsub.setConnectionFactory().
+	 *
+	 * @param factory
+	 */
+	public synchronized void setConnectionFactory(ConnectionFactory factory) {
+		mConnectionFactory = factory;
+		for (SharedConnection connection : mConnections.values())
+			connection.setConnectionFactory(factory);
+	}
+
+	/**
+	 * Measure every connection of the session into one sink, see
+	 * PubsubComm.setMetrics().
+	 *
+	 * @param metrics
+	 */
+	public synchronized void setMetrics(MetricsSink metrics) {
+		mMetrics = metrics;
+		for (SharedConnection connection : mConnections.values())
+			connection.setMetrics(metrics);
+	}
+
+	/**
+	 * Ask the hub of every connection for a codec, see PubsubComm.setCodec().
+	 * Connections that are open already use it once they reconnect.
+	 *
+	 * @param codec
+	 */
+	public synchronized void setCodec(Codec codec) {
+		mCodec = codec;
+		for (SharedConnection connection : mConnections.values())
+			connection.setCodec(codec);
+	}
+
+	/**
+	 * Ask the hub of every connection for compressed frames, see
+	 * Pubsub.setCompression(). All connections share it, and its level is set
+	 * for the network whenever one of them connects. Connections that are
+	 * open already use it once they reconnect.
+	 *
+	 * @param compression
+	 */
+	public synchronized void setCompression(Compression compression) {
+		mCompression = compression;
+		for (SharedConnection connection : mConnections.values())
+			connection.setCompression(compression);
+	}
+
+	/**
+	 * Drop repeated docs on every connection, see Pubsub.setDedup(). The
+	 * connections share the capacity of the dedup, but a doc is only a repeat
+	 * on the connection and subscription it came in for.
+	 *
+	 * @param dedup
+	 */
+	public synchronized void setDedup(Dedup dedup) {
+		mDedup = dedup;
+		for (SharedConnection connection : mConnections.values())
+			connection.setDedup(dedup);
+	}
+
+	/**
+	 * Reconnect every connection of the session by itself when it's lost, see
+	 * PubsubComm.setReconnect(). The subscriptions of every channel on it are
+	 * sent again once it's back.
+	 *
+	 * @param initialMillis
+	 *          Delay before the first attempt, 0 to not reconnect (default)
+	 * @param maxMillis
+	 *          Longest delay
+	 * @param jitter
+	 *          Part of each delay that is random, from 0 to 1
+	 */
+	public synchronized void setReconnect(long initialMillis, long maxMillis,
+			double jitter) {
+		mReconnectInitialMillis = initialMillis;
+		mReconnectMaxMillis = maxMillis;
+		mReconnectJitter = jitter;
+		for (SharedConnection connection : mConnections.values())
+			connection.setReconnect(initialMillis, maxMillis, jitter);
+	}
+
+	/**
+	 * Open a channel to a sub on the default hub.
+	 *
+	 * @param sub
+	 * @param handler
+	 *          Receives the docs and the connection callbacks of this channel
+	 * @return The new channel
+	 */
+	public PubsubChannel open(String sub, Handler handler) {
+		return open("hub.pubsub.io", "10547", sub, handler);
+	}
+
+	/**
+	 * Open a channel to a sub on a hub. If another channel of this session is
+	 * already connected to the same hub and sub the connection is shared.
+	 *
+	 * @param host
+	 * @param port
+	 * @param sub
+	 * @param handler
+	 *          Receives the docs and the connection callbacks of this channel
+	 * @return The new channel
+	 */
+	public synchronized PubsubChannel open(String host, String port, String sub,
+			Handler handler) {
+		String key = host + ":" + port + "/" + sub;
+
+		SharedConnection connection = mConnections.get(key);
+		if (connection == null) {
+			connection = new SharedConnection(key);
+			connection.setParseMode(mParseMode);
+			connection.setReconnect(mReconnectInitialMillis, mReconnectMaxMillis,
+					mReconnectJitter);
+			connection.setConnectionFactory(mConnectionFactory);
+			connection.setMetrics(mMetrics);
+			connection.setCodec(mCodec);
+			connection.setCompression(mCompression);
+			connection.setDedup(mDedup);
+			mConnections.put(key, connection);
+			connection.connect(host, port, sub);
+		}
+
+		PubsubChannel channel = new PubsubChannel(this, connection, handler);
+		connection.mChannels.add(channel);
+
+		// The channel was opened on a connection that's already up
+		if (connection.getState() == PubsubComm.STATE_CONNECTED)
+			channel.mHandler.obtainMessage(Pubsub.SUBSCRIBES).sendToTarget();
+
+		return channel;
+	}
+
+	/**
+	 * Close every channel and connection of this session.
+	 */
+	public synchronized void close() {
+		Log.d(TAG, "close");
+
+		for (SharedConnection connection : mConnections.values())
+			connection.stop();
+		mConnections.clear();
+	}
+
+	/**
+	 * @return The number of connections currently open by this session
+	 */
+	public synchronized int getConnectionCount() {
+		return mConnections.size();
+	}
+
+	/**
+	 * Called by PubsubChannel.close().
+	 */
+	synchronized void close(PubsubChannel channel) {
+		SharedConnection connection = channel.mConnection;
+
+		for (Integer callback : new ArrayList<Integer>(channel.mWireIds.keySet()))
+			unsubscribe(channel, callback);
+
+		connection.mChannels.remove(channel);
+		if (connection.mChannels.isEmpty()) {
+			connection.stop();
+			mConnections.remove(connection.mKey);
+		}
+	}
+
+	/**
+	 * Called by PubsubChannel.subscribe().
+	 */
+	synchronized void subscribe(PubsubChannel channel, JSONObject json_filter,
+			int handler_callback) throws JSONException {
+		subscribe(channel, json_filter, handler_callback, null);
+	}
+
+	/**
+	 * Called by PubsubChannel.subscribe() with a listener.
+	 */
+	synchronized int subscribe(PubsubChannel channel, JSONObject json_filter,
+			PubsubListener listener, Executor executor) throws JSONException {
+		int handle = channel.mNextHandle++;
+		subscribe(channel, json_filter, handle, new Delivery(handle, listener,
+				executor));
+		return handle;
+	}
+
+	private void subscribe(PubsubChannel channel, JSONObject json_filter,
+			int handler_callback, Delivery delivery) throws JSONException {
+		SharedConnection connection = channel.mConnection;
+		String filter = json_filter.toString();
+
+		Integer existing = channel.mWireIds.get(handler_callback);
+		if (existing != null) {
+			// Subscribing again with the same filter changes nothing
+			Route route = connection.mRoutes.get(existing);
+			if (filter.equals(route.mFilterString))
+				return;
+			unsubscribe(channel, handler_callback);
+		}
+
+		// Handler subscriptions only need a Delivery of their own to be queued
+		if (delivery == null && mQueueCapacity > 0)
+			delivery = new HandlerDelivery(handler_callback, channel.mHandler);
+		if (delivery != null) {
+			delivery.attach(connection);
+			if (mQueueCapacity > 0)
+				delivery.setQueue(mQueueCapacity, mQueuePolicy, mQueueKeyPath);
+		}
+
+		int wire_id = connection.mNextWireId++;
+		// Keep a copy, the caller is free to change json_filter afterwards
+		connection.mRoutes.put(wire_id, new Route(channel, handler_callback,
+				new JSONObject(filter), filter, delivery));
+		channel.mWireIds.put(handler_callback, wire_id);
+
+		connection.write(PubsubParser.encodeSubscribe(json_filter, wire_id));
+	}
+
+	/**
+	 * Called by PubsubChannel.unsubscribe().
+	 */
+	synchronized void unsubscribe(PubsubChannel channel, int handler_callback) {
+		Integer wire_id = channel.mWireIds.remove(handler_callback);
+		if (wire_id == null)
+			return;
+
+		SharedConnection connection = channel.mConnection;
+		Route route = connection.mRoutes.remove(wire_id);
+		if (route.mDelivery != null)
+			route.mDelivery.close();
+
+		connection.write(PubsubParser.encodeUnsubscribe(wire_id));
+	}
+
+	/**
+	 * Called by PubsubChannel for the queue counters.
+	 *
+	 * @return The Delivery of the subscription, or null if it isn't queued
+	 */
+	synchronized Delivery delivery(PubsubChannel channel, int handler_callback) {
+		Integer wire_id = channel.mWireIds.get(handler_callback);
+		if (wire_id == null)
+			return null;
+		return channel.mConnection.mRoutes.get(wire_id).mDelivery;
+	}
+
+	/**
+	 * Where docs for a wire subscription id should go.
+	 */
+	private static class Route {
+		final PubsubChannel mChannel;
+		final int mCallback;
+		final JSONObject mFilter;
+		final String mFilterString;
+
+		/** The listener, null for docs that go to the channel's Handler */
+		final Delivery mDelivery;
+
+		Route(PubsubChannel channel, int callback, JSONObject filter,
+				String filterString, Delivery delivery) {
+			mChannel = channel;
+			mCallback = callback;
+			mFilter = filter;
+			mFilterString = filterString;
+			mDelivery = delivery;
+		}
+	}
+
+	/**
+	 * A connection to one hub and sub, shared by every channel of the session
+	 * that was opened on it. Subscription ids are allocated per connection so
+	 * channels can pick their callback ids freely.
+	 */
+	class SharedConnection extends NioPubsubComm {
+		final String mKey;
+		final List<PubsubChannel> mChannels;
+
+		/**
+		 * Wire subscription id to the channel and callback it belongs to, changed
+		 * under the session lock but read by the selector thread without it
+		 */
+		final Map<Integer, Route> mRoutes;
+		int mNextWireId = 1;
+
+		SharedConnection(String key) {
+			super(mContext, new FanOutHandler(), mSelector, mPool);
+			((FanOutHandler) mHandler).mConnection = this;
+			mKey = key;
+			mChannels = new ArrayList<PubsubChannel>();
+			mRoutes = new ConcurrentHashMap<Integer, Route>();
+		}
+
+		@Override
+		protected void connected(String hostName, String sub) {
+			super.connected(hostName, sub);
+
+			// Send every subscription we know about again, they are gone if this
+			// is a reconnect
+			Map<Integer, Route> routes;
+			synchronized (PubsubSession.this) {
+				routes = new HashMap<Integer, Route>(mRoutes);
+			}
+
+			for (Map.Entry<Integer, Route> entry : routes.entrySet())
+				write(PubsubParser.encodeSubscribe(entry.getValue().mFilter,
+						entry.getKey()));
+		}
+
+		@Override
+		protected boolean isRouted(int callback_id) {
+			return mRoutes.containsKey(callback_id);
+		}
+
+		@Override
+		protected void deliver(int callback_id, Object doc, long readNanos) {
+			Route route = mRoutes.get(callback_id);
+
+			// Late docs for a subscription that's gone are dropped
+			if (route == null)
+				return;
+
+			if (route.mDelivery != null)
+				route.mDelivery.deliver(doc, readNanos, getMetrics());
+			else
+				route.mChannel.mHandler.obtainMessage(route.mCallback, doc)
+						.sendToTarget();
+		}
+	}
+
+	/**
+	 * Receives the connection callbacks of a shared connection and copies them
+	 * to the Handler of every channel on it.
+	 */
+	private class FanOutHandler extends Handler {
+		SharedConnection mConnection;
+
+		FanOutHandler() {
+			super(Looper.getMainLooper());
+		}
+
+		@Override
+		public void handleMessage(Message msg) {
+			List<PubsubChannel> channels;
+			synchronized (PubsubSession.this) {
+				channels = new ArrayList<PubsubChannel>(mConnection.mChannels);
+			}
+
+			for (PubsubChannel channel : channels) {
+				Message copy = channel.mHandler.obtainMessage(msg.what, msg.arg1,
+						msg.arg2, msg.obj);
+				copy.setData(msg.getData());
+				copy.sendToTarget();
+			}
+		}
+	}
+}
@@ -0,0 +1,87 @@
+/*
+ * pubsub.io Android Library
+ * Copyright (C) 2011  Andreas Göransson
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pubsub.io.core;
+
+import java.util.Random;
+
+/**
+ * Delays between reconnect attempts: doubling from the initial delay up to the
+ * max, with a random part taken off each delay so clients that lost the same
+ * hub at the same moment don't all come back at the same moment.
+ *
+ * With a jitter of 0 the delays are exactly 1, 2, 4, 8... times the initial
+ * delay; with 1 each delay is anywhere between 0 and that.
+ */
+class Backoff {
+
+	private final long mInitialMillis;
+	private final long mMaxMillis;
+	private final double mJitter;
+	private final Random mRandom;
+
+	private int mAttempts;
+
+	/**
+	 * @param initialMillis
+	 *          Delay before the first attempt
+	 * @param maxMillis
+	 *          Longest delay
+	 * @param jitter
+	 *          Part of each delay that is random, from 0 to 1
+	 */
+	Backoff(long initialMillis, long maxMillis, double jitter) {
+		if (initialMillis <= 0 || maxMillis < initialMillis)
+			throw new IllegalArgumentException("Bad delays " + initialMillis
+					+ ", " + maxMillis);
+		if (jitter < 0 || jitter > 1)
+			throw new IllegalArgumentException("jitter must be 0..1");
+
+		mInitialMillis = initialMillis;
+		mMaxMillis = maxMillis;
+		mJitter = jitter;
+		mRandom = new Random();
+	}
+
+	/**
+	 * @return How long to wait before the next attempt
+	 */
+	synchronized long next() {
+		// Stop doubling well before the shift could overflow
+		long delay = mMaxMillis;
+		if (mAttempts < 31)
+			delay = Math.min(mMaxMillis, mInitialMillis << mAttempts);
+		mAttempts++;
+
+		return delay - (long) (delay * mJitter * mRandom.nextDouble());
+	}
+
+	/**
+	 * Start over from the initial delay, once a connection has held up.
+	 */
+	synchronized void reset() {
+		mAttempts = 0;
+	}
+
+	/**
+	 * @return Number of attempts since the last reset
+	 */
+	synchronized int getAttempts() {
+		return mAttempts;
+	}
+}
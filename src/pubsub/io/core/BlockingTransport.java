@@ -0,0 +1,568 @@
+/*
+ * pubsub.io Android Library
+ * Copyright (C) 2011  Andreas Göransson
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pubsub.io.core;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * The classic transport: a thread for connecting with a hub, and a thread
+ * for performing data transmissions when connected, with a PubsubWriter
+ * thread of its own for the writes. The threads are platform threads, or come
+ * from the executor of PubsubClient.setConnectionExecutor().
+ * 
+ * Based on the BluetoothChat example by Google.
+ */
+class BlockingTransport extends Transport {
+
+	private final static String TAG = "BlockingTransport";
+
+	/** Thread for establishing connection to PubSub.io */
+	private ConnectThread mConnectThread;
+
+	/** Thread for handling communication with PubSub.io */
+	private ConnectedThread mConnectedThread;
+
+	/** Where the threads of the current connection come from, or null */
+	private Executor mExecutor;
+
+	/**
+	 * The reader waits on this while reads are held. Not a monitor, a virtual
+	 * thread waiting in one would pin its carrier thread.
+	 */
+	private final ReentrantLock mReadLock = new ReentrantLock();
+	private final Condition mReadsReleased = mReadLock.newCondition();
+
+	BlockingTransport(PubsubClient client) {
+		super(client);
+	}
+
+	/**
+	 * Start the ConnectThread to initiate a connection to a hub.
+	 */
+	void connect(String host, int port, String sub) {
+		mExecutor = mClient.mConnectionExecutor;
+
+		// Start the thread to connect with the given device
+		mConnectThread = new ConnectThread(host, port, sub);
+		start(mConnectThread, "ConnectThread");
+	}
+
+	void close() {
+		// Cancel any thread attempting to make a connection
+		if (mConnectThread != null) {
+			mConnectThread.cancel();
+			mConnectThread = null;
+		}
+
+		// Cancel any thread currently running a connection
+		if (mConnectedThread != null) {
+			mConnectedThread.cancel();
+			mConnectedThread = null;
+		}
+	}
+
+	boolean offer(byte[] out) {
+		ConnectedThread r = connectedThread();
+		// Perform the write unsynchronized
+		return r != null && r.write(out);
+	}
+
+	boolean offerPublish(JSONObject doc) {
+		ConnectedThread r = connectedThread();
+		return r != null && r.publish(doc);
+	}
+
+	boolean offerPublish(DocWriter doc) {
+		ConnectedThread r = connectedThread();
+		return r != null && r.publish(doc);
+	}
+
+	/**
+	 * @return The thread of the connection, null if we're not connected
+	 */
+	private ConnectedThread connectedThread() {
+		// Synchronize a copy of the ConnectedThread
+		synchronized (mClient) {
+			if (mClient.getState() != PubsubClient.STATE_CONNECTED)
+				return null;
+			return mConnectedThread;
+		}
+	}
+
+	void holdReads(boolean held) {
+		// The reader checks before every read, only a waiting one needs telling
+		if (!held)
+			wakeReader();
+	}
+
+	private void wakeReader() {
+		mReadLock.lock();
+		try {
+			mReadsReleased.signalAll();
+		} finally {
+			mReadLock.unlock();
+		}
+	}
+
+	/**
+	 * Start the ConnectedThread to begin managing a connection, with the client
+	 * locked.
+	 * 
+	 * @param socket
+	 *          The socket on which the connection was made
+	 * @param sub
+	 *          The sub to hook up to
+	 */
+	private void connected(Socket socket, String sub) {
+		PubsubLog.d(TAG, "connected");
+
+		// Start the thread to manage the connection and perform transmissions
+		mConnectedThread = new ConnectedThread(socket);
+		start(mConnectedThread, "ConnectedThread");
+
+		mClient.connected(socket.getInetAddress().getHostName(), sub);
+	}
+
+	/**
+	 * Run a loop of the connection on the executor, or on a thread of its own.
+	 */
+	private void start(Runnable loop, String name) {
+		if (mExecutor != null)
+			mExecutor.execute(loop);
+		else
+			new Thread(loop, name).start();
+	}
+
+	/**
+	 * This thread runs while attempting to make an outgoing connection with a
+	 * device. It runs straight through; the connection either succeeds or fails.
+	 */
+	private class ConnectThread implements Runnable {
+		private Socket mmSocket;
+		private String host, sub;
+		private int port;
+
+		/** Set by cancel(), a cancelled thread must not report anything */
+		private volatile boolean mmCanceled;
+
+		private final ConnectionFactory mmFactory;
+
+		public ConnectThread(String host, int port, String sub) {
+			this.host = host;
+			this.port = port;
+			this.sub = sub;
+			mmFactory = mClient.mConnectionFactory;
+		}
+
+		public void run() {
+			PubsubLog.i(TAG, "BEGIN mConnectThread");
+
+			Socket tmp = null;
+
+			// Attempt to get the socket connection, trying every address of the
+			// host with a timeout each
+			try {
+				tmp = mmFactory.connect(host, port);
+			} catch (IOException e) {
+				if (!mmCanceled)
+					mClient.connectionFailed();
+				return;
+			}
+
+			mmSocket = tmp;
+
+			// Reset the ConnectThread because we're done
+			synchronized (mClient) {
+				if (mmCanceled) {
+					cancel();
+					return;
+				}
+				mConnectThread = null;
+
+				// Start the connected thread, before a stop() can get in between
+				connected(mmSocket, sub);
+			}
+		}
+
+		public void cancel() {
+			mmCanceled = true;
+			if (mmSocket == null)
+				return;
+			try {
+				mmSocket.close();
+			} catch (IOException e) {
+				PubsubLog.e(TAG, "close() of connect " + mmSocket.getInetAddress()
+						+ " socket failed", e);
+			}
+		}
+	}
+
+	/**
+	 * This thread runs during a connection with a remote device. It handles all
+	 * incoming and outgoing transmissions.
+	 */
+	private class ConnectedThread implements Runnable,
+			FrameDecoder.DeflateListener, PubsubWriter.Sink {
+		private final Socket mmSocket;
+
+		private final InputStream mmInStream;
+		private final OutputStream mmOutStream;
+
+		/** Splits the incoming bytes into complete frames */
+		private final FrameDecoder mFrameDecoder;
+
+		/** Finds the id of incoming messages in PARSE_LAZY mode */
+		private final MessageScanner mmScanner;
+
+		/** The only thread that writes to mmOutStream */
+		private final PubsubWriter mmWriter;
+		private final Executor mmExecutor;
+
+		/**
+		 * Encodes publishes into the batch of the writer, used with the writer
+		 * locked
+		 */
+		private final JsonWriter mmJson;
+
+		/** Set by cancel(), closed on purpose so nothing is lost */
+		private volatile boolean mmCanceled;
+
+		// Measurements of the current read, mmReadNanos is 0 when not measured
+		private MetricsSink mmMetrics;
+		private long mmReadNanos;
+		private long mmDecodeStart;
+
+		public ConnectedThread(Socket socket) {
+			PubsubLog.d(TAG, "create ConnectedThread");
+			mmSocket = socket;
+			InputStream tmpIn = null;
+			OutputStream tmpOut = null;
+
+			// Get the BluetoothSocket input and output streams
+			try {
+				tmpIn = socket.getInputStream();
+				tmpOut = socket.getOutputStream();
+			} catch (IOException e) {
+				PubsubLog.e(TAG, "temp sockets not created", e);
+			}
+
+			mmInStream = tmpIn;
+			mmOutStream = tmpOut;
+
+			mFrameDecoder = new FrameDecoder();
+			mmScanner = new MessageScanner();
+			mmJson = new JsonWriter(null);
+			mmWriter = new PubsubWriter(this, mClient.mWriteCapacity,
+					mClient.mWriteMaxBatch, mClient.mWriteLingerMillis);
+			mmExecutor = mExecutor;
+		}
+
+		public void run() {
+			PubsubLog.i(TAG, "BEGIN mConnectedThread");
+
+			if (mmExecutor != null)
+				mmWriter.start(mmExecutor);
+			else
+				mmWriter.start();
+
+			byte[] buffer = new byte[1024];
+			int bytes;
+
+			// Keep listening to the InputStream while connected
+			while (true) {
+				awaitReads();
+				if (mmCanceled)
+					break;
+
+				try {
+					// Read from the InputStream
+					bytes = mmInStream.read(buffer);
+
+					if (bytes > 0) {
+						mmMetrics = mClient.mMetrics;
+						if (mmMetrics != MetricsSink.NONE) {
+							mmMetrics.count(MetricsSink.BYTES_IN, bytes);
+							mmReadNanos = System.nanoTime();
+							mmDecodeStart = mmReadNanos;
+						} else {
+							mmReadNanos = 0;
+						}
+
+						// Share the obtained bytes with the app
+						mClient.mCallback.onRead(buffer, bytes);
+
+						// Hand every complete frame to process(), partial frames are kept
+						// by the decoder until the rest arrives
+						mFrameDecoder.decode(buffer, 0, bytes, this);
+					} else if (bytes == -1) {
+						// End of stream.
+						PubsubLog.e(TAG, "End of stream found (-1).");
+						if (!mmCanceled)
+							mClient.connectionLost();
+						break;
+					}
+
+				} catch (IOException e) {
+					// Closed on purpose, nothing to tell
+					if (mmCanceled)
+						break;
+					PubsubLog.e(TAG, "disconnected", e);
+					mClient.connectionLost();
+					break;
+				}
+			}
+		}
+
+		/**
+		 * Wait while a consumer holds up the reads, the hub then gets TCP
+		 * backpressure.
+		 */
+		private void awaitReads() {
+			mReadLock.lock();
+			try {
+				while (mClient.mReadsHeld && !mmCanceled)
+					mReadsReleased.await();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			} finally {
+				mReadLock.unlock();
+			}
+		}
+
+		public void onFrame(byte[] buffer, int offset, int length) {
+			if (mmReadNanos == 0) {
+				mClient.process(mmScanner, buffer, offset, length, 0);
+				return;
+			}
+
+			mmMetrics.count(MetricsSink.FRAMES_IN, 1);
+			mmMetrics.record(MetricsSink.DECODE_TIME,
+					(System.nanoTime() - mmDecodeStart) / 1000);
+			mClient.process(mmScanner, buffer, offset, length, mmReadNanos);
+			mmDecodeStart = System.nanoTime();
+		}
+
+		public void onBinaryFrame(byte[] buffer, int offset, int length) {
+			if (mmReadNanos == 0) {
+				mClient.processBinary(buffer, offset, length, 0);
+				return;
+			}
+
+			mmMetrics.count(MetricsSink.FRAMES_IN, 1);
+			mmMetrics.record(MetricsSink.DECODE_TIME,
+					(System.nanoTime() - mmDecodeStart) / 1000);
+			mClient.processBinary(buffer, offset, length, mmReadNanos);
+			mmDecodeStart = System.nanoTime();
+		}
+
+		public void onDeflatedFrame(byte[] buffer, int offset, int length) {
+			if (mmReadNanos == 0) {
+				mClient.processDeflated(mmScanner, buffer, offset, length, 0);
+				return;
+			}
+
+			mmMetrics.count(MetricsSink.FRAMES_IN, 1);
+			mmMetrics.record(MetricsSink.DECODE_TIME,
+					(System.nanoTime() - mmDecodeStart) / 1000);
+			mClient.processDeflated(mmScanner, buffer, offset, length, mmReadNanos);
+			mmDecodeStart = System.nanoTime();
+		}
+
+		/**
+		 * Frame a message into the batch of the writer thread.
+		 * 
+		 * @param buffer
+		 *          The bytes to write
+		 * @return false if the queue is full
+		 */
+		public boolean write(byte[] buffer) {
+			// In the codec of the connection, encoded here on the caller's thread
+			Codec codec = mClient.mWireCodec;
+			byte[] payload = buffer;
+			if (codec.isBinary()) {
+				try {
+					payload = codec.encode(buffer);
+				} catch (JSONException e) {
+					// Never writable, don't have the outbox offer it again
+					PubsubLog.e(TAG, e.getMessage(), e);
+					return true;
+				}
+			}
+
+			FrameBuffer frames = mmWriter.begin();
+			if (frames == null)
+				return false;
+
+			byte[] message = null;
+			try {
+				// Compressed with the writer locked, in the order of the frames
+				Compression.Compressor compressor = mClient.mWireCompressor;
+				byte[] deflated = compressor != null ? compressor.deflate(payload)
+						: null;
+				if (deflated != null)
+					frames.appendDeflatedFrame(deflated, 0, deflated.length);
+				else if (codec.isBinary())
+					frames.appendBinaryFrame(payload);
+				else
+					frames.appendFrame(payload);
+				message = buffer;
+			} finally {
+				mmWriter.commit(message);
+			}
+
+			recordQueueDepth();
+			return true;
+		}
+
+		/**
+		 * Encode a publish straight into the batch of the writer thread, so the
+		 * payload is copied only once, for Callback.onSent(). Binary and
+		 * compressed connections need the JSON bytes first.
+		 * 
+		 * @param doc
+		 * @return false if the queue is full
+		 */
+		public boolean publish(JSONObject doc) {
+			if (mClient.mWireCodec.isBinary() || mClient.mWireCompressor != null)
+				return write(PubsubParser.encodePublish(doc));
+
+			FrameBuffer frames = mmWriter.begin();
+			if (frames == null)
+				return false;
+
+			byte[] message = null;
+			try {
+				int start = beginPublish(frames);
+				PubsubParser.writePublish(mmJson, doc);
+				message = endPublish(frames, start);
+			} finally {
+				if (message == null)
+					frames.abortFrame();
+				mmWriter.commit(message);
+			}
+
+			recordQueueDepth();
+			return true;
+		}
+
+		/**
+		 * Encode a publish straight into the batch of the writer thread.
+		 * 
+		 * @param doc
+		 * @return false if the queue is full
+		 * @see #publish(JSONObject)
+		 */
+		public boolean publish(DocWriter doc) {
+			if (mClient.mWireCodec.isBinary() || mClient.mWireCompressor != null)
+				return write(PubsubParser.encodePublish(doc));
+
+			FrameBuffer frames = mmWriter.begin();
+			if (frames == null)
+				return false;
+
+			byte[] message = null;
+			try {
+				int start = beginPublish(frames);
+				PubsubParser.writePublish(mmJson, doc);
+				message = endPublish(frames, start);
+			} finally {
+				if (message == null)
+					frames.abortFrame();
+				mmWriter.commit(message);
+			}
+
+			recordQueueDepth();
+			return true;
+		}
+
+		/**
+		 * @return Where the payload starts
+		 */
+		private int beginPublish(FrameBuffer frames) {
+			frames.beginFrame();
+			mmJson.reset(frames);
+			return frames.length();
+		}
+
+		/**
+		 * @return The payload, copied for Callback.onSent()
+		 */
+		private byte[] endPublish(FrameBuffer frames, int start) {
+			if (!mmJson.isComplete())
+				throw new IllegalStateException("Incomplete message");
+
+			byte[] message = new byte[frames.length() - start];
+			System.arraycopy(frames.array(), start, message, 0, message.length);
+			frames.endFrame();
+			return message;
+		}
+
+		private void recordQueueDepth() {
+			MetricsSink metrics = mClient.mMetrics;
+			if (metrics != MetricsSink.NONE)
+				metrics.record(MetricsSink.QUEUE_DEPTH, mmWriter.getQueueDepth());
+		}
+
+		/**
+		 * Write a framed batch to the connected OutStream, called by the writer
+		 * thread.
+		 * 
+		 * @param frames
+		 *          The framed messages
+		 * @param batch
+		 *          The messages
+		 */
+		public void write(FrameBuffer frames, List<byte[]> batch)
+				throws IOException {
+			// The whole batch with one call
+			int bytes = frames.length();
+			mmOutStream.write(frames.array(), 0, bytes);
+			mmOutStream.flush();
+
+			MetricsSink metrics = mClient.mMetrics;
+			metrics.count(MetricsSink.BYTES_OUT, bytes);
+			metrics.count(MetricsSink.FRAMES_OUT, batch.size());
+
+			// Share the sent messages with the app
+			for (int i = 0; i < batch.size(); i++)
+				mClient.mCallback.onSent(batch.get(i));
+		}
+
+		public void cancel() {
+			mmCanceled = true;
+			mmWriter.cancel();
+			wakeReader();
+			try {
+				mmSocket.close();
+			} catch (IOException e) {
+				PubsubLog.e(TAG, "close() of connect socket failed", e);
+			}
+		}
+	}
+}
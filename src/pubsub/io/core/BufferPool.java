@@ -0,0 +1,135 @@
+/*
+ * pubsub.io Android Library
+ * Copyright (C) 2011  Andreas Göransson
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pubsub.io.core;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pool of direct ByteBuffers. Buffers are handed out in power of two size
+ * classes so a released buffer can be reused by any later request of the same
+ * class, allocating direct memory is slow and it's only reclaimed by the GC so
+ * we try hard not to do it on the I/O path.
+ */
+public class BufferPool {
+
+	/** Smallest buffer handed out (512 bytes) */
+	private static final int MIN_SHIFT = 9;
+
+	/** Largest pooled buffer (1 MB), anything larger is allocated every time */
+	private static final int MAX_SHIFT = 20;
+
+	/** Default number of idle buffers kept per size class */
+	private static final int DEFAULT_MAX_IDLE = 16;
+
+	private static BufferPool sDefault;
+
+	private final ConcurrentLinkedQueue<ByteBuffer>[] mIdle;
+	private final AtomicInteger[] mIdleCount;
+	private final int mMaxIdle;
+
+	/**
+	 * @return The pool shared by all connections
+	 */
+	public static synchronized BufferPool getDefault() {
+		if (sDefault == null)
+			sDefault = new BufferPool(DEFAULT_MAX_IDLE);
+		return sDefault;
+	}
+
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	public BufferPool(int maxIdle) {
+		mMaxIdle = maxIdle;
+
+		int classes = MAX_SHIFT - MIN_SHIFT + 1;
+		mIdle = new ConcurrentLinkedQueue[classes];
+		mIdleCount = new AtomicInteger[classes];
+		for (int i = 0; i < classes; i++) {
+			mIdle[i] = new ConcurrentLinkedQueue<ByteBuffer>();
+			mIdleCount[i] = new AtomicInteger();
+		}
+	}
+
+	/**
+	 * Get a cleared buffer that can hold at least capacity bytes.
+	 *
+	 * @param capacity
+	 *          The number of bytes required
+	 * @return A direct buffer, return it with release() when done
+	 */
+	public ByteBuffer acquire(int capacity) {
+		int index = sizeClass(capacity);
+		if (index < 0)
+			return ByteBuffer.allocateDirect(capacity);
+
+		ByteBuffer buffer = mIdle[index].poll();
+		if (buffer == null)
+			return ByteBuffer.allocateDirect(1 << (index + MIN_SHIFT));
+
+		mIdleCount[index].decrementAndGet();
+		buffer.clear();
+		return buffer;
+	}
+
+	/**
+	 * Return a buffer to the pool. The buffer must not be used after this.
+	 *
+	 * @param buffer
+	 *          A buffer that was handed out by acquire()
+	 */
+	public void release(ByteBuffer buffer) {
+		if (buffer == null || !buffer.isDirect())
+			return;
+
+		int capacity = buffer.capacity();
+		int index = sizeClass(capacity);
+
+		// Only keep buffers that exactly match a size class
+		if (index < 0 || capacity != 1 << (index + MIN_SHIFT))
+			return;
+
+		if (mIdleCount[index].incrementAndGet() > mMaxIdle) {
+			mIdleCount[index].decrementAndGet();
+			return;
+		}
+		mIdle[index].offer(buffer);
+	}
+
+	/**
+	 * @return The size a buffer acquired with this capacity will have
+	 */
+	public static int roundUp(int capacity) {
+		int index = sizeClass(capacity);
+		return index < 0 ? capacity : 1 << (index + MIN_SHIFT);
+	}
+
+	/**
+	 * Find the size class for a capacity, or -1 if it's too large to pool.
+	 */
+	private static int sizeClass(int capacity) {
+		if (capacity > 1 << MAX_SHIFT)
+			return -1;
+
+		int shift = MIN_SHIFT;
+		while (1 << shift < capacity)
+			shift++;
+		return shift - MIN_SHIFT;
+	}
+}
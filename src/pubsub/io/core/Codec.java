@@ -0,0 +1,92 @@
+/*
+ * pubsub.io Android Library
+ * Copyright (C) 2011  Andreas Göransson
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package pubsub.io.core;
+
+import java.io.UnsupportedEncodingException;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Turns the messages exchanged with the hub into frame payloads and back.
+ * Messages are built as UTF-8 JSON text by PubsubParser, a codec turns that
+ * into its own encoding, and turns what the hub sends back into a JSONObject,
+ * so listeners see the same docs whatever the codec.
+ *
+ * JSON is the default and what every hub understands. Any other codec is only
+ * used after the hub agreed to it, see PubsubClient.setCodec(). Codecs must be
+ * thread safe.
+ */
+public interface Codec {
+
+	/** Plain JSON text, in text frames */
+	public static final Codec JSON = new Codec() {
+		public String getName() {
+			return "json";
+		}
+
+		public boolean isBinary() {
+			return false;
+		}
+
+		public byte[] encode(byte[] json) {
+			return json;
+		}
+
+		public JSONObject decode(byte[] buffer, int offset, int length)
+				throws JSONException {
+			try {
+				return new JSONObject(new String(buffer, offset, length, "UTF-8"));
+			} catch (UnsupportedEncodingException e) {
+				throw new JSONException(e.getMessage());
+			}
+		}
+	};
+
+	/**
+	 * @return The name the codec is agreed on by with the hub
+	 */
+	public String getName();
+
+	/**
+	 * @return true if the payloads go in binary frames, see FrameDecoder
+	 */
+	public boolean isBinary();
+
+	/**
+	 * @param json
+	 *          A message as UTF-8 JSON text
+	 * @return The message in this codec
+	 * @throws JSONException
+	 *           If json isn't valid JSON
+	 */
+	public byte[] encode(byte[] json) throws JSONException;
+
+	/**
+	 * @param buffer
+	 * @param offset
+	 * @param length
+	 * @return The message in the payload
+	 * @throws JSONException
+	 *           If the payload isn't a message in this codec
+	 */
+	public JSONObject decode(byte[] buffer, int offset, int length)
+			throws JSONException;
+}
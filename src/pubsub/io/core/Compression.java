@@ -0,0 +1,266 @@
+/*
+ * pubsub.io Android Library
+ * Copyright (C) 2011  Andreas Göransson
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pubsub.io.core;
+
+import java.io.UnsupportedEncodingException;
+import java.util.zip.Adler32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Per frame compression for large messages, offered to the hub in the hello
+ * like a Codec, see PubsubClient.setCompression(). Every frame is deflated on
+ * its own with a preset dictionary both sides have, so even a single doc
+ * compresses well; the dictionary holds what the messages are made of. Frames
+ * below the threshold aren't worth the CPU and go out as they are, and so do
+ * frames that don't get any smaller.
+ *
+ * The dictionary is known by its id, the Adler-32 zlib puts in every stream
+ * made with it, and the hub only agrees to a dictionary it has. Apps whose
+ * docs share a lot of field names do better with a dictionary of their own,
+ * which the hub then has to know too, see LocalHub.setCompression().
+ */
+public class Compression {
+
+	/** Smallest payload compressed by default, in bytes */
+	public static final int DEFAULT_THRESHOLD = 256;
+
+	/** Level for WiFi, where CPU time matters more than bytes */
+	public static final int LEVEL_WIFI = Deflater.BEST_SPEED;
+
+	/** Level for a mobile network, where the bytes on the wire dominate */
+	public static final int LEVEL_MOBILE = 6;
+
+	/**
+	 * What pubsub.io messages are made of. zlib finds strings near the end of
+	 * the dictionary with shorter codes, so the most common go last.
+	 */
+	public static final byte[] DEFAULT_DICTIONARY = ascii("null"
+			+ "{\"$gt\":{\"$gte\":{\"$lt\":{\"$lte\":{\"$ne\":{\"$in\":["
+			+ "{\"name\":\"unsubscribe\",\"id\":{\"name\":\"hello\","
+			+ "{\"name\":\"subscribe\",\"query\":{\"name\":\"publish\","
+			+ "\"type\":\"time\":\"timestamp\":\"value\":\"values\":[{"
+			+ "false,true,0.0,\":\"\",\"\":[\":{\"},{\"}]},\"doc\":{\"id\":");
+
+	private final byte[] mDictionary;
+	private final long mDictionaryId;
+
+	private volatile int mLevel = Deflater.DEFAULT_COMPRESSION;
+	private volatile int mThreshold = DEFAULT_THRESHOLD;
+
+	/**
+	 * Compression with the DEFAULT_DICTIONARY, which every hub that compresses
+	 * has.
+	 */
+	public Compression() {
+		this(DEFAULT_DICTIONARY);
+	}
+
+	/**
+	 * @param dictionary
+	 *          Strings the messages are likely to have, the most common last
+	 */
+	public Compression(byte[] dictionary) {
+		mDictionary = dictionary.clone();
+
+		Adler32 adler = new Adler32();
+		adler.update(mDictionary);
+		mDictionaryId = adler.getValue();
+	}
+
+	/**
+	 * @return What the hub is asked for, the Adler-32 of the dictionary
+	 */
+	public long getDictionaryId() {
+		return mDictionaryId;
+	}
+
+	/**
+	 * Trade CPU time for bytes on the wire, applied from the next frame on.
+	 * 
+	 * @param level
+	 *          A java.util.zip.Deflater level, like LEVEL_WIFI or LEVEL_MOBILE
+	 */
+	public void setLevel(int level) {
+		if (level != Deflater.DEFAULT_COMPRESSION
+				&& (level < Deflater.NO_COMPRESSION || level > Deflater.BEST_COMPRESSION))
+			throw new IllegalArgumentException("level " + level);
+		mLevel = level;
+	}
+
+	public int getLevel() {
+		return mLevel;
+	}
+
+	/**
+	 * @param bytes
+	 *          Smallest payload that is compressed, DEFAULT_THRESHOLD if not
+	 *          set
+	 */
+	public void setThreshold(int bytes) {
+		mThreshold = bytes;
+	}
+
+	public int getThreshold() {
+		return mThreshold;
+	}
+
+	/**
+	 * @return The state of one connection
+	 */
+	Compressor newCompressor() {
+		return new Compressor();
+	}
+
+	private static byte[] ascii(String text) {
+		try {
+			return text.getBytes("UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Deflates and inflates the frames of one connection. zlib keeps native
+	 * memory for both until end(), which the connection calls when it's done.
+	 */
+	class Compressor {
+		private final Deflater mDeflater;
+		private final Inflater mInflater;
+
+		/** Deflate output, grown to the largest payload */
+		private byte[] mDeflated;
+
+		/** Inflate output, grown to the largest payload, see inflated() */
+		private byte[] mInflated;
+
+		private boolean mEnded;
+
+		Compressor() {
+			mDeflater = new Deflater();
+			mInflater = new Inflater();
+			mDeflated = new byte[1024];
+			mInflated = new byte[1024];
+		}
+
+		/**
+		 * @return The settings this compresses with
+		 */
+		Compression getCompression() {
+			return Compression.this;
+		}
+
+		/**
+		 * Compress a payload on its own.
+		 * 
+		 * @param payload
+		 * @return The compressed payload, or null if it's below the threshold,
+		 *         doesn't get any smaller or the connection is gone
+		 */
+		synchronized byte[] deflate(byte[] payload) {
+			if (mEnded || payload.length < mThreshold)
+				return null;
+
+			mDeflater.reset();
+			mDeflater.setLevel(mLevel);
+			mDeflater.setDictionary(mDictionary);
+			mDeflater.setInput(payload);
+			mDeflater.finish();
+
+			// Give up as soon as it's no smaller than the payload
+			if (mDeflated.length < payload.length)
+				mDeflated = new byte[payload.length];
+			int length = 0;
+			while (!mDeflater.finished()) {
+				if (length >= payload.length)
+					return null;
+				length += mDeflater.deflate(mDeflated, length, payload.length
+						- length);
+			}
+
+			byte[] deflated = new byte[length];
+			System.arraycopy(mDeflated, 0, deflated, 0, length);
+			return deflated;
+		}
+
+		/**
+		 * Inflate a compressed payload into inflated(), called by the reader.
+		 * 
+		 * @param buffer
+		 * @param offset
+		 * @param length
+		 * @return The length of the payload
+		 * @throws DataFormatException
+		 *           If the payload isn't compressed with our dictionary, or
+		 *           inflates to more than FrameDecoder.DEFAULT_MAX_FRAME_LENGTH
+		 */
+		synchronized int inflate(byte[] buffer, int offset, int length)
+				throws DataFormatException {
+			if (mEnded)
+				throw new DataFormatException("Connection closed");
+
+			mInflater.reset();
+			mInflater.setInput(buffer, offset, length);
+
+			int inflated = 0;
+			while (!mInflater.finished()) {
+				if (inflated == mInflated.length) {
+					if (inflated >= FrameDecoder.DEFAULT_MAX_FRAME_LENGTH)
+						throw new DataFormatException("Payload too large");
+					byte[] grown = new byte[inflated * 2];
+					System.arraycopy(mInflated, 0, grown, 0, inflated);
+					mInflated = grown;
+				}
+
+				int count = mInflater.inflate(mInflated, inflated, mInflated.length
+						- inflated);
+				if (count == 0 && mInflater.needsDictionary()) {
+					try {
+						mInflater.setDictionary(mDictionary);
+					} catch (IllegalArgumentException e) {
+						throw new DataFormatException("Unknown dictionary");
+					}
+				} else if (count == 0 && mInflater.needsInput()) {
+					throw new DataFormatException("Payload cut short");
+				}
+				inflated += count;
+			}
+			return inflated;
+		}
+
+		/**
+		 * @return The payload of the last inflate(), valid until the next one
+		 */
+		synchronized byte[] inflated() {
+			return mInflated;
+		}
+
+		/**
+		 * Free the native memory, nothing is compressed afterwards.
+		 */
+		synchronized void end() {
+			if (mEnded)
+				return;
+			mEnded = true;
+			mDeflater.end();
+			mInflater.end();
+		}
+	}
+}
@@ -0,0 +1,253 @@
+/*
+ * pubsub.io Android Library
+ * Copyright (C) 2011  Andreas Göransson
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pubsub.io.core;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.UnknownHostException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Opens the sockets to the hub: resolves the host through a small DNS cache,
+ * tries every address it resolves to, and sets the socket up for small frames
+ * that should go out right away.
+ *
+ * The defaults suit pubsub.io; Nagle's algorithm is off, since it holds back
+ * a small publish until the previous one is acknowledged, and keepalive is on
+ * so a connection through a NAT that forgot about us is eventually noticed.
+ */
+public class ConnectionFactory {
+
+	/** Default time to wait for the connect to one address */
+	public static final int DEFAULT_CONNECT_TIMEOUT_MILLIS = 10 * 1000;
+
+	/** Default time a resolved host is kept */
+	public static final long DEFAULT_DNS_TTL_MILLIS = 60 * 1000;
+
+	private static ConnectionFactory sDefault;
+
+	private volatile int mConnectTimeoutMillis = DEFAULT_CONNECT_TIMEOUT_MILLIS;
+	private volatile int mIdleTimeoutMillis = 0;
+	private volatile long mDnsTtlMillis = DEFAULT_DNS_TTL_MILLIS;
+	private volatile boolean mTcpNoDelay = true;
+	private volatile boolean mKeepAlive = true;
+	private volatile int mSendBufferSize = 0;
+	private volatile int mReceiveBufferSize = 0;
+
+	/** Resolved hosts, by name */
+	private final Map<String, Resolved> mCache;
+
+	/**
+	 * @return The factory shared by all connections
+	 */
+	public static synchronized ConnectionFactory getDefault() {
+		if (sDefault == null)
+			sDefault = new ConnectionFactory();
+		return sDefault;
+	}
+
+	public ConnectionFactory() {
+		mCache = new HashMap<String, Resolved>();
+	}
+
+	/**
+	 * @param millis
+	 *          Time to wait for the connect to one address before trying the
+	 *          next, 0 to wait as long as the system does
+	 */
+	public void setConnectTimeout(int millis) {
+		mConnectTimeoutMillis = millis;
+	}
+
+	public int getConnectTimeout() {
+		return mConnectTimeoutMillis;
+	}
+
+	/**
+	 * @param millis
+	 *          Time without a single byte from the hub after which the
+	 *          connection is considered lost, 0 (default) to never give up
+	 */
+	public void setIdleTimeout(int millis) {
+		mIdleTimeoutMillis = millis;
+	}
+
+	public int getIdleTimeout() {
+		return mIdleTimeoutMillis;
+	}
+
+	/**
+	 * @param millis
+	 *          Time a resolved host is kept, 0 to resolve on every connect
+	 */
+	public void setDnsTtl(long millis) {
+		mDnsTtlMillis = millis;
+		synchronized (mCache) {
+			mCache.clear();
+		}
+	}
+
+	/**
+	 * @param noDelay
+	 *          Send small frames right away instead of holding them back
+	 *          (default true)
+	 * @param keepAlive
+	 *          Let TCP probe an idle connection (default true)
+	 */
+	public void setTcpOptions(boolean noDelay, boolean keepAlive) {
+		mTcpNoDelay = noDelay;
+		mKeepAlive = keepAlive;
+	}
+
+	/**
+	 * @param sendBufferSize
+	 *          SO_SNDBUF in bytes, 0 (default) for the system default
+	 * @param receiveBufferSize
+	 *          SO_RCVBUF in bytes, 0 (default) for the system default
+	 */
+	public void setBufferSizes(int sendBufferSize, int receiveBufferSize) {
+		mSendBufferSize = sendBufferSize;
+		mReceiveBufferSize = receiveBufferSize;
+	}
+
+	/**
+	 * Look up every address of a host, from the cache if it was looked up
+	 * recently. This blocks while the host is resolved.
+	 *
+	 * @param host
+	 * @return The addresses, the one that last worked first
+	 * @throws UnknownHostException
+	 */
+	public InetAddress[] resolve(String host) throws UnknownHostException {
+		long now = System.currentTimeMillis();
+		synchronized (mCache) {
+			Resolved resolved = mCache.get(host);
+			if (resolved != null && now < resolved.mExpires)
+				return resolved.mAddresses.clone();
+		}
+
+		InetAddress[] addresses = InetAddress.getAllByName(host);
+		if (mDnsTtlMillis > 0) {
+			synchronized (mCache) {
+				mCache.put(host, new Resolved(addresses, now + mDnsTtlMillis));
+			}
+		}
+		return addresses.clone();
+	}
+
+	/**
+	 * Move an address that worked to the front, so the next connect tries it
+	 * first.
+	 *
+	 * @param host
+	 * @param address
+	 */
+	public void succeeded(String host, InetAddress address) {
+		synchronized (mCache) {
+			Resolved resolved = mCache.get(host);
+			if (resolved == null)
+				return;
+
+			InetAddress[] addresses = resolved.mAddresses;
+			for (int i = 1; i < addresses.length; i++) {
+				if (addresses[i].equals(address)) {
+					System.arraycopy(addresses, 0, addresses, 1, i);
+					addresses[0] = address;
+					return;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Forget a host, after none of its addresses worked. It may have moved.
+	 *
+	 * @param host
+	 */
+	public void failed(String host) {
+		synchronized (mCache) {
+			mCache.remove(host);
+		}
+	}
+
+	/**
+	 * Connect a blocking socket, trying every address of the host in turn.
+	 *
+	 * @param host
+	 * @param port
+	 * @return The connected socket
+	 * @throws IOException
+	 *           From the last address tried, if none worked
+	 */
+	public Socket connect(String host, int port) throws IOException {
+		InetAddress[] addresses = resolve(host);
+
+		IOException last = null;
+		for (int i = 0; i < addresses.length; i++) {
+			Socket socket = new Socket();
+			try {
+				configure(socket);
+				socket.connect(new InetSocketAddress(addresses[i], port),
+						mConnectTimeoutMillis);
+				socket.setSoTimeout(mIdleTimeoutMillis);
+				succeeded(host, addresses[i]);
+				return socket;
+			} catch (IOException e) {
+				last = e;
+				try {
+					socket.close();
+				} catch (IOException ignored) {
+				}
+			}
+		}
+
+		failed(host);
+		throw last != null ? last : new UnknownHostException(host);
+	}
+
+	/**
+	 * Apply the socket options, before connecting. Also used for the sockets of
+	 * non-blocking channels.
+	 *
+	 * @param socket
+	 * @throws SocketException
+	 */
+	public void configure(Socket socket) throws SocketException {
+		socket.setTcpNoDelay(mTcpNoDelay);
+		socket.setKeepAlive(mKeepAlive);
+		if (mSendBufferSize > 0)
+			socket.setSendBufferSize(mSendBufferSize);
+		if (mReceiveBufferSize > 0)
+			socket.setReceiveBufferSize(mReceiveBufferSize);
+	}
+
+	private static class Resolved {
+		final InetAddress[] mAddresses;
+		final long mExpires;
+
+		Resolved(InetAddress[] addresses, long expires) {
+			mAddresses = addresses;
+			mExpires = expires;
+		}
+	}
+}
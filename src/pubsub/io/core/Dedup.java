@@ -0,0 +1,277 @@
+/*
+ * pubsub.io Android Library
+ * Copyright (C) 2011  Andreas Göransson
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pubsub.io.core;
+
+import java.io.UnsupportedEncodingException;
+import java.util.Arrays;
+
+import org.json.JSONObject;
+
+/**
+ * Drops docs that were delivered a moment ago, see PubsubClient.setDedup().
+ * After a reconnect the hub may send docs again that made it before the
+ * connection was lost. Every doc is hashed, on its raw bytes or on the value
+ * of a key field, together with the connection and subscription it came in
+ * for, before it's parsed; a hash that was seen recently means the doc is a
+ * repeat. The same doc for another subscription, or on another connection
+ * sharing the dedup, is not a repeat.
+ *
+ * The recent hashes are kept in two fixed tables of longs, the current one and
+ * the one before. New hashes go into the current table, which takes over from
+ * the older one when it's full or once the window is over, so a doc is
+ * remembered for at least the window unless more than capacity other docs
+ * come in meanwhile, and forgotten a window or two later. Memory stays at 32
+ * to 64 bytes per doc of capacity whatever the traffic.
+ *
+ * Hashes are 64 bits, two different docs look the same about once in 2^64.
+ */
+public class Dedup {
+
+	/** Docs remembered by default */
+	public static final int DEFAULT_CAPACITY = 1024;
+
+	/** How long a doc is remembered by default */
+	public static final long DEFAULT_WINDOW_MILLIS = 60 * 1000;
+
+	private final int mCapacity;
+	private final long mWindowNanos;
+
+	/** Key field of the docs as UTF-8, null to hash the whole doc */
+	private volatile byte[] mKeyField;
+
+	// Open addressed sets of hashes, 0 is an empty slot
+	private long[] mCurrent;
+	private long[] mPrevious;
+	private final int mMask;
+
+	// How many hashes the current table has, and when it was started
+	private int mCount;
+	private long mCurrentStart;
+	private long mPreviousStart;
+
+	private long mDropped;
+
+	/**
+	 * Dedup of the last DEFAULT_CAPACITY docs, for DEFAULT_WINDOW_MILLIS.
+	 */
+	public Dedup() {
+		this(DEFAULT_CAPACITY, DEFAULT_WINDOW_MILLIS);
+	}
+
+	/**
+	 * @param capacity
+	 *          Docs remembered at least, within the window
+	 * @param windowMillis
+	 *          How long a doc is remembered at least
+	 */
+	public Dedup(int capacity, long windowMillis) {
+		if (capacity <= 0 || capacity > 1 << 28)
+			throw new IllegalArgumentException("Bad capacity " + capacity);
+		if (windowMillis <= 0)
+			throw new IllegalArgumentException("Bad window " + windowMillis);
+
+		// Keep the tables at most half full so probes stay short
+		int size = Integer.highestOneBit(capacity - 1 | 1) << 2;
+		mCapacity = capacity;
+		mWindowNanos = windowMillis * 1000000;
+		mCurrent = new long[size];
+		mPrevious = new long[size];
+		mMask = size - 1;
+		mCurrentStart = System.nanoTime();
+		mPreviousStart = mCurrentStart;
+	}
+
+	/**
+	 * Tell docs apart by the value of a top level field instead of all of their
+	 * bytes, for docs that carry an id of their own. The value is compared as
+	 * it's written, so "7" and 7 are different ids. Docs without the field are
+	 * hashed whole.
+	 * 
+	 * @param field
+	 *          Name of the field, null (default) to hash the whole doc
+	 */
+	public void setKeyField(String field) {
+		try {
+			mKeyField = field != null ? field.getBytes("UTF-8") : null;
+		} catch (UnsupportedEncodingException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	public String getKeyField() {
+		byte[] field = mKeyField;
+		try {
+			return field != null ? new String(field, "UTF-8") : null;
+		} catch (UnsupportedEncodingException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	boolean hasKeyField() {
+		return mKeyField != null;
+	}
+
+	/**
+	 * @return Number of docs dropped as repeats
+	 */
+	public synchronized long getDropped() {
+		return mDropped;
+	}
+
+	/**
+	 * Check the doc found by the last scan of a JSON message, by its key field
+	 * if it has one.
+	 * 
+	 * @param scope
+	 *          The connection and subscription the doc came in for
+	 * @param scanner
+	 *          Scanner that found the doc
+	 * @param buffer
+	 *          The buffer the scanner was given
+	 * @return true if the doc is a repeat, it's remembered otherwise
+	 */
+	boolean isRepeat(long scope, MessageScanner scanner, byte[] buffer) {
+		int offset = scanner.docOffset;
+		int length = scanner.docLength;
+
+		byte[] field = mKeyField;
+		if (field != null
+				&& scanner.findField(buffer, offset, length, field) != -1) {
+			offset = scanner.valueOffset;
+			length = scanner.valueLength;
+		}
+
+		return isRepeat(hash(scope, buffer, offset, length));
+	}
+
+	/**
+	 * Check a doc that was decoded already, by its key field written as JSON,
+	 * or the whole doc if it has none.
+	 * 
+	 * @param scope
+	 *          The connection and subscription the doc came in for
+	 * @param doc
+	 * @return true if the doc is a repeat, it's remembered otherwise
+	 */
+	boolean isRepeat(long scope, JSONObject doc) {
+		String field = getKeyField();
+		Object value = field != null ? doc.opt(field) : null;
+
+		String key;
+		if (value instanceof String)
+			key = JSONObject.quote((String) value);
+		else if (value != null)
+			key = value.toString();
+		else
+			key = doc.toString();
+
+		byte[] bytes;
+		try {
+			bytes = key.getBytes("UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new RuntimeException(e);
+		}
+		return isRepeat(hash(scope, bytes, 0, bytes.length));
+	}
+
+	/**
+	 * Check a doc by its raw bytes.
+	 * 
+	 * @param scope
+	 *          The connection and subscription the doc came in for
+	 * @return true if the doc is a repeat, it's remembered otherwise
+	 */
+	boolean isRepeat(long scope, byte[] buffer, int offset, int length) {
+		return isRepeat(hash(scope, buffer, offset, length));
+	}
+
+	/**
+	 * @return true if hash was seen within the window, it's remembered
+	 *         otherwise
+	 */
+	synchronized boolean isRepeat(long hash) {
+		if (hash == 0)
+			hash = 1;
+
+		long now = System.nanoTime();
+		if (now - mCurrentStart >= mWindowNanos || mCount >= mCapacity)
+			rotate(now);
+
+		if (contains(mCurrent, hash) || contains(mPrevious, hash)) {
+			mDropped++;
+			return true;
+		}
+
+		int i = slot(hash);
+		while (mCurrent[i] != 0)
+			i = (i + 1) & mMask;
+		mCurrent[i] = hash;
+		mCount++;
+		return false;
+	}
+
+	/**
+	 * Start a new current table, the old one stays as the previous as long as
+	 * some of it is within the window.
+	 */
+	private void rotate(long now) {
+		long[] table = mPrevious;
+		mPrevious = mCurrent;
+		mPreviousStart = mCurrentStart;
+		mCurrent = table;
+		mCurrentStart = now;
+		mCount = 0;
+		Arrays.fill(mCurrent, 0);
+
+		// The previous table went a whole window without being rotated, all of
+		// it is too old
+		if (now - mPreviousStart >= 2 * mWindowNanos)
+			Arrays.fill(mPrevious, 0);
+	}
+
+	private boolean contains(long[] table, long hash) {
+		int i = slot(hash);
+		while (table[i] != 0) {
+			if (table[i] == hash)
+				return true;
+			i = (i + 1) & mMask;
+		}
+		return false;
+	}
+
+	private int slot(long hash) {
+		return (int) (hash ^ hash >>> 32) & mMask;
+	}
+
+	/**
+	 * 64 bit FNV-1a of the bytes with the scope folded in, and the high bits
+	 * mixed down for slot().
+	 */
+	static long hash(long scope, byte[] buffer, int offset, int length) {
+		long hash = 0xcbf29ce484222325L;
+		for (int i = offset; i < offset + length; i++) {
+			hash ^= buffer[i] & 0xff;
+			hash *= 0x100000001b3L;
+		}
+		hash ^= scope * 0x9e3779b97f4a7c15L;
+		hash ^= hash >>> 33;
+		hash *= 0xff51afd7ed558ccdL;
+		return hash ^ hash >>> 33;
+	}
+}
@@ -0,0 +1,437 @@
+/*
+ * pubsub.io Android Library
+ * Copyright (C) 2011  Andreas Göransson
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pubsub.io.core;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Where the docs of one subscription go: a PubsubListener on the Executor it
+ * wants to be called on. A subclass can take the docs itself instead by
+ * overriding handle(), the Android classes use that for the handler_callback
+ * of a Handler.
+ *
+ * Optionally the docs wait in a bounded queue until the consumer takes them,
+ * see setQueue(). Without a queue every doc is handed over right away, just
+ * like before, however far behind the consumer is.
+ */
+public class Delivery {
+
+	private static final String TAG = "Delivery";
+
+	/**
+	 * Handles given to listeners start here, far above the handler_callback
+	 * constants apps use so the two never meet.
+	 */
+	public static final int FIRST_HANDLE = 0x40000000;
+
+	/** Docs handed over per run of the drain, so the thread gets a breather */
+	private static final int MAX_DRAIN = 64;
+
+	protected final int mHandle;
+	final PubsubListener mListener;
+	final Executor mExecutor;
+
+	// Queue settings, mCapacity 0 means no queue
+	private int mCapacity;
+	private int mPolicy;
+	private String[] mKeyPath;
+
+	/** Docs waiting for the consumer, in order, keyed for OVERFLOW_CONFLATE */
+	private final LinkedHashMap<Object, Object> mQueue;
+	private long mNextKey;
+
+	/** True while a drain is scheduled on the executor */
+	private boolean mScheduled;
+	private boolean mClosed;
+
+	/** The client whose reads OVERFLOW_BLOCK holds, see attach() */
+	private PubsubClient mClient;
+
+	/** True while this queue holds the reads of mClient */
+	private boolean mHolding;
+
+	// What offer() leaves to do outside the lock
+	private static final int SCHEDULE_DRAIN = 1;
+	private static final int HOLD_READS = 2;
+
+	private final AtomicLong mDropped = new AtomicLong();
+	private final AtomicLong mConflated = new AtomicLong();
+
+	private final Runnable mDrain = new Runnable() {
+		public void run() {
+			drain();
+		}
+	};
+
+	/**
+	 * Deliver to a listener.
+	 *
+	 * @param handle
+	 *          The handle of the subscription
+	 * @param listener
+	 * @param executor
+	 *          Where the listener is called, see PubsubExecutors
+	 */
+	public Delivery(int handle, PubsubListener listener, Executor executor) {
+		mHandle = handle;
+		mListener = listener;
+		mExecutor = executor;
+		mQueue = new LinkedHashMap<Object, Object>();
+	}
+
+	/**
+	 * Deliver to handle(), which the subclass overrides.
+	 *
+	 * @param handle
+	 *          The handle of the subscription
+	 * @param executor
+	 *          Where handle() is called
+	 */
+	protected Delivery(int handle, Executor executor) {
+		this(handle, null, executor);
+	}
+
+	/**
+	 * Put a bounded queue between the reader and the consumer.
+	 *
+	 * @param capacity
+	 *          Max number of docs waiting, 0 for no queue
+	 * @param policy
+	 *          What to do when it's full, one of the PubsubClient.OVERFLOW_
+	 *          constants
+	 * @param keyPath
+	 *          Dotted path of the key docs are conflated by, for
+	 *          PubsubClient.OVERFLOW_CONFLATE
+	 */
+	public void setQueue(int capacity, int policy, String keyPath) {
+		if (policy == PubsubClient.OVERFLOW_CONFLATE && keyPath == null)
+			throw new IllegalArgumentException("OVERFLOW_CONFLATE needs a keyPath");
+
+		PubsubClient release;
+		synchronized (this) {
+			mCapacity = capacity;
+			mPolicy = policy;
+			mKeyPath = keyPath != null ? keyPath.split("\\.") : null;
+
+			// Reads held for the old capacity or policy may go on
+			release = unhold(policy != PubsubClient.OVERFLOW_BLOCK
+					|| mQueue.size() < capacity);
+		}
+
+		if (release != null)
+			release.releaseReads();
+	}
+
+	/**
+	 * Hold the reads of client while an OVERFLOW_BLOCK queue is full. The
+	 * client calls this when it takes the delivery, anything else that hands
+	 * docs from a client to the delivery has to call it itself; an unattached
+	 * OVERFLOW_BLOCK queue drops the newest doc instead.
+	 * 
+	 * @param client
+	 */
+	public synchronized void attach(PubsubClient client) {
+		mClient = client;
+	}
+
+	/**
+	 * @return Docs dropped because the queue was full
+	 */
+	public long getDropped() {
+		return mDropped.get();
+	}
+
+	/**
+	 * @return Docs replaced by a newer doc with the same key
+	 */
+	public long getConflated() {
+		return mConflated.get();
+	}
+
+	/**
+	 * @return Docs waiting for the consumer
+	 */
+	public synchronized int getQueued() {
+		return mQueue.size();
+	}
+
+	/**
+	 * Stop delivering, docs still queued are dropped and reads held for the
+	 * queue go on.
+	 */
+	public void close() {
+		PubsubClient release;
+		synchronized (this) {
+			mClosed = true;
+			mQueue.clear();
+			release = unhold(true);
+		}
+
+		if (release != null)
+			release.releaseReads();
+	}
+
+	/**
+	 * Hand a doc to the consumer, called by the reader. A LazyDoc is parsed on
+	 * the consumer's thread, so it's not parsed on the I/O thread unless the
+	 * consumer runs on it (or the doc has to be conflated).
+	 *
+	 * @param doc
+	 *          A JSONObject or a LazyDoc
+	 * @param readNanos
+	 *          System.nanoTime() of the read that completed the doc, 0 if it's
+	 *          not measured
+	 * @param metrics
+	 *          Where the time until the consumer is called goes
+	 */
+	public void deliver(final Object doc, final long readNanos,
+			final MetricsSink metrics) {
+		boolean queued;
+		synchronized (this) {
+			queued = mCapacity > 0;
+		}
+
+		if (!queued) {
+			// Don't allocate a Runnable just to run it right here
+			if (mExecutor == PubsubExecutors.CALLER) {
+				consume(doc, readNanos, metrics);
+			} else if (readNanos == 0) {
+				post(doc);
+			} else {
+				mExecutor.execute(new Runnable() {
+					public void run() {
+						consume(doc, readNanos, metrics);
+					}
+				});
+			}
+			return;
+		}
+
+		PubsubClient hold;
+		int todo;
+		synchronized (this) {
+			todo = offer(readNanos != 0 ? new Stamped(doc, readNanos, metrics)
+					: doc);
+			hold = mClient;
+		}
+
+		if ((todo & HOLD_READS) != 0)
+			hold.holdReads();
+		if ((todo & SCHEDULE_DRAIN) != 0)
+			mExecutor.execute(mDrain);
+	}
+
+	/**
+	 * Queue a doc according to the policy, with the lock held.
+	 *
+	 * @return SCHEDULE_DRAIN if a drain has to be scheduled, HOLD_READS if the
+	 *         reads of the client have to be held
+	 */
+	private int offer(Object doc) {
+		Object key = null;
+		if (mPolicy == PubsubClient.OVERFLOW_CONFLATE) {
+			key = conflationKey(doc);
+			if (key != null && mQueue.containsKey(key)) {
+				// Replacing keeps the place in the queue
+				mQueue.put(key, doc);
+				mConflated.incrementAndGet();
+				return 0;
+			}
+		}
+
+		int todo = 0;
+		while (!mClosed && mCapacity > 0 && mQueue.size() >= mCapacity) {
+			if (mPolicy == PubsubClient.OVERFLOW_BLOCK) {
+				// Stop reading instead of blocking the reader, which on NIO is
+				// the thread of every connection. The doc still goes in, the
+				// hub gets TCP backpressure.
+				if (mClient == null) {
+					// No reads to hold, keep the bound
+					mDropped.incrementAndGet();
+					return 0;
+				}
+				if (!mHolding) {
+					mHolding = true;
+					todo = HOLD_READS;
+				}
+				break;
+			} else if (mPolicy == PubsubClient.OVERFLOW_DROP_NEWEST) {
+				mDropped.incrementAndGet();
+				return 0;
+			} else {
+				// OVERFLOW_DROP_OLDEST, and OVERFLOW_CONFLATE once every key is taken
+				Iterator<Object> oldest = mQueue.values().iterator();
+				oldest.next();
+				oldest.remove();
+				mDropped.incrementAndGet();
+			}
+		}
+
+		if (mClosed)
+			return 0;
+
+		mQueue.put(key != null ? key : Long.valueOf(mNextKey++), doc);
+
+		if (mScheduled)
+			return todo;
+		mScheduled = true;
+		return todo | SCHEDULE_DRAIN;
+	}
+
+	/**
+	 * Stop holding the reads if when, with the lock held.
+	 *
+	 * @return The client to release the reads of outside the lock, or null
+	 */
+	private PubsubClient unhold(boolean when) {
+		if (!mHolding || !when)
+			return null;
+		mHolding = false;
+		return mClient;
+	}
+
+	/**
+	 * Hand queued docs to the consumer, runs on the executor.
+	 */
+	private void drain() {
+		for (int i = 0; i < MAX_DRAIN; i++) {
+			Object queued;
+			PubsubClient release;
+			synchronized (this) {
+				if (mQueue.isEmpty()) {
+					mScheduled = false;
+					return;
+				}
+				Iterator<Object> first = mQueue.values().iterator();
+				queued = first.next();
+				first.remove();
+
+				// Read again once the queue is half empty
+				release = unhold(mQueue.size() <= mCapacity / 2);
+			}
+
+			if (release != null)
+				release.releaseReads();
+
+			if (queued instanceof Stamped) {
+				Stamped stamped = (Stamped) queued;
+				consume(stamped.mDoc, stamped.mReadNanos, stamped.mMetrics);
+			} else {
+				consume(queued, 0, null);
+			}
+		}
+
+		// More left, let others have a go at the thread first
+		mExecutor.execute(mDrain);
+	}
+
+	private void consume(Object doc, long readNanos, MetricsSink metrics) {
+		if (readNanos != 0)
+			metrics.record(MetricsSink.DELIVERY_TIME,
+					(System.nanoTime() - readNanos) / 1000);
+
+		handle(doc);
+	}
+
+	/**
+	 * Hand a doc that isn't queued or timed to the consumer, on the executor.
+	 * A subclass with a cheaper way to get there can override this.
+	 *
+	 * @param doc
+	 *          A JSONObject or a LazyDoc
+	 */
+	protected void post(final Object doc) {
+		mExecutor.execute(new Runnable() {
+			public void run() {
+				handle(doc);
+			}
+		});
+	}
+
+	/**
+	 * Hand a doc to the consumer, called on the executor. Calls the listener,
+	 * a subclass without one overrides this.
+	 *
+	 * @param doc
+	 *          A JSONObject or a LazyDoc
+	 */
+	protected void handle(Object doc) {
+		JSONObject json;
+		try {
+			json = doc instanceof LazyDoc ? ((LazyDoc) doc).get() : (JSONObject) doc;
+		} catch (JSONException e) {
+			PubsubLog.e(TAG, e.getMessage(), e);
+			return;
+		}
+
+		try {
+			mListener.onDoc(mHandle, json);
+		} catch (RuntimeException e) {
+			// One broken listener must not take the connection down
+			PubsubLog.e(TAG, "Listener for " + mHandle + " failed", e);
+		}
+	}
+
+	/**
+	 * @return The value at the key path as a String, or null if the doc
+	 *         doesn't have one and can't be conflated
+	 */
+	private Object conflationKey(Object doc) {
+		if (doc instanceof Stamped)
+			doc = ((Stamped) doc).mDoc;
+
+		Object value;
+		try {
+			value = doc instanceof LazyDoc ? ((LazyDoc) doc).get() : doc;
+		} catch (JSONException e) {
+			return null;
+		}
+
+		for (int i = 0; i < mKeyPath.length; i++) {
+			if (!(value instanceof JSONObject))
+				return null;
+			value = ((JSONObject) value).opt(mKeyPath[i]);
+		}
+
+		// Strings so keys can't clash with the Long keys of unkeyed docs
+		return value != null ? "k" + value : null;
+	}
+
+	/**
+	 * A queued doc with the time it was read, only when that's measured.
+	 */
+	private static class Stamped {
+		final Object mDoc;
+		final long mReadNanos;
+		final MetricsSink mMetrics;
+
+		Stamped(Object doc, long readNanos, MetricsSink metrics) {
+			mDoc = doc;
+			mReadNanos = readNanos;
+			mMetrics = metrics;
+		}
+	}
+}
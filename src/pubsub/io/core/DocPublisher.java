@@ -0,0 +1,436 @@
+/*
+ * pubsub.io Android Library
+ * Copyright (C) 2011  Andreas Göransson
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pubsub.io.core;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * The docs matching a filter as a PubsubFlow.Publisher, for consumers that
+ * want to say how many docs they can take. Every subscriber gets the docs
+ * that arrive after it subscribed, as many as it asked for with request(),
+ * and the rest wait in a buffer of its own. The hub subscription is made when
+ * the first subscriber comes and dropped when the last one cancels, so a
+ * publisher nobody subscribes to costs nothing.
+ *
+ * Nothing is dropped. Once any subscriber's buffer is full the client stops
+ * reading from the hub until it's half empty again, which holds up every
+ * other subscription of the connection too and leaves the hub with TCP
+ * backpressure. Reading stops after the current read, so a buffer can go
+ * over its capacity by the docs of one read.
+ *
+ * Unsubscribing the handle completes every subscriber once it has had the
+ * docs already buffered for it; subscribing again afterwards starts over.
+ */
+public class DocPublisher extends Delivery implements
+		PubsubFlow.Publisher<JSONObject> {
+
+	private static final String TAG = "DocPublisher";
+
+	/** Docs handed over per run of a drain, so the thread gets a breather */
+	private static final int MAX_DRAIN = 64;
+
+	private final PubsubClient mClient;
+	private final JSONObject mFilter;
+	private final int mCapacity;
+
+	/** Subscribers that get the docs as they arrive */
+	private final List<DocSubscription> mSubscribers;
+
+	/** Subscribers with a full buffer, reads are held while there are any */
+	private int mFull;
+
+	/** Held while the hub subscription is changed, before the publisher */
+	private final Object mWireLock = new Object();
+	private boolean mWireSubscribed;
+
+	/** Set while updateWire() unsubscribes, which calls close() */
+	private boolean mUnsubscribing;
+
+	/**
+	 * @param client
+	 *          The client whose docs are published
+	 * @param handle
+	 *          The handle of the subscription, see Delivery.FIRST_HANDLE
+	 * @param json_filter
+	 * @param capacity
+	 *          Docs buffered per subscriber before reading stops
+	 * @param executor
+	 *          Where the subscribers are called, see PubsubExecutors
+	 */
+	public DocPublisher(PubsubClient client, int handle, JSONObject json_filter,
+			int capacity, Executor executor) {
+		super(handle, executor);
+		if (capacity < 1)
+			throw new IllegalArgumentException("capacity " + capacity);
+
+		mClient = client;
+		mFilter = json_filter;
+		mCapacity = capacity;
+		mSubscribers = new ArrayList<DocSubscription>();
+	}
+
+	/**
+	 * @return The handle of the hub subscription, for unsubscribe()
+	 */
+	public int getHandle() {
+		return mHandle;
+	}
+
+	/**
+	 * @return Docs waiting in the fullest buffer
+	 */
+	@Override
+	public synchronized int getQueued() {
+		int queued = 0;
+		for (int i = 0; i < mSubscribers.size(); i++)
+			queued = Math.max(queued, mSubscribers.get(i).mmQueue.size());
+		return queued;
+	}
+
+	public void subscribe(
+			PubsubFlow.Subscriber<? super JSONObject> subscriber) {
+		if (subscriber == null)
+			throw new NullPointerException("subscriber");
+
+		DocSubscription subscription = new DocSubscription(subscriber);
+		synchronized (this) {
+			mSubscribers.add(subscription);
+		}
+
+		// Nothing else reaches the subscriber until onSubscribe() returns
+		try {
+			subscriber.onSubscribe(subscription);
+		} catch (RuntimeException e) {
+			PubsubLog.e(TAG, "onSubscribe() of " + mHandle + " failed", e);
+			subscription.cancel();
+		}
+
+		try {
+			updateWire();
+		} catch (JSONException e) {
+			subscription.fail(e);
+		}
+		subscription.ready();
+	}
+
+	/**
+	 * Queue a doc for every subscriber, called by the reader.
+	 */
+	@Override
+	public void deliver(Object doc, long readNanos, MetricsSink metrics) {
+		boolean hold = false;
+		List<DocSubscription> drains = null;
+		synchronized (this) {
+			for (int i = 0; i < mSubscribers.size(); i++) {
+				DocSubscription subscription = mSubscribers.get(i);
+				subscription.mmQueue.add(doc);
+
+				if (!subscription.mmFull
+						&& subscription.mmQueue.size() >= mCapacity) {
+					subscription.mmFull = true;
+					hold |= mFull++ == 0;
+				}
+
+				if (!subscription.mmScheduled && subscription.mmDemand > 0) {
+					subscription.mmScheduled = true;
+					if (drains == null)
+						drains = new ArrayList<DocSubscription>(mSubscribers.size());
+					drains.add(subscription);
+				}
+			}
+		}
+
+		if (hold)
+			mClient.holdReads();
+		if (drains != null)
+			for (int i = 0; i < drains.size(); i++)
+				mExecutor.execute(drains.get(i));
+	}
+
+	/**
+	 * The hub subscription is gone, complete every subscriber once it has had
+	 * what's already buffered for it.
+	 */
+	@Override
+	public void close() {
+		synchronized (mWireLock) {
+			// Just the last subscriber leaving, a new one may be on its way in
+			if (mUnsubscribing)
+				return;
+			mWireSubscribed = false;
+		}
+
+		boolean release;
+		List<DocSubscription> ended;
+		synchronized (this) {
+			ended = new ArrayList<DocSubscription>(mSubscribers);
+			mSubscribers.clear();
+
+			// No more docs are coming, so nothing to hold the reads for
+			for (int i = 0; i < ended.size(); i++)
+				ended.get(i).mmFull = false;
+			release = mFull > 0;
+			mFull = 0;
+		}
+
+		if (release)
+			mClient.releaseReads();
+		for (int i = 0; i < ended.size(); i++)
+			ended.get(i).complete();
+	}
+
+	/**
+	 * Subscribe to the hub while there are subscribers, and unsubscribe when
+	 * the last one is gone.
+	 */
+	private void updateWire() throws JSONException {
+		synchronized (mWireLock) {
+			boolean wanted;
+			synchronized (this) {
+				wanted = !mSubscribers.isEmpty();
+			}
+			if (wanted == mWireSubscribed)
+				return;
+
+			mWireSubscribed = wanted;
+			if (wanted) {
+				mClient.addListener(this);
+				mClient.subscribe(mFilter, mHandle);
+			} else {
+				mUnsubscribing = true;
+				try {
+					mClient.unsubscribe(mHandle);
+				} finally {
+					mUnsubscribing = false;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Drop a subscriber and its buffer.
+	 */
+	private void remove(DocSubscription subscription) {
+		boolean release = false;
+		synchronized (this) {
+			if (!mSubscribers.remove(subscription))
+				return;
+			subscription.mmQueue.clear();
+			if (subscription.mmFull) {
+				subscription.mmFull = false;
+				release = --mFull == 0;
+			}
+		}
+
+		if (release)
+			mClient.releaseReads();
+		try {
+			updateWire();
+		} catch (JSONException e) {
+			// Unsubscribing doesn't parse anything
+			PubsubLog.e(TAG, e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * One subscriber, with its buffer and demand. Also the drain that hands the
+	 * docs over on the executor, only one runs at a time. Everything is guarded
+	 * by the publisher.
+	 */
+	private class DocSubscription implements PubsubFlow.Subscription,
+			Runnable {
+		private final PubsubFlow.Subscriber<? super JSONObject> mmSubscriber;
+
+		/** Docs waiting for demand, JSONObjects or LazyDocs */
+		private final LinkedList<Object> mmQueue;
+		private long mmDemand;
+		private boolean mmFull;
+
+		/** Set while the drain runs or is due, and until onSubscribe() returns */
+		private boolean mmScheduled = true;
+
+		// Ending, mmCompleted once the buffer is empty, mmError right away
+		private boolean mmCompleted;
+		private Throwable mmError;
+
+		/** Nothing more is signalled */
+		private boolean mmDone;
+
+		DocSubscription(PubsubFlow.Subscriber<? super JSONObject> subscriber) {
+			mmSubscriber = subscriber;
+			mmQueue = new LinkedList<Object>();
+		}
+
+		public void request(long n) {
+			if (n <= 0) {
+				fail(new IllegalArgumentException("request(" + n
+						+ "), must be greater than 0"));
+				return;
+			}
+
+			synchronized (DocPublisher.this) {
+				if (mmDone)
+					return;
+				mmDemand += n;
+				if (mmDemand < 0)
+					mmDemand = Long.MAX_VALUE;
+			}
+			schedule();
+		}
+
+		public void cancel() {
+			synchronized (DocPublisher.this) {
+				if (mmDone)
+					return;
+				mmDone = true;
+			}
+			remove(this);
+		}
+
+		/**
+		 * onSubscribe() has returned, start signalling.
+		 */
+		void ready() {
+			synchronized (DocPublisher.this) {
+				mmScheduled = false;
+			}
+			schedule();
+		}
+
+		/**
+		 * End with onComplete() after the buffered docs.
+		 */
+		void complete() {
+			synchronized (DocPublisher.this) {
+				mmCompleted = true;
+			}
+			schedule();
+		}
+
+		/**
+		 * End with onError() right away, buffered docs are dropped.
+		 */
+		void fail(Throwable error) {
+			synchronized (DocPublisher.this) {
+				if (mmDone || mmError != null)
+					return;
+				mmError = error;
+			}
+			remove(this);
+			schedule();
+		}
+
+		/**
+		 * Run the drain if there's something for it to do.
+		 */
+		private void schedule() {
+			synchronized (DocPublisher.this) {
+				if (mmScheduled || mmDone)
+					return;
+				if (mmError == null && !(mmDemand > 0 && !mmQueue.isEmpty())
+						&& !(mmCompleted && mmQueue.isEmpty()))
+					return;
+				mmScheduled = true;
+			}
+			mExecutor.execute(this);
+		}
+
+		/**
+		 * Hand buffered docs to the subscriber, runs on the executor.
+		 */
+		public void run() {
+			boolean caller = mExecutor == PubsubExecutors.CALLER;
+			for (int i = 0; caller || i < MAX_DRAIN; i++) {
+				Object doc = null;
+				Throwable error = null;
+				boolean release = false;
+				synchronized (DocPublisher.this) {
+					if (mmDone) {
+						return;
+					} else if (mmError != null) {
+						error = mmError;
+						mmDone = true;
+					} else if (mmQueue.isEmpty() && mmCompleted) {
+						mmDone = true;
+					} else if (mmQueue.isEmpty() || mmDemand == 0) {
+						mmScheduled = false;
+						return;
+					} else {
+						doc = mmQueue.removeFirst();
+						if (mmDemand != Long.MAX_VALUE)
+							mmDemand--;
+
+						// Half empty, the reader can go on
+						if (mmFull && mmQueue.size() <= mCapacity / 2) {
+							mmFull = false;
+							release = --mFull == 0;
+						}
+					}
+				}
+
+				if (release)
+					mClient.releaseReads();
+
+				if (doc != null) {
+					onNext(doc);
+				} else if (error != null) {
+					mmSubscriber.onError(error);
+					return;
+				} else {
+					mmSubscriber.onComplete();
+					return;
+				}
+			}
+
+			// More left, let others have a go at the thread first
+			mExecutor.execute(this);
+		}
+
+		private void onNext(Object doc) {
+			JSONObject json;
+			try {
+				json = doc instanceof LazyDoc ? ((LazyDoc) doc).get()
+						: (JSONObject) doc;
+			} catch (JSONException e) {
+				PubsubLog.e(TAG, e.getMessage(), e);
+
+				// Not handed over, so not counted against the demand
+				synchronized (DocPublisher.this) {
+					if (mmDemand != Long.MAX_VALUE)
+						mmDemand++;
+				}
+				return;
+			}
+
+			try {
+				mmSubscriber.onNext(json);
+			} catch (RuntimeException e) {
+				// A subscriber that throws is done, the others go on
+				PubsubLog.e(TAG, "Subscriber of " + mHandle + " failed", e);
+				cancel();
+			}
+		}
+	}
+}
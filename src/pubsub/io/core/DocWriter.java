@@ -0,0 +1,44 @@
+/*
+ * pubsub.io Android Library
+ * Copyright (C) 2011  Andreas Göransson
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pubsub.io.core;
+
+/**
+ * Writes a doc straight to the wire, without building a JSONObject first. For
+ * example, publishing an accelerometer reading:
+ * 
+ * <pre>
+ * mPubsub.publish(new DocWriter() {
+ * 	public void writeDoc(JsonWriter json) {
+ * 		json.beginObject().name(&quot;x&quot;).value(x).name(&quot;y&quot;).value(y)
+ * 				.name(&quot;z&quot;).value(z).endObject();
+ * 	}
+ * });
+ * </pre>
+ * 
+ * writeDoc is called right away, on the thread that publishes.
+ */
+public interface DocWriter {
+
+	/**
+	 * Write the doc as exactly one JSON object.
+	 * 
+	 * @param json
+	 */
+	public void writeDoc(JsonWriter json);
+}
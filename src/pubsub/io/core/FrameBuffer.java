@@ -0,0 +1,242 @@
+/*
+ * pubsub.io Android Library
+ * Copyright (C) 2011  Andreas Göransson
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pubsub.io.core;
+
+/**
+ * Reusable buffer that outgoing frames are built in. The 0x00 header, the
+ * payload and the 0xFD footer are written straight into one array, so the
+ * payload is copied exactly once and a batch of frames can be written to the
+ * socket with a single call. Binary and compressed frames, see FrameDecoder,
+ * go in the same buffer.
+ *
+ * The buffer grows to fit the largest batch and is shrunk back by clear() if a
+ * single huge batch made it much larger than usual. Not thread safe,
+ * PubsubWriter hands out the buffers of its batches one thread at a time.
+ */
+public class FrameBuffer {
+
+	/** Initial size, and the size we shrink back to */
+	private static final int INITIAL_CAPACITY = 4096;
+
+	/** Anything above this is released again by clear() */
+	private static final int MAX_RETAINED_CAPACITY = 256 * 1024;
+
+	private byte[] mBuffer;
+	private int mLength;
+
+	/** Start of the frame being built, -1 when there is none */
+	private int mFrameStart = -1;
+
+	/** True if the frame being built is a binary one */
+	private boolean mBinaryFrame;
+
+	public FrameBuffer() {
+		mBuffer = new byte[INITIAL_CAPACITY];
+	}
+
+	/**
+	 * Add a complete frame for the payload.
+	 *
+	 * @param payload
+	 *          The message, without header and footer
+	 */
+	public void appendFrame(byte[] payload) {
+		appendFrame(payload, 0, payload.length);
+	}
+
+	/**
+	 * Add a complete frame for part of an array.
+	 */
+	public void appendFrame(byte[] payload, int offset, int length) {
+		ensureCapacity(length + 2);
+		mBuffer[mLength++] = FrameDecoder.HEADER;
+		System.arraycopy(payload, offset, mBuffer, mLength, length);
+		mLength += length;
+		mBuffer[mLength++] = FrameDecoder.FOOTER;
+	}
+
+	/**
+	 * Add a complete binary frame for a payload.
+	 */
+	public void appendBinaryFrame(byte[] payload) {
+		appendBinaryFrame(payload, 0, payload.length);
+	}
+
+	/**
+	 * Add a complete binary frame for part of an array.
+	 */
+	public void appendBinaryFrame(byte[] payload, int offset, int length) {
+		appendLengthFrame(FrameDecoder.BINARY_HEADER, payload, offset, length);
+	}
+
+	/**
+	 * Add a complete compressed frame for a payload from Compression.
+	 */
+	public void appendDeflatedFrame(byte[] payload, int offset, int length) {
+		appendLengthFrame(FrameDecoder.DEFLATE_HEADER, payload, offset, length);
+	}
+
+	private void appendLengthFrame(byte header, byte[] payload, int offset,
+			int length) {
+		ensureCapacity(FrameDecoder.BINARY_HEADER_LENGTH + length);
+		mBuffer[mLength++] = header;
+		putLength(mLength, length);
+		mLength += 4;
+		System.arraycopy(payload, offset, mBuffer, mLength, length);
+		mLength += length;
+	}
+
+	/**
+	 * Start a frame whose payload is written piece by piece with write(), and
+	 * finished with endFrame().
+	 */
+	public void beginFrame() {
+		if (mFrameStart != -1)
+			throw new IllegalStateException("Frame already started");
+
+		ensureCapacity(1);
+		mFrameStart = mLength;
+		mBinaryFrame = false;
+		mBuffer[mLength++] = FrameDecoder.HEADER;
+	}
+
+	/**
+	 * Start a binary frame whose payload is written piece by piece with
+	 * write(), and finished with endFrame().
+	 */
+	public void beginBinaryFrame() {
+		if (mFrameStart != -1)
+			throw new IllegalStateException("Frame already started");
+
+		ensureCapacity(FrameDecoder.BINARY_HEADER_LENGTH);
+		mFrameStart = mLength;
+		mBinaryFrame = true;
+		mBuffer[mLength] = FrameDecoder.BINARY_HEADER;
+		mLength += FrameDecoder.BINARY_HEADER_LENGTH;
+	}
+
+	/**
+	 * Finish the frame started with beginFrame() or beginBinaryFrame().
+	 */
+	public void endFrame() {
+		if (mFrameStart == -1)
+			throw new IllegalStateException("No frame started");
+
+		if (mBinaryFrame) {
+			// Now the length is known
+			putLength(mFrameStart + 1, mLength - mFrameStart
+					- FrameDecoder.BINARY_HEADER_LENGTH);
+		} else {
+			ensureCapacity(1);
+			mBuffer[mLength++] = FrameDecoder.FOOTER;
+		}
+		mFrameStart = -1;
+	}
+
+	/**
+	 * Throw away the frame started with beginFrame(), for example when encoding
+	 * the payload failed.
+	 */
+	public void abortFrame() {
+		if (mFrameStart != -1) {
+			mLength = mFrameStart;
+			mFrameStart = -1;
+		}
+	}
+
+	/**
+	 * Add a single payload byte to the current frame.
+	 */
+	public void write(int b) {
+		ensureCapacity(1);
+		mBuffer[mLength++] = (byte) b;
+	}
+
+	/**
+	 * Add payload bytes to the current frame.
+	 */
+	public void write(byte[] data, int offset, int length) {
+		ensureCapacity(length);
+		System.arraycopy(data, offset, mBuffer, mLength, length);
+		mLength += length;
+	}
+
+	/**
+	 * Make room for at least count more bytes, and return the array to write
+	 * them to, starting at length(). Used by encoders that write straight into
+	 * the array, they call skip() afterwards.
+	 */
+	public byte[] reserve(int count) {
+		ensureCapacity(count);
+		return mBuffer;
+	}
+
+	/**
+	 * Account for count bytes written to the array returned by reserve().
+	 */
+	public void skip(int count) {
+		mLength += count;
+	}
+
+	/**
+	 * @return The backing array, valid until the next write
+	 */
+	public byte[] array() {
+		return mBuffer;
+	}
+
+	/**
+	 * @return Number of bytes in the buffer
+	 */
+	public int length() {
+		return mLength;
+	}
+
+	/**
+	 * Empty the buffer so it can be reused for the next batch.
+	 */
+	public void clear() {
+		mLength = 0;
+		mFrameStart = -1;
+
+		if (mBuffer.length > MAX_RETAINED_CAPACITY)
+			mBuffer = new byte[INITIAL_CAPACITY];
+	}
+
+	private void putLength(int index, int length) {
+		mBuffer[index] = (byte) (length >>> 24);
+		mBuffer[index + 1] = (byte) (length >>> 16);
+		mBuffer[index + 2] = (byte) (length >>> 8);
+		mBuffer[index + 3] = (byte) length;
+	}
+
+	private void ensureCapacity(int count) {
+		int required = mLength + count;
+		if (required <= mBuffer.length)
+			return;
+
+		int size = mBuffer.length * 2;
+		while (size < required)
+			size *= 2;
+
+		byte[] grown = new byte[size];
+		System.arraycopy(mBuffer, 0, grown, 0, mLength);
+		mBuffer = grown;
+	}
+}
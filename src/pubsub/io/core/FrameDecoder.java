@@ -0,0 +1,463 @@
+/*
+ * pubsub.io Android Library
+ * Copyright (C) 2011  Andreas Göransson
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pubsub.io.core;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Incremental decoder for the pubsub.io wire framing. Every frame starts with a
+ * 0x00 header and ends with a 0xFD footer, the same framing that is written by
+ * the outgoing side of PubsubClient.
+ *
+ * Bytes are fed to the decoder as they are read from the socket, the decoder
+ * keeps any partial frame between reads and hands out every complete payload
+ * exactly once. Each byte is only looked at once, so a burst of frames is
+ * decoded in linear time.
+ *
+ * Neither 0x00 nor 0xFD can show up inside UTF-8 encoded JSON (0xFD is never a
+ * valid UTF-8 byte and JSON always escapes control characters) so the frame
+ * boundaries are found without decoding anything, and a payload is never
+ * turned into characters before all of its bytes have arrived.
+ *
+ * Binary payloads, see Codec, can hold any byte. They go in frames that start
+ * with a 0x01 header followed by the payload length as a 4 byte big endian
+ * int, and have no footer. Only a BinaryListener is given those, for any
+ * other listener they are dropped.
+ *
+ * Compressed payloads, see Compression, go in frames like binary ones that
+ * start with a 0x02 header instead. Only a DeflateListener is given those.
+ */
+public class FrameDecoder {
+
+	/** First byte of every frame */
+	public static final byte HEADER = (byte) 0x00;
+
+	/** Last byte of every frame */
+	public static final byte FOOTER = (byte) 0xFD;
+
+	/** First byte of every binary frame, followed by the payload length */
+	public static final byte BINARY_HEADER = (byte) 0x01;
+
+	/** First byte of every compressed frame, followed by the payload length */
+	public static final byte DEFLATE_HEADER = (byte) 0x02;
+
+	/** Bytes of a binary frame before the payload */
+	public static final int BINARY_HEADER_LENGTH = 5;
+
+	/** Default upper bound for a single frame payload */
+	public static final int DEFAULT_MAX_FRAME_LENGTH = 1024 * 1024;
+
+	/**
+	 * Receives the payload of every complete frame. The array is owned by the
+	 * decoder (or the caller of decode) and is only valid during the callback.
+	 */
+	public interface Listener {
+		public void onFrame(byte[] buffer, int offset, int length);
+	}
+
+	/**
+	 * Also receives the payload of every binary frame, under the same rules.
+	 */
+	public interface BinaryListener extends Listener {
+		public void onBinaryFrame(byte[] buffer, int offset, int length);
+	}
+
+	/**
+	 * Also receives the still compressed payload of every compressed frame.
+	 */
+	public interface DeflateListener extends BinaryListener {
+		public void onDeflatedFrame(byte[] buffer, int offset, int length);
+	}
+
+	/** Largest payload we accept before dropping the frame */
+	private final int mMaxFrameLength;
+
+	/** Holds the partial payload that was split over several reads */
+	private byte[] mBuffer;
+
+	/** Number of partial payload bytes in mBuffer */
+	private int mLength;
+
+	/** True when a header has been seen but no footer yet */
+	private boolean mInFrame;
+
+	/** True when the current frame is too large and is being skipped */
+	private boolean mSkipping;
+
+	/** True when the current frame is a binary one, or a compressed one */
+	private boolean mBinary;
+
+	/** True when the current frame is a compressed one */
+	private boolean mDeflated;
+
+	/** Length bytes of the current binary frame seen so far */
+	private int mLengthBytes;
+
+	/** Payload bytes of the current binary frame that are still to come */
+	private int mRemaining;
+
+	/** Number of frames dropped because they were too large or cut short */
+	private long mDroppedFrames;
+
+	public FrameDecoder() {
+		this(DEFAULT_MAX_FRAME_LENGTH);
+	}
+
+	public FrameDecoder(int maxFrameLength) {
+		mMaxFrameLength = maxFrameLength;
+		mBuffer = new byte[256];
+	}
+
+	/**
+	 * Feed bytes read from the socket to the decoder. The listener is called
+	 * once for every frame that is completed by these bytes.
+	 *
+	 * @param data
+	 *          The bytes read from the socket
+	 * @param offset
+	 *          Offset of the first new byte
+	 * @param length
+	 *          Number of new bytes
+	 * @param listener
+	 *          Receives the completed frames
+	 * @return The number of frames completed by these bytes
+	 */
+	public int decode(byte[] data, int offset, int length, Listener listener) {
+		int frames = 0;
+		int end = offset + length;
+		int i = offset;
+
+		while (i < end) {
+			if (!mInFrame) {
+				// Skip anything between frames until the next header
+				while (i < end && !isHeader(data[i]))
+					i++;
+
+				if (i == end)
+					break;
+
+				begin(data[i]);
+				i++;
+			}
+
+			if (mBinary) {
+				// The length, which may be split over reads as well
+				while (mLengthBytes < 4 && i < end) {
+					mRemaining = mRemaining << 8 | data[i++] & 0xFF;
+					if (++mLengthBytes == 4)
+						checkLength();
+				}
+				if (mLengthBytes < 4)
+					break;
+
+				int count = Math.min(mRemaining, end - i);
+				mRemaining -= count;
+				if (mRemaining > 0) {
+					append(data, i, count);
+					i += count;
+					continue;
+				}
+
+				mInFrame = false;
+				if (mSkipping) {
+					mDroppedFrames++;
+				} else if (mLength == 0) {
+					// The whole payload arrived in this read, no need to copy it
+					if (binaryFrame(listener, data, i, count))
+						frames++;
+				} else {
+					append(data, i, count);
+					if (binaryFrame(listener, mBuffer, 0, mLength))
+						frames++;
+				}
+				i += count;
+				mLength = 0;
+				continue;
+			}
+
+			// Look for the end of the frame, or a new header if the current frame
+			// was cut short
+			int start = i;
+			while (i < end && data[i] != FOOTER && data[i] != HEADER)
+				i++;
+
+			if (i == end) {
+				// The frame continues in the next read, keep what we have
+				append(data, start, i - start);
+				break;
+			}
+
+			if (data[i] == HEADER) {
+				// A new frame started before the footer of the previous one, the
+				// previous one can't be trusted so drop it and start over
+				mDroppedFrames++;
+				mInFrame = false;
+				continue;
+			}
+
+			// Footer found, the frame is complete
+			i++;
+			mInFrame = false;
+
+			if (mSkipping || mLength + (i - 1 - start) > mMaxFrameLength) {
+				mDroppedFrames++;
+				mLength = 0;
+				continue;
+			}
+
+			if (mLength == 0) {
+				// The whole frame arrived in this read, no need to copy it
+				listener.onFrame(data, start, i - 1 - start);
+			} else {
+				append(data, start, i - 1 - start);
+				listener.onFrame(mBuffer, 0, mLength);
+				mLength = 0;
+			}
+			frames++;
+		}
+
+		return frames;
+	}
+
+	/**
+	 * Forget any partial frame, used when the connection is reset.
+	 */
+	public void reset() {
+		mInFrame = false;
+		mSkipping = false;
+		mBinary = false;
+		mDeflated = false;
+		mLength = 0;
+	}
+
+	/**
+	 * @return true if the decoder holds part of a frame
+	 */
+	public boolean hasPartialFrame() {
+		return mInFrame;
+	}
+
+	/**
+	 * @return Number of frames dropped because they were too large or cut short
+	 */
+	public long getDroppedFrames() {
+		return mDroppedFrames;
+	}
+
+	/**
+	 * Feed bytes read from a channel to the decoder, the bytes between the
+	 * position and the limit of the buffer are consumed. This works on direct
+	 * buffers, only the payload bytes are copied out of the buffer.
+	 *
+	 * @param data
+	 *          The bytes read from the channel
+	 * @param listener
+	 *          Receives the completed frames
+	 * @return The number of frames completed by these bytes
+	 */
+	public int decode(ByteBuffer data, Listener listener) {
+		int frames = 0;
+		int end = data.limit();
+		int i = data.position();
+
+		while (i < end) {
+			if (!mInFrame) {
+				// Skip anything between frames until the next header
+				while (i < end && !isHeader(data.get(i)))
+					i++;
+
+				if (i == end)
+					break;
+
+				begin(data.get(i));
+				i++;
+			}
+
+			if (mBinary) {
+				while (mLengthBytes < 4 && i < end) {
+					mRemaining = mRemaining << 8 | data.get(i++) & 0xFF;
+					if (++mLengthBytes == 4)
+						checkLength();
+				}
+				if (mLengthBytes < 4)
+					break;
+
+				int count = Math.min(mRemaining, end - i);
+				data.position(i);
+				append(data, count);
+				i += count;
+				mRemaining -= count;
+				if (mRemaining > 0)
+					continue;
+
+				mInFrame = false;
+				if (mSkipping)
+					mDroppedFrames++;
+				else if (binaryFrame(listener, mBuffer, 0, mLength))
+					frames++;
+				mLength = 0;
+				continue;
+			}
+
+			// Look for the end of the frame, or a new header if the current frame
+			// was cut short
+			int start = i;
+			byte b = 0;
+			while (i < end && (b = data.get(i)) != FOOTER && b != HEADER)
+				i++;
+
+			data.position(start);
+			append(data, i - start);
+
+			if (i == end)
+				break;
+
+			mInFrame = false;
+
+			if (b == HEADER) {
+				// A new frame started before the footer of the previous one
+				mDroppedFrames++;
+				continue;
+			}
+
+			// Footer found, the frame is complete
+			i++;
+
+			if (mSkipping) {
+				mDroppedFrames++;
+				mLength = 0;
+				continue;
+			}
+
+			listener.onFrame(mBuffer, 0, mLength);
+			mLength = 0;
+			frames++;
+		}
+
+		data.position(end);
+		return frames;
+	}
+
+	/**
+	 * Start a frame, after its header.
+	 */
+	private void begin(byte header) {
+		mInFrame = true;
+		mSkipping = false;
+		mBinary = header != HEADER;
+		mDeflated = header == DEFLATE_HEADER;
+		mLength = 0;
+		mLengthBytes = 0;
+		mRemaining = 0;
+	}
+
+	/**
+	 * @return true if b starts a frame
+	 */
+	private static boolean isHeader(byte b) {
+		return b == HEADER || b == BINARY_HEADER || b == DEFLATE_HEADER;
+	}
+
+	/**
+	 * The length of a binary frame is known, skip it if it's too large.
+	 */
+	private void checkLength() {
+		if (mRemaining < 0 || mRemaining > mMaxFrameLength)
+			mSkipping = true;
+
+		// A negative length can't be skipped, the bytes after it are searched
+		// for the next header instead
+		if (mRemaining < 0)
+			mRemaining = 0;
+	}
+
+	/**
+	 * Hand a binary or compressed payload to the listener, if it takes them.
+	 *
+	 * @return true if the listener got it
+	 */
+	private boolean binaryFrame(Listener listener, byte[] buffer, int offset,
+			int length) {
+		if (mDeflated) {
+			if (!(listener instanceof DeflateListener)) {
+				mDroppedFrames++;
+				return false;
+			}
+			((DeflateListener) listener).onDeflatedFrame(buffer, offset, length);
+			return true;
+		}
+
+		if (!(listener instanceof BinaryListener)) {
+			mDroppedFrames++;
+			return false;
+		}
+		((BinaryListener) listener).onBinaryFrame(buffer, offset, length);
+		return true;
+	}
+
+	/**
+	 * Keep the bytes of a partial frame until the rest of it arrives.
+	 */
+	private void append(byte[] data, int offset, int length) {
+		if (reserve(length))
+			System.arraycopy(data, offset, mBuffer, mLength - length, length);
+	}
+
+	/**
+	 * Copy length bytes from the position of the buffer into the partial frame.
+	 */
+	private void append(ByteBuffer data, int length) {
+		if (reserve(length))
+			data.get(mBuffer, mLength - length, length);
+	}
+
+	/**
+	 * Make room for length more bytes of the current frame.
+	 *
+	 * @return false if the frame is being skipped and the bytes should be
+	 *         ignored
+	 */
+	private boolean reserve(int length) {
+		if (mSkipping || length == 0)
+			return false;
+
+		int required = mLength + length;
+		if (required > mMaxFrameLength) {
+			// Too large, skip the rest of this frame and release the memory
+			mSkipping = true;
+			mLength = 0;
+			if (mBuffer.length > 256)
+				mBuffer = new byte[256];
+			return false;
+		}
+
+		if (required > mBuffer.length) {
+			int size = mBuffer.length;
+			while (size < required)
+				size *= 2;
+
+			byte[] grown = new byte[Math.min(size, mMaxFrameLength)];
+			System.arraycopy(mBuffer, 0, grown, 0, mLength);
+			mBuffer = grown;
+		}
+
+		mLength = required;
+		return true;
+	}
+}
@@ -0,0 +1,228 @@
+/*
+ * pubsub.io Android Library
+ * Copyright (C) 2011  Andreas Göransson
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pubsub.io.core;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Sends a probe doc through the hub every interval, on a subscription that
+ * only matches this client's probes, and times how long it takes to come
+ * back. A connection whose probes stop coming back is dead even if the socket
+ * hasn't noticed yet, which on a mobile network can take many minutes.
+ *
+ * The probes are published to the connected sub, so other clients with a
+ * filter that matches everything will see them; they all have a
+ * PROBE_FIELD.
+ */
+class Heartbeat {
+
+	private static final String TAG = "Heartbeat";
+
+	/** Field every probe doc has, holding the id of the client that sent it */
+	static final String PROBE_FIELD = "pubsub_probe";
+
+	/**
+	 * Subscription id of the probes, just below the listener handles and far
+	 * above the handler_callback constants apps use.
+	 */
+	static final int PROBE_ID = Delivery.FIRST_HANDLE - 1;
+
+	private final PubsubClient mClient;
+	private final Scheduler mScheduler;
+
+	/** Tells our probes from other clients' */
+	private final String mId;
+
+	private long mIntervalMillis;
+	private int mMaxMissed;
+
+	/** Bumped by every start() and stop(), so old ticks know to stop */
+	private int mGeneration;
+	private long mSequence;
+
+	/** Probes on their way, sequence to System.nanoTime() when sent */
+	private final LinkedHashMap<Long, Long> mSent;
+
+	/** Ticks in a row that found the last probe not back yet */
+	private int mMissed;
+
+	private final LatencyHistogram mLatency;
+
+	Heartbeat(PubsubClient client, Scheduler scheduler) {
+		mClient = client;
+		mScheduler = scheduler;
+		mId = Long.toHexString(new Random().nextLong());
+		mSent = new LinkedHashMap<Long, Long>();
+		mLatency = new LatencyHistogram();
+	}
+
+	/**
+	 * @param intervalMillis
+	 *          Time between probes, 0 to not send any
+	 * @param maxMissed
+	 *          Probes in a row that may go missing before the connection is
+	 *          declared dead, 0 to only measure
+	 */
+	synchronized void configure(long intervalMillis, int maxMissed) {
+		mIntervalMillis = intervalMillis;
+		mMaxMissed = maxMissed;
+	}
+
+	LatencyHistogram getLatency() {
+		return mLatency;
+	}
+
+	/**
+	 * Subscribe to our probes and start sending them, called once connected.
+	 */
+	void start() {
+		final int generation;
+		synchronized (this) {
+			generation = ++mGeneration;
+			mSent.clear();
+			mMissed = 0;
+			if (mIntervalMillis <= 0)
+				return;
+		}
+
+		JSONObject filter = new JSONObject();
+		try {
+			filter.put(PROBE_FIELD, mId);
+		} catch (JSONException e) {
+			PubsubLog.e(TAG, e.getMessage(), e);
+			return;
+		}
+		mClient.addRoute(PROBE_ID);
+		mClient.write(PubsubParser.encodeSubscribe(filter, PROBE_ID));
+
+		schedule(generation);
+	}
+
+	/**
+	 * Stop sending probes, called when the connection is gone.
+	 */
+	synchronized void stop() {
+		mGeneration++;
+		mSent.clear();
+	}
+
+	/**
+	 * A probe came back.
+	 *
+	 * @param doc
+	 *          A JSONObject or a LazyDoc
+	 */
+	void received(Object doc) {
+		long now = System.nanoTime();
+
+		long sequence;
+		try {
+			JSONObject json = doc instanceof LazyDoc ? ((LazyDoc) doc).get()
+					: (JSONObject) doc;
+			sequence = json.getLong("seq");
+		} catch (JSONException e) {
+			PubsubLog.e(TAG, e.getMessage(), e);
+			return;
+		}
+
+		Long sent;
+		synchronized (this) {
+			sent = mSent.remove(sequence);
+			if (sent == null)
+				return; // From before a reconnect
+
+			// Anything older is lost or overtaken
+			Iterator<Long> older = mSent.keySet().iterator();
+			while (older.hasNext())
+				if (older.next().longValue() < sequence)
+					older.remove();
+			mMissed = 0;
+		}
+
+		mLatency.record((now - sent.longValue()) / 1000);
+	}
+
+	private void schedule(final int generation) {
+		long interval;
+		synchronized (this) {
+			interval = mIntervalMillis;
+		}
+
+		mScheduler.schedule(new Runnable() {
+			public void run() {
+				tick(generation);
+			}
+		}, interval);
+	}
+
+	private void tick(int generation) {
+		boolean dead = false;
+		long sequence = 0;
+		synchronized (this) {
+			if (generation != mGeneration || mIntervalMillis <= 0)
+				return;
+
+			// The last probe should have been back long ago, unless it's waiting
+			// behind the reads a consumer holds up
+			if (!mSent.isEmpty() && !mClient.mReadsHeld)
+				mMissed++;
+
+			if (mMaxMissed > 0 && mMissed >= mMaxMissed) {
+				PubsubLog.e(TAG, mMissed + " probes missed, connection is dead");
+				mGeneration++;
+				mSent.clear();
+				dead = true;
+			} else {
+				// Don't keep every probe of a link that's lost them all
+				while (mSent.size() > mMaxMissed) {
+					Iterator<Map.Entry<Long, Long>> oldest = mSent.entrySet()
+							.iterator();
+					oldest.next();
+					oldest.remove();
+				}
+				sequence = mSequence++;
+				mSent.put(sequence, System.nanoTime());
+			}
+		}
+
+		// Outside the lock, both call back into PubsubClient
+		if (dead) {
+			mClient.linkDead();
+			return;
+		}
+
+		JSONObject probe = new JSONObject();
+		try {
+			probe.put(PROBE_FIELD, mId);
+			probe.put("seq", sequence);
+		} catch (JSONException e) {
+			PubsubLog.e(TAG, e.getMessage(), e);
+			return;
+		}
+		mClient.write(PubsubParser.encodePublish(probe));
+
+		schedule(generation);
+	}
+}
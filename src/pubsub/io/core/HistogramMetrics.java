@@ -0,0 +1,126 @@
+/*
+ * pubsub.io Android Library
+ * Copyright (C) 2011  Andreas Göransson
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pubsub.io.core;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Keeps every counter in an AtomicLong and every histogram in a
+ * LatencyHistogram. One instance can be shared by several connections to see
+ * them all together.
+ *
+ * toJSON() gives the same view everywhere, ready to be published or logged:
+ *
+ * <pre>
+ * {"bytes_in": 5120, ..., "parse_time": {"n": 40, "p50": 31, "p99": 120, "max": 180}, ...}
+ * </pre>
+ */
+public class HistogramMetrics implements MetricsSink {
+
+	/** Names of the counters, by constant */
+	private static final String[] COUNTER_NAMES = { "bytes_in", "bytes_out",
+			"frames_in", "frames_out", "reconnects" };
+
+	/** Names of the histograms, by constant */
+	private static final String[] HISTOGRAM_NAMES = { "decode_time",
+			"parse_time", "queue_depth", "delivery_time", "uptime" };
+
+	private final AtomicLong[] mCounters;
+	private final LatencyHistogram[] mHistograms;
+
+	public HistogramMetrics() {
+		mCounters = new AtomicLong[COUNTERS];
+		for (int i = 0; i < COUNTERS; i++)
+			mCounters[i] = new AtomicLong();
+
+		mHistograms = new LatencyHistogram[HISTOGRAMS];
+		for (int i = 0; i < HISTOGRAMS; i++)
+			mHistograms[i] = new LatencyHistogram();
+	}
+
+	public void count(int counter, long delta) {
+		mCounters[counter].addAndGet(delta);
+	}
+
+	public void record(int histogram, long value) {
+		mHistograms[histogram].record(value);
+	}
+
+	/**
+	 * @param counter
+	 *          One of the MetricsSink counter constants
+	 * @return Its current value
+	 */
+	public long getCount(int counter) {
+		return mCounters[counter].get();
+	}
+
+	/**
+	 * @param histogram
+	 *          One of the MetricsSink histogram constants
+	 * @return A copy of it
+	 */
+	public LatencyHistogram getHistogram(int histogram) {
+		return mHistograms[histogram].copy();
+	}
+
+	/**
+	 * Start every counter and histogram over, for example after each upload.
+	 */
+	public void reset() {
+		for (int i = 0; i < COUNTERS; i++)
+			mCounters[i].set(0);
+		for (int i = 0; i < HISTOGRAMS; i++)
+			mHistograms[i].reset();
+	}
+
+	/**
+	 * @return Every counter, and the count, p50, p99 and max of every
+	 *         histogram
+	 */
+	public JSONObject toJSON() {
+		JSONObject json = new JSONObject();
+		try {
+			for (int i = 0; i < COUNTERS; i++)
+				json.put(COUNTER_NAMES[i], mCounters[i].get());
+
+			for (int i = 0; i < HISTOGRAMS; i++) {
+				LatencyHistogram histogram = mHistograms[i].copy();
+				JSONObject summary = new JSONObject();
+				summary.put("n", histogram.getCount());
+				summary.put("p50", histogram.getPercentile(50));
+				summary.put("p99", histogram.getPercentile(99));
+				summary.put("max", histogram.getMax());
+				json.put(HISTOGRAM_NAMES[i], summary);
+			}
+		} catch (JSONException e) {
+			// Only thrown for non-finite numbers, and these are all longs
+			throw new RuntimeException(e);
+		}
+		return json;
+	}
+
+	@Override
+	public String toString() {
+		return toJSON().toString();
+	}
+}
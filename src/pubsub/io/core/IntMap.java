@@ -0,0 +1,154 @@
+/*
+ * pubsub.io Android Library
+ * Copyright (C) 2011  Andreas Göransson
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pubsub.io.core;
+
+/**
+ * Map from int keys to values, without boxing, that can be read without
+ * taking a lock. The keys and values live in plain arrays (open addressing);
+ * every change builds a new copy of the arrays and publishes it in one
+ * volatile write, so get() always sees a complete table.
+ *
+ * Made for lookups on every incoming message and changes on subscribe and
+ * unsubscribe, which are rare in comparison.
+ */
+class IntMap<V> {
+
+	private static final int MIN_CAPACITY = 8;
+
+	/** Immutable once published */
+	private static class Table {
+		final int[] mKeys;
+		final Object[] mValues;
+		final int mSize;
+
+		Table(int capacity, int size) {
+			mKeys = new int[capacity];
+			mValues = new Object[capacity];
+			mSize = size;
+		}
+	}
+
+	private volatile Table mTable = new Table(MIN_CAPACITY, 0);
+
+	/**
+	 * @param key
+	 * @return The value for key, or null
+	 */
+	@SuppressWarnings("unchecked")
+	public V get(int key) {
+		Table table = mTable;
+		int mask = table.mKeys.length - 1;
+		for (int i = hash(key) & mask;; i = (i + 1) & mask) {
+			Object value = table.mValues[i];
+			if (value == null)
+				return null;
+			if (table.mKeys[i] == key)
+				return (V) value;
+		}
+	}
+
+	/**
+	 * Add or replace the value for key.
+	 *
+	 * @param key
+	 * @param value
+	 *          Not null
+	 */
+	public synchronized void put(int key, V value) {
+		if (value == null)
+			throw new NullPointerException("value");
+
+		Table old = mTable;
+		int size = old.mSize + (get(key) == null ? 1 : 0);
+		Table table = new Table(capacityFor(size), size);
+		copy(old, table, key);
+		insert(table, key, value);
+		mTable = table;
+	}
+
+	/**
+	 * Remove the value for key, if there is one.
+	 *
+	 * @param key
+	 * @return The value that was removed, or null
+	 */
+	public synchronized V remove(int key) {
+		V value = get(key);
+		if (value == null)
+			return null;
+
+		Table old = mTable;
+		Table table = new Table(capacityFor(old.mSize - 1), old.mSize - 1);
+		copy(old, table, key);
+		mTable = table;
+		return value;
+	}
+
+	/**
+	 * Remove everything.
+	 */
+	public synchronized void clear() {
+		mTable = new Table(MIN_CAPACITY, 0);
+	}
+
+	/**
+	 * @return Number of entries
+	 */
+	public int size() {
+		return mTable.mSize;
+	}
+
+	/**
+	 * Copy every entry of from to to, except the one for skip.
+	 */
+	private static void copy(Table from, Table to, int skip) {
+		for (int i = 0; i < from.mValues.length; i++) {
+			Object value = from.mValues[i];
+			if (value != null && from.mKeys[i] != skip)
+				insert(to, from.mKeys[i], value);
+		}
+	}
+
+	private static void insert(Table table, int key, Object value) {
+		int mask = table.mKeys.length - 1;
+		int i = hash(key) & mask;
+		while (table.mValues[i] != null)
+			i = (i + 1) & mask;
+		table.mKeys[i] = key;
+		table.mValues[i] = value;
+	}
+
+	/**
+	 * Keep the table at most half full so probes stay short.
+	 */
+	private static int capacityFor(int size) {
+		int capacity = MIN_CAPACITY;
+		while (capacity < size * 2)
+			capacity <<= 1;
+		return capacity;
+	}
+
+	/**
+	 * Spread the bits, callback ids tend to be small and sequential.
+	 */
+	private static int hash(int key) {
+		int h = key * 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+}
@@ -0,0 +1,385 @@
+/*
+ * pubsub.io Android Library
+ * Copyright (C) 2011  Andreas Göransson
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pubsub.io.core;
+
+import java.util.Iterator;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * Streaming JSON writer that encodes straight to UTF-8 bytes in a
+ * FrameBuffer. There are no intermediate Strings or JSONObjects, every call
+ * appends its bytes to the buffer right away:
+ *
+ * <pre>
+ * json.beginObject().name(&quot;x&quot;).value(x).name(&quot;y&quot;).value(y).endObject();
+ * </pre>
+ *
+ * Commas and quotes are taken care of by the writer, misuse (a value without a
+ * name inside an object, unbalanced begin/end) throws IllegalStateException.
+ */
+public class JsonWriter {
+
+	private static final byte[] TRUE = { 't', 'r', 'u', 'e' };
+	private static final byte[] FALSE = { 'f', 'a', 'l', 's', 'e' };
+	private static final byte[] NULL = { 'n', 'u', 'l', 'l' };
+	private static final byte[] HEX = { '0', '1', '2', '3', '4', '5', '6', '7',
+			'8', '9', 'a', 'b', 'c', 'd', 'e', 'f' };
+
+	// Scope constants
+	private static final int EMPTY_DOCUMENT = 0;
+	private static final int NONEMPTY_DOCUMENT = 1;
+	private static final int EMPTY_OBJECT = 2;
+	private static final int DANGLING_NAME = 3;
+	private static final int NONEMPTY_OBJECT = 4;
+	private static final int EMPTY_ARRAY = 5;
+	private static final int NONEMPTY_ARRAY = 6;
+
+	private FrameBuffer mOut;
+
+	/** What we're inside of, one entry per nesting level */
+	private int[] mStack = new int[16];
+	private int mDepth;
+
+	public JsonWriter(FrameBuffer out) {
+		reset(out);
+	}
+
+	/**
+	 * Start over, writing a new document to out.
+	 */
+	public JsonWriter reset(FrameBuffer out) {
+		mOut = out;
+		mDepth = 1;
+		mStack[0] = EMPTY_DOCUMENT;
+		return this;
+	}
+
+	/**
+	 * @return The buffer the writer is writing to
+	 */
+	public FrameBuffer buffer() {
+		return mOut;
+	}
+
+	/**
+	 * @return true once a complete document has been written
+	 */
+	public boolean isComplete() {
+		return mDepth == 1 && mStack[0] == NONEMPTY_DOCUMENT;
+	}
+
+	public JsonWriter beginObject() {
+		beforeValue();
+		push(EMPTY_OBJECT);
+		mOut.write('{');
+		return this;
+	}
+
+	public JsonWriter endObject() {
+		int scope = peek();
+		if (scope != EMPTY_OBJECT && scope != NONEMPTY_OBJECT)
+			throw new IllegalStateException("Not in an object");
+		mDepth--;
+		mOut.write('}');
+		return this;
+	}
+
+	public JsonWriter beginArray() {
+		beforeValue();
+		push(EMPTY_ARRAY);
+		mOut.write('[');
+		return this;
+	}
+
+	public JsonWriter endArray() {
+		int scope = peek();
+		if (scope != EMPTY_ARRAY && scope != NONEMPTY_ARRAY)
+			throw new IllegalStateException("Not in an array");
+		mDepth--;
+		mOut.write(']');
+		return this;
+	}
+
+	/**
+	 * Write the name of the next member of the current object.
+	 */
+	public JsonWriter name(String name) {
+		int scope = peek();
+		if (scope == NONEMPTY_OBJECT)
+			mOut.write(',');
+		else if (scope != EMPTY_OBJECT)
+			throw new IllegalStateException("Name outside of an object");
+
+		mStack[mDepth - 1] = DANGLING_NAME;
+		string(name);
+		mOut.write(':');
+		return this;
+	}
+
+	public JsonWriter value(String value) {
+		if (value == null)
+			return nullValue();
+		beforeValue();
+		string(value);
+		return this;
+	}
+
+	public JsonWriter value(boolean value) {
+		beforeValue();
+		bytes(value ? TRUE : FALSE);
+		return this;
+	}
+
+	public JsonWriter value(long value) {
+		beforeValue();
+		number(value);
+		return this;
+	}
+
+	public JsonWriter value(double value) {
+		if (Double.isNaN(value) || Double.isInfinite(value))
+			throw new IllegalArgumentException("JSON can't hold " + value);
+
+		beforeValue();
+
+		// Whole numbers are written without a fraction, just like JSONObject
+		long whole = (long) value;
+		if (whole == value && Math.abs(value) < 1e15)
+			number(whole);
+		else
+			ascii(Double.toString(value));
+		return this;
+	}
+
+	public JsonWriter nullValue() {
+		beforeValue();
+		bytes(NULL);
+		return this;
+	}
+
+	/**
+	 * Write any value that can be put in a JSONObject, including JSONObject and
+	 * JSONArray which are streamed member by member.
+	 */
+	public JsonWriter value(Object value) {
+		if (value == null || value == JSONObject.NULL) {
+			return nullValue();
+		} else if (value instanceof String) {
+			return value((String) value);
+		} else if (value instanceof Boolean) {
+			return value(((Boolean) value).booleanValue());
+		} else if (value instanceof Integer || value instanceof Long
+				|| value instanceof Short || value instanceof Byte) {
+			return value(((Number) value).longValue());
+		} else if (value instanceof Number) {
+			return value(((Number) value).doubleValue());
+		} else if (value instanceof JSONObject) {
+			return value((JSONObject) value);
+		} else if (value instanceof JSONArray) {
+			return value((JSONArray) value);
+		}
+		return value(value.toString());
+	}
+
+	/**
+	 * Stream a JSONObject without going through toString().
+	 */
+	public JsonWriter value(JSONObject object) {
+		if (object == null)
+			return nullValue();
+
+		beginObject();
+		Iterator<?> keys = object.keys();
+		while (keys.hasNext()) {
+			String key = (String) keys.next();
+			name(key);
+			value(object.opt(key));
+		}
+		return endObject();
+	}
+
+	/**
+	 * Stream a JSONArray without going through toString().
+	 */
+	public JsonWriter value(JSONArray array) {
+		if (array == null)
+			return nullValue();
+
+		beginArray();
+		for (int i = 0; i < array.length(); i++)
+			value(array.opt(i));
+		return endArray();
+	}
+
+	private void beforeValue() {
+		int scope = peek();
+		switch (scope) {
+		case EMPTY_DOCUMENT:
+			mStack[mDepth - 1] = NONEMPTY_DOCUMENT;
+			break;
+		case DANGLING_NAME:
+			mStack[mDepth - 1] = NONEMPTY_OBJECT;
+			break;
+		case EMPTY_ARRAY:
+			mStack[mDepth - 1] = NONEMPTY_ARRAY;
+			break;
+		case NONEMPTY_ARRAY:
+			mOut.write(',');
+			break;
+		case NONEMPTY_DOCUMENT:
+			throw new IllegalStateException("Document already complete");
+		default:
+			throw new IllegalStateException("Value without a name");
+		}
+	}
+
+	private int peek() {
+		return mStack[mDepth - 1];
+	}
+
+	private void push(int scope) {
+		if (mDepth == mStack.length) {
+			int[] grown = new int[mDepth * 2];
+			System.arraycopy(mStack, 0, grown, 0, mDepth);
+			mStack = grown;
+		}
+		mStack[mDepth++] = scope;
+	}
+
+	private void bytes(byte[] b) {
+		mOut.write(b, 0, b.length);
+	}
+
+	/**
+	 * Write a string that is known to be plain ASCII, like a formatted number.
+	 */
+	private void ascii(String s) {
+		int length = s.length();
+		byte[] buffer = mOut.reserve(length);
+		int pos = mOut.length();
+		for (int i = 0; i < length; i++)
+			buffer[pos++] = (byte) s.charAt(i);
+		mOut.skip(length);
+	}
+
+	/**
+	 * Write a long without turning it into a String first.
+	 */
+	private void number(long value) {
+		if (value == Long.MIN_VALUE) {
+			ascii(Long.toString(value));
+			return;
+		}
+
+		byte[] buffer = mOut.reserve(20);
+		int pos = mOut.length();
+
+		if (value < 0) {
+			buffer[pos++] = '-';
+			value = -value;
+		}
+
+		// Count the digits, then fill them in from the back
+		int digits = 1;
+		for (long v = value; v >= 10; v /= 10)
+			digits++;
+
+		int end = pos + digits;
+		for (int i = end - 1; i >= pos; i--) {
+			buffer[i] = (byte) ('0' + value % 10);
+			value /= 10;
+		}
+
+		mOut.skip(end - mOut.length());
+	}
+
+	/**
+	 * Write a quoted and escaped string as UTF-8.
+	 */
+	private void string(String s) {
+		int length = s.length();
+
+		// Worst case is 6 bytes (\\uXXXX) per char, plus the quotes
+		byte[] buffer = mOut.reserve(length * 6 + 2);
+		int pos = mOut.length();
+
+		buffer[pos++] = '"';
+		for (int i = 0; i < length; i++) {
+			char c = s.charAt(i);
+
+			if (c >= 0x20 && c < 0x80 && c != '"' && c != '\\') {
+				buffer[pos++] = (byte) c;
+			} else if (c < 0x80) {
+				buffer[pos++] = '\\';
+				switch (c) {
+				case '"':
+					buffer[pos++] = '"';
+					break;
+				case '\\':
+					buffer[pos++] = '\\';
+					break;
+				case '\n':
+					buffer[pos++] = 'n';
+					break;
+				case '\r':
+					buffer[pos++] = 'r';
+					break;
+				case '\t':
+					buffer[pos++] = 't';
+					break;
+				case '\b':
+					buffer[pos++] = 'b';
+					break;
+				case '\f':
+					buffer[pos++] = 'f';
+					break;
+				default:
+					buffer[pos++] = 'u';
+					buffer[pos++] = '0';
+					buffer[pos++] = '0';
+					buffer[pos++] = HEX[c >> 4];
+					buffer[pos++] = HEX[c & 0xF];
+				}
+			} else if (c < 0x800) {
+				buffer[pos++] = (byte) (0xC0 | (c >> 6));
+				buffer[pos++] = (byte) (0x80 | (c & 0x3F));
+			} else if (Character.isHighSurrogate(c) && i + 1 < length
+					&& Character.isLowSurrogate(s.charAt(i + 1))) {
+				int cp = Character.toCodePoint(c, s.charAt(++i));
+				buffer[pos++] = (byte) (0xF0 | (cp >> 18));
+				buffer[pos++] = (byte) (0x80 | ((cp >> 12) & 0x3F));
+				buffer[pos++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+				buffer[pos++] = (byte) (0x80 | (cp & 0x3F));
+			} else if (c >= Character.MIN_SURROGATE
+					&& c <= Character.MAX_SURROGATE) {
+				// A lone surrogate can't be encoded
+				buffer[pos++] = '?';
+			} else {
+				buffer[pos++] = (byte) (0xE0 | (c >> 12));
+				buffer[pos++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+				buffer[pos++] = (byte) (0x80 | (c & 0x3F));
+			}
+		}
+		buffer[pos++] = '"';
+
+		mOut.skip(pos - mOut.length());
+	}
+}
@@ -0,0 +1,189 @@
+/*
+ * pubsub.io Android Library
+ * Copyright (C) 2011  Andreas Göransson
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pubsub.io.core;
+
+/**
+ * Counts latencies, in microseconds, into buckets that double in width every
+ * 16 buckets. Recording is a few shifts and an increment, and any percentile
+ * is accurate to within about 6% of the true value however many latencies
+ * were recorded, in a fixed 5KB.
+ *
+ * Latencies over about 12 days are counted as 12 days. Thread safe.
+ */
+public class LatencyHistogram {
+
+	/** Buckets per doubling, a power of two */
+	private static final int SUB_BUCKETS = 16;
+	private static final int SUB_BUCKET_SHIFT = 4;
+
+	/** Largest latency told apart from larger ones, 2^40 us */
+	private static final long MAX_VALUE = 1L << 40;
+
+	private final long[] mCounts;
+	private long mCount;
+	private long mSum;
+	private long mMin = Long.MAX_VALUE;
+	private long mMax;
+
+	public LatencyHistogram() {
+		mCounts = new long[index(MAX_VALUE) + 1];
+	}
+
+	/**
+	 * @param micros
+	 *          The latency in microseconds
+	 */
+	public synchronized void record(long micros) {
+		if (micros < 0)
+			micros = 0;
+
+		mCounts[index(Math.min(micros, MAX_VALUE))]++;
+		mCount++;
+		mSum += micros;
+		if (micros < mMin)
+			mMin = micros;
+		if (micros > mMax)
+			mMax = micros;
+	}
+
+	/**
+	 * Add everything recorded by another histogram.
+	 *
+	 * @param other
+	 */
+	public void add(LatencyHistogram other) {
+		LatencyHistogram copy = other.copy();
+		synchronized (this) {
+			for (int i = 0; i < mCounts.length; i++)
+				mCounts[i] += copy.mCounts[i];
+			mCount += copy.mCount;
+			mSum += copy.mSum;
+			mMin = Math.min(mMin, copy.mMin);
+			mMax = Math.max(mMax, copy.mMax);
+		}
+	}
+
+	/**
+	 * @return A copy that doesn't change when more is recorded here
+	 */
+	public synchronized LatencyHistogram copy() {
+		LatencyHistogram copy = new LatencyHistogram();
+		System.arraycopy(mCounts, 0, copy.mCounts, 0, mCounts.length);
+		copy.mCount = mCount;
+		copy.mSum = mSum;
+		copy.mMin = mMin;
+		copy.mMax = mMax;
+		return copy;
+	}
+
+	/**
+	 * Forget everything recorded so far.
+	 */
+	public synchronized void reset() {
+		for (int i = 0; i < mCounts.length; i++)
+			mCounts[i] = 0;
+		mCount = 0;
+		mSum = 0;
+		mMin = Long.MAX_VALUE;
+		mMax = 0;
+	}
+
+	/**
+	 * @param percentile
+	 *          From 0 to 100, like 50 for the median or 99
+	 * @return The latency that percentile of the recorded latencies are at or
+	 *         below, in microseconds, 0 if nothing was recorded
+	 */
+	public synchronized long getPercentile(double percentile) {
+		if (mCount == 0)
+			return 0;
+
+		long rank = (long) Math.ceil(percentile / 100 * mCount);
+		if (rank < 1)
+			rank = 1;
+
+		long seen = 0;
+		for (int i = 0; i < mCounts.length; i++) {
+			seen += mCounts[i];
+			if (seen >= rank) {
+				// The top of the bucket, but never above what was actually seen
+				long top = lowest(i + 1) - 1;
+				return Math.max(mMin, Math.min(top, mMax));
+			}
+		}
+		return mMax;
+	}
+
+	/**
+	 * @return Number of latencies recorded
+	 */
+	public synchronized long getCount() {
+		return mCount;
+	}
+
+	/**
+	 * @return Smallest latency recorded, in microseconds
+	 */
+	public synchronized long getMin() {
+		return mCount > 0 ? mMin : 0;
+	}
+
+	/**
+	 * @return Largest latency recorded, in microseconds
+	 */
+	public synchronized long getMax() {
+		return mMax;
+	}
+
+	/**
+	 * @return Mean latency, in microseconds
+	 */
+	public synchronized double getMean() {
+		return mCount > 0 ? (double) mSum / mCount : 0;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "n=" + mCount + " p50=" + getPercentile(50) + "us p99="
+				+ getPercentile(99) + "us max=" + mMax + "us";
+	}
+
+	/**
+	 * Values below 2 * SUB_BUCKETS get a bucket each, above that every
+	 * doubling is split into SUB_BUCKETS buckets.
+	 */
+	private static int index(long value) {
+		if (value < 2 * SUB_BUCKETS)
+			return (int) value;
+
+		int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_SHIFT;
+		return shift * SUB_BUCKETS + (int) (value >> shift);
+	}
+
+	/**
+	 * @return The smallest value counted in a bucket
+	 */
+	private static long lowest(int index) {
+		if (index < 2 * SUB_BUCKETS)
+			return index;
+
+		int shift = index / SUB_BUCKETS - 1;
+		return (long) (index % SUB_BUCKETS + SUB_BUCKETS) << shift;
+	}
+}
@@ -0,0 +1,85 @@
+/*
+ * pubsub.io Android Library
+ * Copyright (C) 2011  Andreas Göransson
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pubsub.io.core;
+
+import java.io.UnsupportedEncodingException;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * A doc that hasn't been parsed yet. This is what msg.obj holds when the
+ * connection is in PubsubClient.PARSE_LAZY mode: the raw UTF-8 bytes of the doc
+ * are kept, and they are only turned into a JSONObject the first time get() is
+ * called. A listener that only counts messages, or forwards them somewhere
+ * else, never pays for the parse.
+ */
+public class LazyDoc {
+
+	private final byte[] mBytes;
+	private JSONObject mDoc;
+
+	/**
+	 * Copy the doc out of the read buffer, which is reused for the next read.
+	 */
+	LazyDoc(byte[] buffer, int offset, int length) {
+		mBytes = new byte[length];
+		System.arraycopy(buffer, offset, mBytes, 0, length);
+	}
+
+	/**
+	 * Parse the doc, the result is kept so this is only done once.
+	 *
+	 * @return The doc
+	 * @throws JSONException
+	 *           If the doc isn't a JSON object
+	 */
+	public synchronized JSONObject get() throws JSONException {
+		if (mDoc == null)
+			mDoc = new JSONObject(toString());
+		return mDoc;
+	}
+
+	/**
+	 * @return The raw UTF-8 bytes of the doc, don't modify them
+	 */
+	public byte[] bytes() {
+		return mBytes;
+	}
+
+	/**
+	 * @return Size of the doc in bytes
+	 */
+	public int length() {
+		return mBytes.length;
+	}
+
+	/**
+	 * @return The doc as JSON text, without parsing it
+	 */
+	@Override
+	public String toString() {
+		try {
+			return new String(mBytes, "UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			// Every VM has UTF-8
+			throw new RuntimeException(e);
+		}
+	}
+}
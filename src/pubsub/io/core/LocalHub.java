@@ -0,0 +1,524 @@
+/*
+ * pubsub.io Android Library
+ * Copyright (C) 2011  Andreas Göransson
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package pubsub.io.core;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.DataFormatException;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * A small pubsub.io hub that runs in the same process, for testing and
+ * benchmarking without a network. It speaks the same protocol as the real
+ * hub: sub, subscribe, unsubscribe and publish, in frames of JSON. A client
+ * whose hello offers MessagePack, see PubsubClient.setCodec(), is answered and
+ * then talked to in MessagePack. A client that offers compression with the
+ * dictionary of setCompression(), by default Compression.DEFAULT_DICTIONARY,
+ * gets compressed frames too.
+ *
+ * Subscribe queries are evaluated by QueryMatcher, so plain values, dotted
+ * paths, $gt, $gte, $lt, $lte, $ne, $in, $nin, $exists and a top level $or
+ * work; a query using anything else matches nothing.
+ *
+ * The link to every client can be made slower with setLatency() and
+ * setThroughput(). Docs a client can't keep up with wait in a queue of
+ * MAX_QUEUED docs, the newest are dropped when it's full.
+ *
+ * Nothing here needs Android, the hub runs on a plain JVM as well.
+ *
+ * <pre>
+ * LocalHub hub = new LocalHub();
+ * mPubsub.connect("localhost", Integer.toString(hub.getPort()), "test");
+ * ...
+ * hub.close();
+ * </pre>
+ */
+public class LocalHub {
+
+	/** Docs waiting for a client before the newest are dropped */
+	public static final int MAX_QUEUED = 16 * 1024;
+
+	/** Most bytes a client is sent in one write */
+	private static final int MAX_WRITE = 64 * 1024;
+
+	/** The binary codec clients can ask for */
+	private static final Codec MSGPACK = new MessagePackCodec();
+
+	private final ServerSocket mServer;
+	private final List<Client> mClients;
+
+	private volatile long mLatencyNanos;
+	private volatile long mBytesPerSecond;
+	private volatile Compression mCompression = new Compression();
+
+	private final AtomicLong mPublished = new AtomicLong();
+	private final AtomicLong mDelivered = new AtomicLong();
+	private final AtomicLong mDropped = new AtomicLong();
+
+	/**
+	 * Start a hub on a free port, see getPort().
+	 *
+	 * @throws IOException
+	 */
+	public LocalHub() throws IOException {
+		this(0);
+	}
+
+	/**
+	 * Start a hub on a port.
+	 *
+	 * @param port
+	 *          The port to listen on, 0 for any free one
+	 * @throws IOException
+	 */
+	public LocalHub(int port) throws IOException {
+		mServer = new ServerSocket(port);
+		mClients = new CopyOnWriteArrayList<Client>();
+
+		Thread acceptor = new Thread("LocalHub") {
+			@Override
+			public void run() {
+				try {
+					while (true)
+						new Client(mServer.accept());
+				} catch (IOException e) {
+					// Closed
+				}
+			}
+		};
+		acceptor.setDaemon(true);
+		acceptor.start();
+	}
+
+	/**
+	 * @return The port the hub listens on
+	 */
+	public int getPort() {
+		return mServer.getLocalPort();
+	}
+
+	/**
+	 * @param millis
+	 *          Time every doc takes from being published to being sent to a
+	 *          subscriber, 0 (default) to send it right away
+	 */
+	public void setLatency(long millis) {
+		mLatencyNanos = TimeUnit.MILLISECONDS.toNanos(millis);
+	}
+
+	/**
+	 * @param bytesPerSecond
+	 *          Most bytes per second sent to each client, 0 (default) for no
+	 *          limit
+	 */
+	public void setThroughput(long bytesPerSecond) {
+		mBytesPerSecond = bytesPerSecond;
+	}
+
+	/**
+	 * @param compression
+	 *          The dictionary, level and threshold clients that offer it are
+	 *          sent compressed frames with, null to not agree to compression
+	 */
+	public void setCompression(Compression compression) {
+		mCompression = compression;
+	}
+
+	/**
+	 * @return Number of clients connected
+	 */
+	public int getClientCount() {
+		return mClients.size();
+	}
+
+	/**
+	 * @return Docs published by all clients
+	 */
+	public long getPublished() {
+		return mPublished.get();
+	}
+
+	/**
+	 * @return Docs sent to subscribers, one per matching subscription
+	 */
+	public long getDelivered() {
+		return mDelivered.get();
+	}
+
+	/**
+	 * @return Docs dropped because a subscriber's queue was full
+	 */
+	public long getDropped() {
+		return mDropped.get();
+	}
+
+	/**
+	 * Stop listening and disconnect every client.
+	 */
+	public void close() {
+		try {
+			mServer.close();
+		} catch (IOException e) {
+			// Closed anyway
+		}
+		for (Client client : mClients)
+			client.close();
+	}
+
+	private void publish(String sub, JSONObject doc) {
+		mPublished.incrementAndGet();
+
+		byte[] encoded;
+		try {
+			encoded = doc.toString().getBytes("UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new RuntimeException(e);
+		}
+
+		// Encoded once for every client that wants MessagePack
+		byte[] packed = null;
+		for (Client client : mClients) {
+			if (client.mBinary && sub.equals(client.mSub)) {
+				try {
+					packed = MSGPACK.encode(encoded);
+				} catch (JSONException e) {
+					throw new RuntimeException(e);
+				}
+				break;
+			}
+		}
+
+		long due = System.nanoTime() + mLatencyNanos;
+		for (Client client : mClients)
+			if (sub.equals(client.mSub))
+				client.deliver(doc, encoded, packed, due);
+	}
+
+	/**
+	 * @return The message a subscriber gets for a doc, {"id": id, "doc": doc}
+	 */
+	private static byte[] message(int id, byte[] doc) {
+		byte[] head;
+		try {
+			head = ("{\"id\":" + id + ",\"doc\":").getBytes("UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new RuntimeException(e);
+		}
+
+		byte[] message = new byte[head.length + doc.length + 1];
+		System.arraycopy(head, 0, message, 0, head.length);
+		System.arraycopy(doc, 0, message, head.length, doc.length);
+		message[message.length - 1] = '}';
+		return message;
+	}
+
+	private static void sleepUntil(long nanos) throws InterruptedException {
+		long wait = nanos - System.nanoTime();
+		if (wait > 0)
+			TimeUnit.NANOSECONDS.sleep(wait);
+	}
+
+	/**
+	 * A connected client, with a thread that reads what it sends and one that
+	 * writes what it's sent.
+	 */
+	private class Client implements FrameDecoder.DeflateListener {
+		private final Socket mSocket;
+		private final Thread mReader;
+		private final Thread mWriter;
+
+		private volatile String mSub;
+
+		/** True once the client was told it gets MessagePack */
+		private volatile boolean mBinary;
+
+		/** Set once the client was told it gets compressed frames */
+		private volatile Compression.Compressor mCompressor;
+
+		/** Queries by subscription id */
+		private final Map<Integer, QueryMatcher> mSubscriptions;
+
+		private final BlockingQueue<Outgoing> mQueue;
+
+		Client(Socket socket) throws IOException {
+			mSocket = socket;
+			mSocket.setTcpNoDelay(true);
+			mSubscriptions = new LinkedHashMap<Integer, QueryMatcher>();
+			mQueue = new LinkedBlockingQueue<Outgoing>(MAX_QUEUED);
+
+			mReader = new Thread("LocalHub reader") {
+				@Override
+				public void run() {
+					read();
+				}
+			};
+			mWriter = new Thread("LocalHub writer") {
+				@Override
+				public void run() {
+					write();
+				}
+			};
+			mReader.setDaemon(true);
+			mWriter.setDaemon(true);
+
+			mClients.add(this);
+			mReader.start();
+			mWriter.start();
+		}
+
+		private void read() {
+			FrameDecoder decoder = new FrameDecoder();
+			byte[] buffer = new byte[8192];
+			try {
+				InputStream in = mSocket.getInputStream();
+				int read;
+				while ((read = in.read(buffer)) != -1)
+					decoder.decode(buffer, 0, read, this);
+			} catch (IOException e) {
+				// Gone
+			} finally {
+				close();
+			}
+		}
+
+		public void onFrame(byte[] buffer, int offset, int length) {
+			try {
+				received(new JSONObject(new String(buffer, offset, length, "UTF-8")));
+			} catch (JSONException e) {
+				// Not for us
+			} catch (UnsupportedEncodingException e) {
+				throw new RuntimeException(e);
+			}
+		}
+
+		public void onBinaryFrame(byte[] buffer, int offset, int length) {
+			try {
+				received(MSGPACK.decode(buffer, offset, length));
+			} catch (JSONException e) {
+				// Not for us
+			}
+		}
+
+		public void onDeflatedFrame(byte[] buffer, int offset, int length) {
+			Compression.Compressor compressor = mCompressor;
+			if (compressor == null)
+				return;
+
+			int inflated;
+			try {
+				inflated = compressor.inflate(buffer, offset, length);
+			} catch (DataFormatException e) {
+				return;
+			}
+			if (mBinary)
+				onBinaryFrame(compressor.inflated(), 0, inflated);
+			else
+				onFrame(compressor.inflated(), 0, inflated);
+		}
+
+		private void received(JSONObject message) {
+			String name = message.optString("name");
+			if (name.length() == 0) {
+				// The first message only names the sub
+				mSub = message.optString("sub", null);
+			} else if (name.equals("hello")) {
+				hello(message.optJSONArray("codecs"), message.optLong("deflate", -1));
+			} else if (name.equals("subscribe")) {
+				JSONObject query = message.optJSONObject("query");
+				QueryMatcher matcher = QueryMatcher.compile(query != null ? query
+						: new JSONObject());
+				synchronized (mSubscriptions) {
+					mSubscriptions.put(message.optInt("id"), matcher);
+				}
+			} else if (name.equals("unsubscribe")) {
+				synchronized (mSubscriptions) {
+					mSubscriptions.remove(message.optInt("id"));
+				}
+			} else if (name.equals("publish")) {
+				JSONObject doc = message.optJSONObject("doc");
+				String sub = mSub;
+				if (doc != null && sub != null)
+					publish(sub, doc);
+			}
+		}
+
+		/**
+		 * Pick MessagePack if the client offers it, JSON otherwise, agree to
+		 * compression if the client has our dictionary, and say so. The answer
+		 * is queued before anything in MessagePack is, and is never compressed.
+		 */
+		private void hello(JSONArray codecs, long dictionaryId) {
+			String codec = Codec.JSON.getName();
+			for (int i = 0; codecs != null && i < codecs.length(); i++)
+				if (MSGPACK.getName().equals(codecs.optString(i)))
+					codec = MSGPACK.getName();
+
+			Compression compression = mCompression;
+			boolean deflate = compression != null
+					&& compression.getDictionaryId() == dictionaryId;
+
+			byte[] answer;
+			try {
+				answer = ("{\"name\":\"hello\",\"codec\":\"" + codec + "\""
+						+ (deflate ? ",\"deflate\":" + dictionaryId : "") + "}")
+						.getBytes("UTF-8");
+			} catch (UnsupportedEncodingException e) {
+				throw new RuntimeException(e);
+			}
+			mQueue.offer(new Outgoing(answer, false, System.nanoTime(), false));
+			mBinary = codec.equals(MSGPACK.getName());
+			if (deflate && mCompressor == null)
+				mCompressor = compression.newCompressor();
+		}
+
+		/**
+		 * Queue a doc for every subscription it matches.
+		 *
+		 * @param encoded
+		 *          The doc as JSON text
+		 * @param packed
+		 *          The doc in MessagePack, only needed if mBinary
+		 */
+		void deliver(JSONObject doc, byte[] encoded, byte[] packed, long due) {
+			boolean binary = mBinary && packed != null;
+			synchronized (mSubscriptions) {
+				for (Map.Entry<Integer, QueryMatcher> subscription : mSubscriptions
+						.entrySet()) {
+					if (!subscription.getValue().matches(doc))
+						continue;
+
+					int id = subscription.getKey();
+					Outgoing outgoing = binary ? new Outgoing(MessagePackCodec.message(
+							id, packed), true, due) : new Outgoing(message(id, encoded),
+							false, due);
+					if (!mQueue.offer(outgoing))
+						mDropped.incrementAndGet();
+				}
+			}
+		}
+
+		private void write() {
+			FrameBuffer frames = new FrameBuffer();
+			// When the link is free again, with a throughput cap
+			long available = System.nanoTime();
+			try {
+				OutputStream out = mSocket.getOutputStream();
+				while (true) {
+					Outgoing next = mQueue.take();
+					sleepUntil(next.mDue);
+					append(frames, next);
+					int count = 1;
+
+					// With a cap, no more than 10ms worth goes out at once
+					long bytesPerSecond = mBytesPerSecond;
+					long maxWrite = bytesPerSecond > 0 ? Math.min(MAX_WRITE,
+							bytesPerSecond / 100) : MAX_WRITE;
+
+					// Everything else that's due goes out in the same write
+					long now = System.nanoTime();
+					while (frames.length() < maxWrite
+							&& (next = mQueue.peek()) != null && next.mDue <= now) {
+						mQueue.poll();
+						append(frames, next);
+						count++;
+					}
+
+					if (bytesPerSecond > 0) {
+						available = Math.max(available, now);
+						sleepUntil(available);
+						available += frames.length() * 1000000000L / bytesPerSecond;
+					}
+
+					out.write(frames.array(), 0, frames.length());
+					mDelivered.addAndGet(count);
+					frames.clear();
+				}
+			} catch (InterruptedException e) {
+				// Closed
+			} catch (IOException e) {
+				// Gone
+			} finally {
+				close();
+			}
+		}
+
+		private void append(FrameBuffer frames, Outgoing outgoing) {
+			Compression.Compressor compressor = mCompressor;
+			byte[] deflated = compressor != null && outgoing.mDeflatable ? compressor
+					.deflate(outgoing.mMessage) : null;
+			if (deflated != null)
+				frames.appendDeflatedFrame(deflated, 0, deflated.length);
+			else if (outgoing.mBinary)
+				frames.appendBinaryFrame(outgoing.mMessage);
+			else
+				frames.appendFrame(outgoing.mMessage);
+		}
+
+		void close() {
+			mClients.remove(this);
+			try {
+				mSocket.close();
+			} catch (IOException e) {
+				// Closed anyway
+			}
+			mWriter.interrupt();
+
+			Compression.Compressor compressor = mCompressor;
+			if (compressor != null)
+				compressor.end();
+		}
+	}
+
+	private static class Outgoing {
+		final byte[] mMessage;
+		/** True if mMessage is MessagePack */
+		final boolean mBinary;
+		/** System.nanoTime() at which it may be sent */
+		final long mDue;
+		/** False for the hello answer, which the client must read as it is */
+		final boolean mDeflatable;
+
+		Outgoing(byte[] message, boolean binary, long due) {
+			this(message, binary, due, true);
+		}
+
+		Outgoing(byte[] message, boolean binary, long due, boolean deflatable) {
+			mMessage = message;
+			mBinary = binary;
+			mDue = due;
+			mDeflatable = deflatable;
+		}
+	}
+}
@@ -0,0 +1,663 @@
+/*
+ * pubsub.io Android Library
+ * Copyright (C) 2011  Andreas Göransson
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package pubsub.io.core;
+
+import java.io.UnsupportedEncodingException;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * MessagePack, a binary JSON. Numbers are written as binary ints and floats
+ * instead of decimal text, and there are no quotes, colons or commas, so a
+ * doc of numeric sensor readings gets a lot smaller and is parsed without
+ * looking at its numbers digit by digit.
+ *
+ * Messages are transcoded straight from the JSON text, without a JSONObject
+ * in between. A decimal is written as a 32 bit float only when the float is
+ * exactly the same number, as for 0.5 or 1024.25, so any MessagePack reader
+ * gets the decimal back; 9.81 and most other decimals take a 64 bit one.
+ */
+public class MessagePackCodec implements Codec {
+
+	/** Name of the codec, what the hub is asked for */
+	public static final String NAME = "msgpack";
+
+	/** Encoders keep their buffer, one per thread */
+	private static final ThreadLocal<Encoder> sEncoder = new ThreadLocal<Encoder>() {
+		@Override
+		protected Encoder initialValue() {
+			return new Encoder();
+		}
+	};
+
+	public String getName() {
+		return NAME;
+	}
+
+	public boolean isBinary() {
+		return true;
+	}
+
+	public byte[] encode(byte[] json) throws JSONException {
+		return sEncoder.get().encode(json);
+	}
+
+	public JSONObject decode(byte[] buffer, int offset, int length)
+			throws JSONException {
+		Decoder decoder = new Decoder(buffer, offset, length);
+		Object message = decoder.value();
+		if (!(message instanceof JSONObject))
+			throw new JSONException("Message is not a map");
+		if (decoder.mPos != decoder.mEnd)
+			throw new JSONException("Data after the message");
+		return (JSONObject) message;
+	}
+
+	/**
+	 * @param id
+	 * @param doc
+	 *          A doc in MessagePack
+	 * @return The message a subscriber gets for the doc, {"id": id, "doc": doc}
+	 */
+	static byte[] message(int id, byte[] doc) {
+		return sEncoder.get().message(id, doc);
+	}
+
+	/**
+	 * Transcodes JSON text to MessagePack.
+	 */
+	private static class Encoder {
+		/** Largest buffer kept between messages */
+		private static final int MAX_RETAINED = 64 * 1024;
+
+		/** Room left for a map, array or string header until its size is known */
+		private static final int HEADER = 5;
+
+		private static final int MAP = 0;
+		private static final int ARRAY = 1;
+		private static final int STRING = 2;
+
+		private byte[] mIn;
+		private int mPos;
+
+		private byte[] mOut = new byte[1024];
+		private int mLength;
+
+		byte[] encode(byte[] json) throws JSONException {
+			mIn = json;
+			mPos = 0;
+			mLength = 0;
+			try {
+				value();
+				skipWhitespace();
+				if (mPos != mIn.length)
+					throw error("Data after the message");
+				return result();
+			} finally {
+				mIn = null;
+			}
+		}
+
+		byte[] message(int id, byte[] doc) {
+			mLength = 0;
+			writeByte(0x82);
+			writeAscii("id");
+			writeLong(id);
+			writeAscii("doc");
+			ensure(doc.length);
+			System.arraycopy(doc, 0, mOut, mLength, doc.length);
+			mLength += doc.length;
+			return result();
+		}
+
+		private byte[] result() {
+			byte[] result = new byte[mLength];
+			System.arraycopy(mOut, 0, result, 0, mLength);
+			if (mOut.length > MAX_RETAINED)
+				mOut = new byte[1024];
+			return result;
+		}
+
+		private void value() throws JSONException {
+			skipWhitespace();
+			if (mPos == mIn.length)
+				throw error("Value expected");
+
+			switch (mIn[mPos]) {
+			case '{':
+				object();
+				break;
+			case '[':
+				array();
+				break;
+			case '"':
+				string();
+				break;
+			case 't':
+				literal("true");
+				writeByte(0xc3);
+				break;
+			case 'f':
+				literal("false");
+				writeByte(0xc2);
+				break;
+			case 'n':
+				literal("null");
+				writeByte(0xc0);
+				break;
+			default:
+				number();
+			}
+		}
+
+		private void object() throws JSONException {
+			mPos++;
+			int header = beginHeader();
+			int count = 0;
+
+			skipWhitespace();
+			if (peek() == '}') {
+				mPos++;
+			} else {
+				while (true) {
+					skipWhitespace();
+					if (peek() != '"')
+						throw error("Name expected");
+					string();
+					skipWhitespace();
+					if (next() != ':')
+						throw error("':' expected");
+					value();
+					count++;
+
+					skipWhitespace();
+					byte c = next();
+					if (c == '}')
+						break;
+					if (c != ',')
+						throw error("',' or '}' expected");
+				}
+			}
+
+			endHeader(header, MAP, count);
+		}
+
+		private void array() throws JSONException {
+			mPos++;
+			int header = beginHeader();
+			int count = 0;
+
+			skipWhitespace();
+			if (peek() == ']') {
+				mPos++;
+			} else {
+				while (true) {
+					value();
+					count++;
+
+					skipWhitespace();
+					byte c = next();
+					if (c == ']')
+						break;
+					if (c != ',')
+						throw error("',' or ']' expected");
+				}
+			}
+
+			endHeader(header, ARRAY, count);
+		}
+
+		private void string() throws JSONException {
+			mPos++;
+			int header = beginHeader();
+
+			while (true) {
+				// Copy everything up to the next quote or escape at once, the
+				// text is UTF-8 already
+				int start = mPos;
+				while (mPos < mIn.length && mIn[mPos] != '"' && mIn[mPos] != '\\')
+					mPos++;
+				write(mIn, start, mPos - start);
+
+				byte c = next();
+				if (c == '"')
+					break;
+				escape();
+			}
+
+			endHeader(header, STRING, mLength - header - HEADER);
+		}
+
+		private void escape() throws JSONException {
+			byte c = next();
+			switch (c) {
+			case '"':
+			case '\\':
+			case '/':
+				writeByte(c);
+				break;
+			case 'b':
+				writeByte('\b');
+				break;
+			case 'f':
+				writeByte('\f');
+				break;
+			case 'n':
+				writeByte('\n');
+				break;
+			case 'r':
+				writeByte('\r');
+				break;
+			case 't':
+				writeByte('\t');
+				break;
+			case 'u':
+				int code = hex();
+				// A surrogate pair is two escapes
+				if (code >= 0xD800 && code < 0xDC00 && mPos + 1 < mIn.length
+						&& mIn[mPos] == '\\' && mIn[mPos + 1] == 'u') {
+					int save = mPos;
+					mPos += 2;
+					int low = hex();
+					if (low >= 0xDC00 && low < 0xE000)
+						code = 0x10000 + (code - 0xD800 << 10) + (low - 0xDC00);
+					else
+						mPos = save;
+				}
+				writeUtf8(code);
+				break;
+			default:
+				throw error("Bad escape");
+			}
+		}
+
+		private int hex() throws JSONException {
+			if (mPos + 4 > mIn.length)
+				throw error("Bad escape");
+
+			int code = 0;
+			for (int i = 0; i < 4; i++) {
+				int digit = Character.digit(mIn[mPos++], 16);
+				if (digit < 0)
+					throw error("Bad escape");
+				code = code << 4 | digit;
+			}
+			return code;
+		}
+
+		private void number() throws JSONException {
+			int start = mPos;
+			boolean decimal = false;
+			while (mPos < mIn.length) {
+				byte c = mIn[mPos];
+				if (c == '.' || c == 'e' || c == 'E')
+					decimal = true;
+				else if ((c < '0' || c > '9') && c != '-' && c != '+')
+					break;
+				mPos++;
+			}
+			if (mPos == start)
+				throw error("Unexpected character");
+
+			String text;
+			try {
+				text = new String(mIn, start, mPos - start, "US-ASCII");
+			} catch (UnsupportedEncodingException e) {
+				throw new JSONException(e.getMessage());
+			}
+
+			try {
+				if (!decimal) {
+					try {
+						writeLong(Long.parseLong(text));
+						return;
+					} catch (NumberFormatException e) {
+						// Too large for a long, write it like a decimal
+					}
+				}
+				writeDouble(Double.parseDouble(text));
+			} catch (NumberFormatException e) {
+				throw error("Bad number " + text);
+			}
+		}
+
+		private void literal(String literal) throws JSONException {
+			for (int i = 0; i < literal.length(); i++)
+				if (next() != literal.charAt(i))
+					throw error("Unexpected character");
+		}
+
+		private void skipWhitespace() {
+			while (mPos < mIn.length) {
+				byte c = mIn[mPos];
+				if (c != ' ' && c != '\t' && c != '\n' && c != '\r')
+					return;
+				mPos++;
+			}
+		}
+
+		private byte peek() throws JSONException {
+			if (mPos == mIn.length)
+				throw error("Unexpected end");
+			return mIn[mPos];
+		}
+
+		private byte next() throws JSONException {
+			if (mPos == mIn.length)
+				throw error("Unexpected end");
+			return mIn[mPos++];
+		}
+
+		private JSONException error(String message) {
+			return new JSONException(message + " at " + mPos);
+		}
+
+		/**
+		 * Leave room for a header whose size isn't known yet.
+		 */
+		private int beginHeader() {
+			ensure(HEADER);
+			int header = mLength;
+			mLength += HEADER;
+			return header;
+		}
+
+		/**
+		 * Write the smallest header for the size in the room left by
+		 * beginHeader(), and move what follows it back over the rest.
+		 */
+		private void endHeader(int header, int type, int size) {
+			int used;
+			if (type == STRING) {
+				used = size < 32 ? 1 : size < 256 ? 2 : size < 65536 ? 3 : 5;
+			} else {
+				used = size < 16 ? 1 : size < 65536 ? 3 : 5;
+			}
+
+			int body = header + HEADER;
+			if (used < HEADER) {
+				System.arraycopy(mOut, body, mOut, header + used, mLength - body);
+				mLength -= HEADER - used;
+			}
+
+			byte[] out = mOut;
+			if (used == 1) {
+				out[header] = (byte) ((type == MAP ? 0x80 : type == ARRAY ? 0x90
+						: 0xa0) | size);
+			} else if (used == 2) {
+				out[header] = (byte) 0xd9;
+				out[header + 1] = (byte) size;
+			} else if (used == 3) {
+				out[header] = (byte) (type == MAP ? 0xde : type == ARRAY ? 0xdc
+						: 0xda);
+				out[header + 1] = (byte) (size >> 8);
+				out[header + 2] = (byte) size;
+			} else {
+				out[header] = (byte) (type == MAP ? 0xdf : type == ARRAY ? 0xdd
+						: 0xdb);
+				out[header + 1] = (byte) (size >>> 24);
+				out[header + 2] = (byte) (size >> 16);
+				out[header + 3] = (byte) (size >> 8);
+				out[header + 4] = (byte) size;
+			}
+		}
+
+		private void writeLong(long value) {
+			if (value >= 0) {
+				if (value < 128) {
+					writeByte((int) value);
+				} else if (value < 256) {
+					writeByte(0xcc);
+					writeByte((int) value);
+				} else if (value < 65536) {
+					writeByte(0xcd);
+					writeBytes(value, 2);
+				} else if (value < 1L << 32) {
+					writeByte(0xce);
+					writeBytes(value, 4);
+				} else {
+					writeByte(0xcf);
+					writeBytes(value, 8);
+				}
+			} else {
+				if (value >= -32) {
+					writeByte((int) value);
+				} else if (value >= Byte.MIN_VALUE) {
+					writeByte(0xd0);
+					writeByte((int) value);
+				} else if (value >= Short.MIN_VALUE) {
+					writeByte(0xd1);
+					writeBytes(value, 2);
+				} else if (value >= Integer.MIN_VALUE) {
+					writeByte(0xd2);
+					writeBytes(value, 4);
+				} else {
+					writeByte(0xd3);
+					writeBytes(value, 8);
+				}
+			}
+		}
+
+		private void writeDouble(double value) {
+			float f = (float) value;
+			// A float is only enough if it's the very same number
+			if (f == value) {
+				writeByte(0xca);
+				writeBytes(Float.floatToIntBits(f), 4);
+			} else {
+				writeByte(0xcb);
+				writeBytes(Double.doubleToLongBits(value), 8);
+			}
+		}
+
+		private void writeAscii(String text) {
+			writeByte(0xa0 | text.length());
+			for (int i = 0; i < text.length(); i++)
+				writeByte(text.charAt(i));
+		}
+
+		private void writeUtf8(int code) {
+			if (code < 0x80) {
+				writeByte(code);
+			} else if (code < 0x800) {
+				writeByte(0xc0 | code >> 6);
+				writeByte(0x80 | code & 0x3f);
+			} else if (code < 0x10000) {
+				writeByte(0xe0 | code >> 12);
+				writeByte(0x80 | code >> 6 & 0x3f);
+				writeByte(0x80 | code & 0x3f);
+			} else {
+				writeByte(0xf0 | code >> 18);
+				writeByte(0x80 | code >> 12 & 0x3f);
+				writeByte(0x80 | code >> 6 & 0x3f);
+				writeByte(0x80 | code & 0x3f);
+			}
+		}
+
+		/** The lowest count bytes of value, big endian */
+		private void writeBytes(long value, int count) {
+			ensure(count);
+			for (int shift = (count - 1) * 8; shift >= 0; shift -= 8)
+				mOut[mLength++] = (byte) (value >> shift);
+		}
+
+		private void writeByte(int b) {
+			ensure(1);
+			mOut[mLength++] = (byte) b;
+		}
+
+		private void write(byte[] data, int offset, int length) {
+			ensure(length);
+			System.arraycopy(data, offset, mOut, mLength, length);
+			mLength += length;
+		}
+
+		private void ensure(int count) {
+			if (mLength + count <= mOut.length)
+				return;
+
+			int size = mOut.length * 2;
+			while (size < mLength + count)
+				size *= 2;
+			byte[] grown = new byte[size];
+			System.arraycopy(mOut, 0, grown, 0, mLength);
+			mOut = grown;
+		}
+	}
+
+	/**
+	 * Reads MessagePack into JSONObjects and JSONArrays.
+	 */
+	private static class Decoder {
+		private final byte[] mIn;
+		int mPos;
+		final int mEnd;
+
+		Decoder(byte[] buffer, int offset, int length) {
+			mIn = buffer;
+			mPos = offset;
+			mEnd = offset + length;
+		}
+
+		Object value() throws JSONException {
+			int b = readByte();
+			if (b < 0x80)
+				return Integer.valueOf(b);
+			if (b >= 0xe0)
+				return Integer.valueOf((byte) b);
+			if (b < 0x90)
+				return map(b & 0x0f);
+			if (b < 0xa0)
+				return array(b & 0x0f);
+			if (b < 0xc0)
+				return string(b & 0x1f);
+
+			switch (b) {
+			case 0xc0:
+				return JSONObject.NULL;
+			case 0xc2:
+				return Boolean.FALSE;
+			case 0xc3:
+				return Boolean.TRUE;
+			case 0xca:
+				float f = Float.intBitsToFloat((int) read(4));
+				return Double.valueOf(f);
+			case 0xcb:
+				return Double.valueOf(Double.longBitsToDouble(read(8)));
+			case 0xcc:
+				return number(read(1));
+			case 0xcd:
+				return number(read(2));
+			case 0xce:
+				return number(read(4));
+			case 0xcf:
+				return number(read(8));
+			case 0xd0:
+				return number((byte) read(1));
+			case 0xd1:
+				return number((short) read(2));
+			case 0xd2:
+				return number((int) read(4));
+			case 0xd3:
+				return number(read(8));
+			case 0xd9:
+				return string(size(1));
+			case 0xda:
+				return string(size(2));
+			case 0xdb:
+				return string(size(4));
+			case 0xdc:
+				return array(size(2));
+			case 0xdd:
+				return array(size(4));
+			case 0xde:
+				return map(size(2));
+			case 0xdf:
+				return map(size(4));
+			default:
+				throw new JSONException("Unsupported MessagePack type 0x"
+						+ Integer.toHexString(b));
+			}
+		}
+
+		private JSONObject map(int size) throws JSONException {
+			JSONObject map = new JSONObject();
+			for (int i = 0; i < size; i++) {
+				Object key = value();
+				map.put(key instanceof String ? (String) key : String.valueOf(key),
+						value());
+			}
+			return map;
+		}
+
+		private JSONArray array(int size) throws JSONException {
+			JSONArray array = new JSONArray();
+			for (int i = 0; i < size; i++)
+				array.put(value());
+			return array;
+		}
+
+		private String string(int length) throws JSONException {
+			require(length);
+			try {
+				String string = new String(mIn, mPos, length, "UTF-8");
+				mPos += length;
+				return string;
+			} catch (UnsupportedEncodingException e) {
+				throw new JSONException(e.getMessage());
+			}
+		}
+
+		/** Integers the way JSONObject parses them, Integer if it fits */
+		private static Object number(long value) {
+			if (value == (int) value)
+				return Integer.valueOf((int) value);
+			return Long.valueOf(value);
+		}
+
+		private int size(int bytes) throws JSONException {
+			long size = read(bytes);
+			if (size > mEnd - mPos)
+				throw new JSONException("Truncated message");
+			return (int) size;
+		}
+
+		private int readByte() throws JSONException {
+			require(1);
+			return mIn[mPos++] & 0xff;
+		}
+
+		/** count bytes, big endian, unsigned below 8 */
+		private long read(int count) throws JSONException {
+			require(count);
+			long value = 0;
+			for (int i = 0; i < count; i++)
+				value = value << 8 | mIn[mPos++] & 0xff;
+			return value;
+		}
+
+		private void require(int count) throws JSONException {
+			if (count < 0 || count > mEnd - mPos)
+				throw new JSONException("Truncated message");
+		}
+	}
+}
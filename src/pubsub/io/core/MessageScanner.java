@@ -0,0 +1,288 @@
+/*
+ * pubsub.io Android Library
+ * Copyright (C) 2011  Andreas Göransson
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pubsub.io.core;
+
+/**
+ * Finds the "id" and the "doc" of an incoming message without parsing it. The
+ * message is walked once, on the raw UTF-8 bytes, and only the top level keys
+ * are looked at; nested objects, arrays and strings are skipped over.
+ *
+ * This is enough to decide where a message should go before spending any
+ * time on the doc, which is only parsed if someone actually wants it.
+ *
+ * An instance holds the result of the last scan, every reader keeps its own.
+ */
+public class MessageScanner {
+
+	private static final byte[] ID = { 'i', 'd' };
+	private static final byte[] DOC = { 'd', 'o', 'c' };
+
+	/** The id of the last scanned message */
+	public int id;
+
+	/** Where the doc of the last scanned message starts, -1 if it had none */
+	public int docOffset;
+
+	/** Number of bytes in the doc of the last scanned message */
+	public int docLength;
+
+	/** Where the value found by the last findField() starts, or -1 */
+	public int valueOffset;
+
+	/** Number of bytes in the value found by the last findField() */
+	public int valueLength;
+
+	private byte[] mBuffer;
+	private int mEnd;
+
+	/**
+	 * Scan a message for its id and doc.
+	 *
+	 * @param buffer
+	 * @param offset
+	 * @param length
+	 * @return true if the message is an object with an integer id, false if it
+	 *         needs to be parsed the slow way
+	 */
+	public boolean scan(byte[] buffer, int offset, int length) {
+		mBuffer = buffer;
+		mEnd = offset + length;
+		docOffset = -1;
+		docLength = 0;
+
+		boolean hasId = false;
+
+		try {
+			int i = skipWhitespace(offset);
+			if (i >= mEnd || buffer[i] != '{')
+				return false;
+
+			i = skipWhitespace(i + 1);
+			if (i < mEnd && buffer[i] == '}')
+				return false;
+
+			while (i < mEnd) {
+				// Key
+				if (buffer[i] != '"')
+					return false;
+				int keyStart = i + 1;
+				i = skipString(i);
+				int keyEnd = i - 1;
+
+				i = skipWhitespace(i);
+				if (i >= mEnd || buffer[i] != ':')
+					return false;
+				i = skipWhitespace(i + 1);
+
+				// Value
+				if (equals(keyStart, keyEnd, ID)) {
+					i = parseId(i);
+					if (i < 0)
+						return false;
+					hasId = true;
+				} else if (equals(keyStart, keyEnd, DOC)) {
+					docOffset = i;
+					i = skipValue(i);
+					docLength = i - docOffset;
+				} else {
+					i = skipValue(i);
+				}
+
+				i = skipWhitespace(i);
+				if (i >= mEnd)
+					return false;
+				if (buffer[i] == '}')
+					return hasId;
+				if (buffer[i] != ',')
+					return false;
+				i = skipWhitespace(i + 1);
+			}
+		} finally {
+			mBuffer = null;
+		}
+
+		return false;
+	}
+
+	/**
+	 * Find a top level field of an object, like the doc of a scanned message,
+	 * without parsing it. The key is compared as it's written, escapes and all.
+	 *
+	 * @param buffer
+	 * @param offset
+	 * @param length
+	 * @param key
+	 *          The field name as UTF-8
+	 * @return Where the value starts, as in valueOffset, or -1 if the object
+	 *         has no such field or isn't an object
+	 */
+	public int findField(byte[] buffer, int offset, int length, byte[] key) {
+		mBuffer = buffer;
+		mEnd = offset + length;
+		valueOffset = -1;
+		valueLength = 0;
+
+		try {
+			int i = skipWhitespace(offset);
+			if (i >= mEnd || buffer[i] != '{')
+				return -1;
+			i = skipWhitespace(i + 1);
+
+			while (i < mEnd && buffer[i] == '"') {
+				int keyStart = i + 1;
+				i = skipString(i);
+				int keyEnd = i - 1;
+
+				i = skipWhitespace(i);
+				if (i >= mEnd || buffer[i] != ':')
+					return -1;
+				i = skipWhitespace(i + 1);
+
+				int start = i;
+				i = skipValue(i);
+				if (equals(keyStart, keyEnd, key)) {
+					valueOffset = start;
+					valueLength = i - start;
+					return start;
+				}
+
+				i = skipWhitespace(i);
+				if (i >= mEnd || buffer[i] != ',')
+					return -1;
+				i = skipWhitespace(i + 1);
+			}
+		} finally {
+			mBuffer = null;
+		}
+
+		return -1;
+	}
+
+	/**
+	 * Parse a plain integer id, returns the index after it or -1.
+	 */
+	private int parseId(int i) {
+		boolean negative = false;
+		if (i < mEnd && mBuffer[i] == '-') {
+			negative = true;
+			i++;
+		}
+
+		int start = i;
+		long value = 0;
+		while (i < mEnd && mBuffer[i] >= '0' && mBuffer[i] <= '9') {
+			value = value * 10 + (mBuffer[i] - '0');
+			if (value > Integer.MAX_VALUE + 1L)
+				return -1;
+			i++;
+		}
+
+		if (i == start)
+			return -1;
+
+		// A fraction or exponent means it's not a plain int, let JSONObject
+		// decide what to make of it
+		if (i < mEnd
+				&& (mBuffer[i] == '.' || mBuffer[i] == 'e' || mBuffer[i] == 'E'))
+			return -1;
+
+		value = negative ? -value : value;
+		if (value > Integer.MAX_VALUE)
+			return -1;
+
+		id = (int) value;
+		return i;
+	}
+
+	/**
+	 * Skip any JSON value, returns the index after it.
+	 */
+	private int skipValue(int i) {
+		if (i >= mEnd)
+			return i;
+
+		byte b = mBuffer[i];
+		if (b == '"')
+			return skipString(i);
+
+		if (b == '{' || b == '[') {
+			int depth = 0;
+			while (i < mEnd) {
+				b = mBuffer[i];
+				if (b == '"') {
+					i = skipString(i);
+					continue;
+				}
+				if (b == '{' || b == '[')
+					depth++;
+				else if ((b == '}' || b == ']') && --depth == 0)
+					return i + 1;
+				i++;
+			}
+			return i;
+		}
+
+		// Number, true, false or null
+		while (i < mEnd) {
+			b = mBuffer[i];
+			if (b == ',' || b == '}' || b == ']' || b == ' ' || b == '\t'
+					|| b == '\n' || b == '\r')
+				break;
+			i++;
+		}
+		return i;
+	}
+
+	/**
+	 * Skip a string starting at the opening quote, returns the index after the
+	 * closing quote.
+	 */
+	private int skipString(int i) {
+		i++;
+		while (i < mEnd) {
+			byte b = mBuffer[i];
+			if (b == '\\')
+				i += 2;
+			else if (b == '"')
+				return i + 1;
+			else
+				i++;
+		}
+		return mEnd;
+	}
+
+	private int skipWhitespace(int i) {
+		while (i < mEnd) {
+			byte b = mBuffer[i];
+			if (b != ' ' && b != '\t' && b != '\n' && b != '\r')
+				break;
+			i++;
+		}
+		return i;
+	}
+
+	private boolean equals(int start, int end, byte[] key) {
+		if (end - start != key.length)
+			return false;
+		for (int i = 0; i < key.length; i++)
+			if (mBuffer[start + i] != key[i])
+				return false;
+		return true;
+	}
+}
@@ -0,0 +1,90 @@
+/*
+ * pubsub.io Android Library
+ * Copyright (C) 2011  Andreas Göransson
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pubsub.io.core;
+
+/**
+ * Receives the measurements of a connection. Called from the I/O threads, so
+ * an implementation must be thread safe and quick.
+ *
+ * NONE is the default; with it nothing is measured at all, not even the
+ * clock is read.
+ */
+public interface MetricsSink {
+
+	// Counters, see count()
+	/** Bytes read from the hub */
+	public static final int BYTES_IN = 0;
+	/** Bytes written to the hub */
+	public static final int BYTES_OUT = 1;
+	/** Complete messages read from the hub */
+	public static final int FRAMES_IN = 2;
+	/** Messages written to the hub */
+	public static final int FRAMES_OUT = 3;
+	/** Reconnect attempts made by the supervisor, see setReconnect() */
+	public static final int RECONNECTS = 4;
+
+	/** Number of counters */
+	public static final int COUNTERS = 5;
+
+	// Histograms, see record()
+	/** Microseconds spent finding a message in the bytes read */
+	public static final int DECODE_TIME = 0;
+	/**
+	 * Microseconds spent parsing a message, in PARSE_LAZY mode only the id is
+	 * read here
+	 */
+	public static final int PARSE_TIME = 1;
+	/** Messages waiting to be written, sampled whenever one is queued */
+	public static final int QUEUE_DEPTH = 2;
+	/**
+	 * Microseconds from the read that completed a message to the listener (or
+	 * queued callback) being called with its doc
+	 */
+	public static final int DELIVERY_TIME = 3;
+	/** Milliseconds a connection was up, recorded when it's lost */
+	public static final int UPTIME = 4;
+
+	/** Number of histograms */
+	public static final int HISTOGRAMS = 5;
+
+	/** Measures nothing */
+	public static final MetricsSink NONE = new MetricsSink() {
+		public void count(int counter, long delta) {
+		}
+
+		public void record(int histogram, long value) {
+		}
+	};
+
+	/**
+	 * @param counter
+	 *          One of the counter constants
+	 * @param delta
+	 *          Amount to add
+	 */
+	public void count(int counter, long delta);
+
+	/**
+	 * @param histogram
+	 *          One of the histogram constants
+	 * @param value
+	 *          The measurement, in the unit of the histogram
+	 */
+	public void record(int histogram, long value);
+}
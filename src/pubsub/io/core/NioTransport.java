@@ -0,0 +1,471 @@
+/*
+ * pubsub.io Android Library
+ * Copyright (C) 2011  Andreas Göransson
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pubsub.io.core;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.json.JSONException;
+
+/**
+ * Non-blocking transport. Instead of a ConnectThread and a ConnectedThread per
+ * connection every connection is served by the one shared PubsubSelector
+ * thread, and reads and writes go through pooled direct buffers.
+ *
+ * Callback.onRead() is never called since the read bytes never end up in a
+ * byte array. The selector thread is the writer of every connection, the write
+ * queue capacity and max batch size from setWriteQueue() apply, there is no
+ * linger.
+ */
+class NioTransport extends Transport {
+
+	private final static String TAG = "NioTransport";
+
+	/** Smallest read buffer, used for new and quiet connections */
+	private static final int MIN_READ_BUFFER = 1024;
+
+	/** Largest read buffer a busy connection can grow to */
+	private static final int MAX_READ_BUFFER = 64 * 1024;
+
+	/** Number of small reads in a row before the read buffer is shrunk */
+	private static final int SHRINK_AFTER = 32;
+
+	private final PubsubSelector mSelector;
+	private final BufferPool mPool;
+
+	/** The current connection, null when not connected */
+	private Connection mConnection;
+
+	NioTransport(PubsubClient client, PubsubSelector selector, BufferPool pool) {
+		super(client);
+		mSelector = selector;
+		mPool = pool;
+	}
+
+	/**
+	 * Start a non-blocking connect on the shared selector.
+	 */
+	void connect(String host, int port, String sub) {
+		mConnection = new Connection(host, sub);
+
+		mSelector.connect(host, port, mConnection, mClient.mConnectionFactory);
+	}
+
+	/**
+	 * Close the current connection, if any.
+	 */
+	void close() {
+		if (mConnection != null) {
+			mConnection.cancel();
+			mConnection = null;
+		}
+	}
+
+	/**
+	 * Queue a message for the selector thread, this never blocks.
+	 */
+	boolean offer(byte[] out) {
+		Connection c;
+		synchronized (mClient) {
+			if (mClient.getState() != PubsubClient.STATE_CONNECTED)
+				return false;
+			c = mConnection;
+		}
+		return c.write(out);
+	}
+
+	void holdReads(boolean held) {
+		// A held connection stops reading on its next onRead()
+		if (!held && mConnection != null)
+			mConnection.resumeReads();
+	}
+
+	/**
+	 * @return true if c is still the current connection
+	 */
+	private boolean isCurrent(Connection c) {
+		synchronized (mClient) {
+			return mConnection == c;
+		}
+	}
+
+	/**
+	 * A single connection to a hub. Everything except write() and cancel() runs
+	 * on the selector thread.
+	 */
+	private class Connection implements PubsubSelector.Session,
+			FrameDecoder.DeflateListener {
+		private final String mmHost;
+		private final String mmSub;
+
+		private final FrameDecoder mmDecoder;
+		private final MessageScanner mmScanner;
+
+		/** Framed messages waiting to be written */
+		private final ConcurrentLinkedQueue<ByteBuffer> mmOutbound;
+		private final AtomicInteger mmQueued;
+		private final int mmCapacity;
+		private final ByteBuffer[] mmGather;
+
+		private ByteBuffer mmReadBuffer;
+		private int mmSmallReads;
+
+		// Measurements of the current read, mmReadNanos is 0 when not measured
+		private MetricsSink mmMetrics;
+		private long mmReadNanos;
+		private long mmDecodeStart;
+
+		private volatile SelectionKey mmKey;
+		private volatile boolean mmClosed;
+
+		/** No bytes for this long and the connection is lost, 0 for never */
+		private final int mmIdleTimeout;
+		private long mmLastRead;
+
+		private final Runnable mmIdleCheck = new Runnable() {
+			public void run() {
+				if (mmClosed)
+					return;
+
+				// Not reading on purpose isn't the hub going quiet
+				if (mClient.mReadsHeld)
+					mmLastRead = PubsubClient.uptimeMillis();
+
+				long quiet = PubsubClient.uptimeMillis() - mmLastRead;
+				if (quiet >= mmIdleTimeout) {
+					PubsubLog.e(TAG, "Nothing from the hub for " + quiet + " ms");
+					lost();
+				} else {
+					mSelector.schedule(this, mmIdleTimeout - quiet);
+				}
+			}
+		};
+
+		public Connection(String host, String sub) {
+			mmHost = host;
+			mmSub = sub;
+			mmDecoder = new FrameDecoder();
+			mmScanner = new MessageScanner();
+			mmOutbound = new ConcurrentLinkedQueue<ByteBuffer>();
+			mmQueued = new AtomicInteger();
+			mmCapacity = mClient.mWriteCapacity;
+			mmGather = new ByteBuffer[mClient.mWriteMaxBatch];
+			mmIdleTimeout = mClient.mConnectionFactory.getIdleTimeout();
+		}
+
+		public void onConnect(SelectionKey key) {
+			SocketChannel channel = (SocketChannel) key.channel();
+			mmKey = key;
+
+			if (mmClosed) {
+				close();
+				return;
+			}
+
+			try {
+				if (channel.isConnectionPending())
+					channel.finishConnect();
+			} catch (IOException e) {
+				PubsubLog.e(TAG, "connect to " + mmHost + " failed", e);
+				close();
+				if (isCurrent(this))
+					mClient.connectionFailed();
+				return;
+			}
+
+			mmReadBuffer = mPool.acquire(MIN_READ_BUFFER);
+			key.interestOps(SelectionKey.OP_READ
+					| (mmOutbound.isEmpty() ? 0 : SelectionKey.OP_WRITE));
+
+			if (mmIdleTimeout > 0) {
+				mmLastRead = PubsubClient.uptimeMillis();
+				mSelector.schedule(mmIdleCheck, mmIdleTimeout);
+			}
+
+			if (isCurrent(this))
+				mClient.connected(mmHost, mmSub);
+		}
+
+		public void onConnectFailed(IOException e) {
+			PubsubLog.e(TAG, "connect to " + mmHost + " failed", e);
+			if (!mmClosed && isCurrent(this))
+				mClient.connectionFailed();
+		}
+
+		public void onRead(SelectionKey key) {
+			if (mClient.mReadsHeld) {
+				// The hub gets TCP backpressure until resumeReads()
+				key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+				return;
+			}
+
+			SocketChannel channel = (SocketChannel) key.channel();
+
+			int bytes;
+			try {
+				bytes = channel.read(mmReadBuffer);
+			} catch (IOException e) {
+				PubsubLog.e(TAG, "disconnected", e);
+				lost();
+				return;
+			}
+
+			if (bytes == -1) {
+				// End of stream.
+				PubsubLog.e(TAG, "End of stream found (-1).");
+				lost();
+				return;
+			}
+			mmLastRead = PubsubClient.uptimeMillis();
+
+			mmMetrics = mClient.mMetrics;
+			if (mmMetrics != MetricsSink.NONE) {
+				mmMetrics.count(MetricsSink.BYTES_IN, bytes);
+				mmReadNanos = System.nanoTime();
+				mmDecodeStart = mmReadNanos;
+			} else {
+				mmReadNanos = 0;
+			}
+
+			mmReadBuffer.flip();
+			mmDecoder.decode(mmReadBuffer, this);
+
+			resizeReadBuffer(bytes);
+		}
+
+		public void onFrame(byte[] buffer, int offset, int length) {
+			if (mmReadNanos == 0) {
+				mClient.process(mmScanner, buffer, offset, length, 0);
+				return;
+			}
+
+			mmMetrics.count(MetricsSink.FRAMES_IN, 1);
+			mmMetrics.record(MetricsSink.DECODE_TIME,
+					(System.nanoTime() - mmDecodeStart) / 1000);
+			mClient.process(mmScanner, buffer, offset, length, mmReadNanos);
+			mmDecodeStart = System.nanoTime();
+		}
+
+		public void onBinaryFrame(byte[] buffer, int offset, int length) {
+			if (mmReadNanos == 0) {
+				mClient.processBinary(buffer, offset, length, 0);
+				return;
+			}
+
+			mmMetrics.count(MetricsSink.FRAMES_IN, 1);
+			mmMetrics.record(MetricsSink.DECODE_TIME,
+					(System.nanoTime() - mmDecodeStart) / 1000);
+			mClient.processBinary(buffer, offset, length, mmReadNanos);
+			mmDecodeStart = System.nanoTime();
+		}
+
+		public void onDeflatedFrame(byte[] buffer, int offset, int length) {
+			if (mmReadNanos == 0) {
+				mClient.processDeflated(mmScanner, buffer, offset, length, 0);
+				return;
+			}
+
+			mmMetrics.count(MetricsSink.FRAMES_IN, 1);
+			mmMetrics.record(MetricsSink.DECODE_TIME,
+					(System.nanoTime() - mmDecodeStart) / 1000);
+			mClient.processDeflated(mmScanner, buffer, offset, length, mmReadNanos);
+			mmDecodeStart = System.nanoTime();
+		}
+
+		/**
+		 * Grow the read buffer when a read fills it, and shrink it again when
+		 * the connection has been quiet for a while.
+		 */
+		private void resizeReadBuffer(int bytes) {
+			int capacity = mmReadBuffer.capacity();
+
+			if (bytes == capacity && capacity < MAX_READ_BUFFER) {
+				mPool.release(mmReadBuffer);
+				mmReadBuffer = mPool.acquire(capacity * 2);
+				mmSmallReads = 0;
+			} else if (bytes < capacity / 4 && capacity > MIN_READ_BUFFER) {
+				if (++mmSmallReads >= SHRINK_AFTER) {
+					mPool.release(mmReadBuffer);
+					mmReadBuffer = mPool.acquire(capacity / 2);
+					mmSmallReads = 0;
+				} else {
+					mmReadBuffer.clear();
+				}
+			} else {
+				mmSmallReads = 0;
+				mmReadBuffer.clear();
+			}
+		}
+
+		public void onWrite(SelectionKey key) {
+			SocketChannel channel = (SocketChannel) key.channel();
+
+			// Gather as many queued frames as we can into a single write
+			int count = 0;
+			Iterator<ByteBuffer> it = mmOutbound.iterator();
+			while (count < mmGather.length && it.hasNext())
+				mmGather[count++] = it.next();
+
+			long written;
+			try {
+				written = channel.write(mmGather, 0, count);
+			} catch (IOException e) {
+				PubsubLog.e(TAG, "Exception during write", e);
+				lost();
+				return;
+			} finally {
+				for (int i = 0; i < count; i++)
+					mmGather[i] = null;
+			}
+
+			// Recycle everything that was fully written
+			int frames = 0;
+			ByteBuffer head;
+			while ((head = mmOutbound.peek()) != null && !head.hasRemaining()) {
+				mPool.release(mmOutbound.poll());
+				mmQueued.decrementAndGet();
+				frames++;
+			}
+
+			MetricsSink metrics = mClient.mMetrics;
+			metrics.count(MetricsSink.BYTES_OUT, written);
+			metrics.count(MetricsSink.FRAMES_OUT, frames);
+
+			if (mmOutbound.isEmpty())
+				key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+		}
+
+		/**
+		 * Frame a message straight into a pooled buffer and queue it for the
+		 * selector thread.
+		 */
+		public boolean write(byte[] buffer) {
+			// In the codec of the connection, encoded here on the caller's thread
+			Codec codec = mClient.mWireCodec;
+			byte[] payload = buffer;
+			if (codec.isBinary()) {
+				try {
+					payload = codec.encode(buffer);
+				} catch (JSONException e) {
+					// Never writable, don't have the outbox offer it again
+					PubsubLog.e(TAG, e.getMessage(), e);
+					return true;
+				}
+			}
+
+			int queued = mmQueued.incrementAndGet();
+			if (queued > mmCapacity) {
+				mmQueued.decrementAndGet();
+				return false;
+			}
+			mClient.mMetrics.record(MetricsSink.QUEUE_DEPTH, queued);
+
+			// Compressed on the caller's thread as well
+			Compression.Compressor compressor = mClient.mWireCompressor;
+			byte[] deflated = compressor != null ? compressor.deflate(payload)
+					: null;
+
+			ByteBuffer frame;
+			if (deflated != null) {
+				frame = mPool.acquire(FrameDecoder.BINARY_HEADER_LENGTH
+						+ deflated.length);
+				frame.put(FrameDecoder.DEFLATE_HEADER).putInt(deflated.length)
+						.put(deflated);
+			} else if (codec.isBinary()) {
+				frame = mPool.acquire(FrameDecoder.BINARY_HEADER_LENGTH
+						+ payload.length);
+				frame.put(FrameDecoder.BINARY_HEADER).putInt(payload.length)
+						.put(payload);
+			} else {
+				frame = mPool.acquire(payload.length + 2);
+				frame.put(FrameDecoder.HEADER).put(payload).put(FrameDecoder.FOOTER);
+			}
+			frame.flip();
+			mmOutbound.offer(frame);
+
+			SelectionKey key = mmKey;
+			if (key != null)
+				mSelector.addInterest(key, SelectionKey.OP_WRITE);
+
+			// Share the sent message with the app
+			mClient.mCallback.onSent(buffer);
+			return true;
+		}
+
+		/**
+		 * Read again after the reads were held, from any thread.
+		 */
+		public void resumeReads() {
+			SelectionKey key = mmKey;
+			if (key != null)
+				mSelector.addInterest(key, SelectionKey.OP_READ);
+		}
+
+		/**
+		 * Close the connection and tell the client, unless it was closed on
+		 * purpose.
+		 */
+		private void lost() {
+			if (mmClosed)
+				return;
+			close();
+			if (isCurrent(this))
+				mClient.connectionLost();
+		}
+
+		/**
+		 * Close the connection from any thread.
+		 */
+		public void cancel() {
+			mmClosed = true;
+			mSelector.execute(new Runnable() {
+				public void run() {
+					close();
+				}
+			});
+		}
+
+		/**
+		 * Close the channel and return the buffers, only on the selector thread.
+		 */
+		private void close() {
+			mmClosed = true;
+
+			SelectionKey key = mmKey;
+			if (key != null) {
+				key.cancel();
+				PubsubSelector.close(key.channel());
+			}
+
+			if (mmReadBuffer != null) {
+				mPool.release(mmReadBuffer);
+				mmReadBuffer = null;
+			}
+
+			ByteBuffer frame;
+			while ((frame = mmOutbound.poll()) != null)
+				mPool.release(frame);
+		}
+	}
+}
@@ -0,0 +1,379 @@
+/*
+ * pubsub.io Android Library
+ * Copyright (C) 2011  Andreas Göransson
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pubsub.io.core;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Keeps publishes that couldn't be sent, because we were offline or the write
+ * queue was full, in a journal on disk and sends them in order once there is
+ * room again.
+ *
+ * The journal is a directory of fixed size segment files, each mapped into
+ * memory, so appending a message is a memory copy rather than a write() call
+ * and survives the app being killed. Every record is
+ *
+ * <pre>
+ * int length | long time | message
+ * </pre>
+ *
+ * and the length is written last, so a record is either complete or not there
+ * at all. Sent records are marked by negating their length. A segment is
+ * deleted once every record in it has been sent or dropped, which is all the
+ * compaction there is.
+ *
+ * When the journal grows over its size limit the oldest segment is dropped,
+ * and records older than the age limit are dropped instead of sent.
+ */
+public class Outbox {
+
+	/** Default size of a segment file */
+	public static final int DEFAULT_SEGMENT_SIZE = 256 * 1024;
+
+	private static final String PREFIX = "outbox-";
+	private static final String SUFFIX = ".seg";
+
+	/** length + time */
+	private static final int RECORD_HEADER = 4 + 8;
+
+	/**
+	 * Takes the messages the outbox sends.
+	 */
+	public interface Sink {
+		/**
+		 * @param message
+		 * @return false if the message can't be taken right now, it's offered
+		 *         again later
+		 */
+		boolean offer(byte[] message);
+	}
+
+	private final File mDir;
+	private final int mSegmentSize;
+	private final long mMaxBytes;
+	private final long mMaxAgeMillis;
+
+	/** Oldest first, the last one is appended to */
+	private final List<Segment> mSegments;
+	private long mNextSequence;
+
+	/** Records waiting to be sent */
+	private int mPending;
+
+	private long mDropped;
+	private long mExpired;
+
+	/**
+	 * Open the outbox in dir, with whatever an earlier outbox left there.
+	 *
+	 * @param dir
+	 *          Directory of the journal, created if needed
+	 * @param segmentSize
+	 *          Size of each segment file, which is also the max size of a
+	 *          message
+	 * @param maxBytes
+	 *          Max size of the journal, the oldest segments are dropped beyond
+	 *          it
+	 * @param maxAgeMillis
+	 *          Records older than this are dropped instead of sent, 0 for no
+	 *          limit
+	 * @throws IOException
+	 */
+	public Outbox(File dir, int segmentSize, long maxBytes, long maxAgeMillis)
+			throws IOException {
+		if (!dir.isDirectory() && !dir.mkdirs())
+			throw new IOException("Can't create " + dir);
+
+		mDir = dir;
+		mSegmentSize = segmentSize;
+		mMaxBytes = Math.max(maxBytes, segmentSize);
+		mMaxAgeMillis = maxAgeMillis;
+		mSegments = new ArrayList<Segment>();
+
+		// Pick up where the last outbox stopped
+		String[] names = dir.list();
+		long[] sequences = new long[names != null ? names.length : 0];
+		int count = 0;
+		for (int i = 0; i < sequences.length; i++) {
+			String name = names[i];
+			if (name.startsWith(PREFIX) && name.endsWith(SUFFIX)) {
+				try {
+					sequences[count++] = Long.parseLong(name.substring(
+							PREFIX.length(), name.length() - SUFFIX.length()));
+				} catch (NumberFormatException e) {
+					// Not ours
+				}
+			}
+		}
+		Arrays.sort(sequences, 0, count);
+
+		for (int i = 0; i < count; i++) {
+			Segment segment = new Segment(sequences[i]);
+			mPending += segment.recover();
+			mSegments.add(segment);
+			mNextSequence = sequences[i] + 1;
+		}
+
+		compact();
+	}
+
+	/**
+	 * Send a message through the outbox: straight to the sink if nothing is
+	 * waiting and the sink takes it, else to the journal behind everything
+	 * that's already waiting, so the order is kept.
+	 *
+	 * @param message
+	 * @param sink
+	 *          null if there's no connection
+	 * @return false if the message was too large for a segment and dropped
+	 * @throws IOException
+	 *           If a new segment couldn't be created
+	 */
+	public synchronized boolean publish(byte[] message, Sink sink)
+			throws IOException {
+		if (mPending == 0 && sink != null && sink.offer(message))
+			return true;
+
+		if (!append(message))
+			return false;
+
+		if (sink != null)
+			drain(sink);
+		return true;
+	}
+
+	/**
+	 * Offer waiting messages to the sink, oldest first, until it stops taking
+	 * them.
+	 *
+	 * @param sink
+	 * @return Number of messages the sink took
+	 */
+	public synchronized int drain(Sink sink) {
+		long oldest = mMaxAgeMillis > 0 ? System.currentTimeMillis()
+				- mMaxAgeMillis : Long.MIN_VALUE;
+
+		int sent = 0;
+		while (mPending > 0 && !mSegments.isEmpty()) {
+			Segment segment = mSegments.get(0);
+			MappedByteBuffer buffer = segment.mBuffer;
+
+			int position = segment.mReadPosition;
+			if (position >= segment.mWritePosition) {
+				if (segment == current())
+					break;
+				// Everything in it is sent
+				mSegments.remove(0);
+				segment.delete();
+				continue;
+			}
+
+			int length = buffer.getInt(position);
+			long time = buffer.getLong(position + 4);
+
+			if (time >= oldest) {
+				byte[] message = new byte[length];
+				for (int i = 0; i < length; i++)
+					message[i] = buffer.get(position + RECORD_HEADER + i);
+				if (!sink.offer(message))
+					break;
+				sent++;
+			} else {
+				mExpired++;
+			}
+
+			buffer.putInt(position, -length);
+			segment.mReadPosition = position + RECORD_HEADER + length;
+			mPending--;
+		}
+
+		if (mPending == 0)
+			compact();
+		return sent;
+	}
+
+	/**
+	 * @return Number of messages waiting to be sent
+	 */
+	public synchronized int getPending() {
+		return mPending;
+	}
+
+	/**
+	 * @return Number of messages dropped because the journal was full
+	 */
+	public synchronized long getDropped() {
+		return mDropped;
+	}
+
+	/**
+	 * @return Number of messages dropped because they were too old
+	 */
+	public synchronized long getExpired() {
+		return mExpired;
+	}
+
+	/**
+	 * Write everything to disk, the journal already survives the process being
+	 * killed without this but not the device losing power.
+	 */
+	public synchronized void sync() {
+		for (int i = 0; i < mSegments.size(); i++)
+			mSegments.get(i).mBuffer.force();
+	}
+
+	private boolean append(byte[] message) throws IOException {
+		int size = RECORD_HEADER + message.length;
+		// Leave room for the 0 length that ends the segment
+		if (size + 4 > mSegmentSize) {
+			mDropped++;
+			return false;
+		}
+
+		Segment segment = current();
+		if (segment == null || segment.mWritePosition + size + 4 > mSegmentSize) {
+			segment = new Segment(mNextSequence++);
+			mSegments.add(segment);
+
+			// Over the limit, the oldest messages go first
+			while ((long) mSegments.size() * mSegmentSize > mMaxBytes) {
+				Segment oldest = mSegments.remove(0);
+				int lost = oldest.countPending();
+				mPending -= lost;
+				mDropped += lost;
+				oldest.delete();
+			}
+		}
+
+		MappedByteBuffer buffer = segment.mBuffer;
+		int position = segment.mWritePosition;
+		buffer.putLong(position + 4, System.currentTimeMillis());
+		for (int i = 0; i < message.length; i++)
+			buffer.put(position + RECORD_HEADER + i, message[i]);
+		// The length goes last, it's what makes the record visible
+		buffer.putInt(position, message.length);
+
+		segment.mWritePosition = position + size;
+		mPending++;
+		return true;
+	}
+
+	/**
+	 * Delete the segments that have nothing left to send, except the one that's
+	 * appended to unless it's full of sent records too.
+	 */
+	private void compact() {
+		for (int i = mSegments.size() - 1; i >= 0; i--) {
+			Segment segment = mSegments.get(i);
+			if (segment.mReadPosition >= segment.mWritePosition) {
+				mSegments.remove(i);
+				segment.delete();
+			}
+		}
+	}
+
+	private Segment current() {
+		return mSegments.isEmpty() ? null : mSegments.get(mSegments.size() - 1);
+	}
+
+	/**
+	 * One mapped segment file.
+	 */
+	private class Segment {
+		final File mFile;
+		final MappedByteBuffer mBuffer;
+
+		/** First record that hasn't been sent */
+		int mReadPosition;
+
+		/** Where the next record goes */
+		int mWritePosition;
+
+		Segment(long sequence) throws IOException {
+			mFile = new File(mDir, PREFIX + sequence + SUFFIX);
+
+			RandomAccessFile file = new RandomAccessFile(mFile, "rw");
+			try {
+				file.setLength(mSegmentSize);
+				mBuffer = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0,
+						mSegmentSize);
+			} finally {
+				// The mapping stays valid after the file is closed
+				file.close();
+			}
+		}
+
+		/**
+		 * Find the read and write positions of a segment left by an earlier
+		 * outbox.
+		 *
+		 * @return Number of records waiting to be sent
+		 */
+		int recover() {
+			int pending = 0;
+			int position = 0;
+			mReadPosition = -1;
+
+			while (position + RECORD_HEADER <= mSegmentSize) {
+				int length = mBuffer.getInt(position);
+				if (length == 0)
+					break;
+
+				int size = Math.abs(length);
+				if (position + RECORD_HEADER + size > mSegmentSize)
+					break; // Torn, everything after it is lost
+
+				if (length > 0) {
+					if (mReadPosition == -1)
+						mReadPosition = position;
+					pending++;
+				}
+				position += RECORD_HEADER + size;
+			}
+
+			mWritePosition = position;
+			if (mReadPosition == -1)
+				mReadPosition = position;
+			return pending;
+		}
+
+		int countPending() {
+			int pending = 0;
+			for (int position = mReadPosition; position < mWritePosition;) {
+				int length = mBuffer.getInt(position);
+				if (length > 0)
+					pending++;
+				position += RECORD_HEADER + Math.abs(length);
+			}
+			return pending;
+		}
+
+		void delete() {
+			if (!mFile.delete())
+				mFile.deleteOnExit();
+		}
+	}
+}
@@ -0,0 +1,1416 @@
+package pubsub.io.core;
+
+/*
+ * Copyright (C) 2009 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.DataFormatException;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * This class does all the work for setting up and managing PubSub.io
+ * connections: subscriptions, parsing, delivery, reconnects, the outbox and
+ * the heartbeat. It runs on any JVM; the connection itself is up to a
+ * Transport, and whatever happens is told to a Callback. The Android
+ * PubsubComm turns those calls into Handler messages.
+ * 
+ * Based on the BluetoothChat example by Google.
+ */
+public class PubsubClient {
+
+	private final static String TAG = "PubsubClient";
+
+	/**
+	 * Told about everything that happens to the connection, mostly from the
+	 * threads of the transport, so nothing in here should block. See
+	 * SimpleCallback.
+	 */
+	public interface Callback {
+		/**
+		 * @param state
+		 *          One of the STATE_ constants
+		 */
+		public void onStateChange(int state);
+
+		/**
+		 * Connected to a hub, subscribing is safe from now on. Called right
+		 * before the state changes to STATE_CONNECTED.
+		 * 
+		 * @param hostName
+		 *          The name of the connected host
+		 */
+		public void onConnected(String hostName);
+
+		public void onConnectionFailed();
+
+		public void onConnectionLost();
+
+		/**
+		 * Raw bytes off the socket, only from the blocking transport. The buffer
+		 * is reused by the next read.
+		 * 
+		 * @param buffer
+		 * @param length
+		 */
+		public void onRead(byte[] buffer, int length);
+
+		/**
+		 * @param message
+		 *          A message that was just written, unframed
+		 */
+		public void onSent(byte[] message);
+
+		/**
+		 * A doc for a subscription without a listener.
+		 * 
+		 * @param callback_id
+		 *          The id the subscription was made with
+		 * @param doc
+		 *          A JSONObject, or a LazyDoc in PARSE_LAZY mode
+		 */
+		public void onDoc(int callback_id, Object doc);
+	}
+
+	/**
+	 * A Callback that ignores everything, to override only what's needed.
+	 */
+	public static class SimpleCallback implements Callback {
+		public void onStateChange(int state) {
+		}
+
+		public void onConnected(String hostName) {
+		}
+
+		public void onConnectionFailed() {
+		}
+
+		public void onConnectionLost() {
+		}
+
+		public void onRead(byte[] buffer, int length) {
+		}
+
+		public void onSent(byte[] message) {
+		}
+
+		public void onDoc(int callback_id, Object doc) {
+		}
+	}
+
+	/** Told about everything that happens */
+	final Callback mCallback;
+
+	/** Runs the reconnects, resubscribes, outbox drains and probes */
+	final Scheduler mScheduler;
+
+	/** Holds the connection */
+	private final Transport mTransport;
+
+	/** Current PubSub.io state */
+	private int mState;
+
+	// Write queue settings, applied to the next connection
+	int mWriteCapacity = PubsubWriter.DEFAULT_CAPACITY;
+	int mWriteMaxBatch = PubsubWriter.DEFAULT_MAX_BATCH;
+	long mWriteLingerMillis = 0;
+
+	/** Opens the sockets, applied to the next connection */
+	ConnectionFactory mConnectionFactory = ConnectionFactory.getDefault();
+
+	/** Runs the loops of the blocking transport, null for platform threads */
+	Executor mConnectionExecutor;
+
+	/** Consumers that can't take more docs, see holdReads() */
+	private int mReadHolds;
+	/** Set while there are any, the transports stop reading */
+	volatile boolean mReadsHeld;
+
+	/** Where the measurements go, see setMetrics() */
+	volatile MetricsSink mMetrics = MetricsSink.NONE;
+
+	/** Codec offered to the hub, see setCodec() */
+	private volatile Codec mCodec = Codec.JSON;
+
+	/** Codec of the current connection, JSON until the hub agrees otherwise */
+	volatile Codec mWireCodec = Codec.JSON;
+
+	/** Compression offered to the hub, see setCompression() */
+	private volatile Compression mCompression;
+
+	/** Compresses the frames of the current connection, once the hub agrees */
+	volatile Compression.Compressor mWireCompressor;
+
+	/** Drops repeated docs before they are parsed, or null */
+	private volatile Dedup mDedup;
+
+	/** Tells the docs of this client apart from others sharing the dedup */
+	private final long mDedupScope = (long) sNextDedupScope
+			.incrementAndGet() << 32;
+	private static final AtomicInteger sNextDedupScope = new AtomicInteger();
+
+	/** How incoming messages are parsed, PARSE_FULL or PARSE_LAZY */
+	private volatile int mParseMode = PARSE_FULL;
+
+	/** Subscription ids that are still live, only used in PARSE_LAZY mode */
+	private final ConcurrentHashMap<Integer, Boolean> mLiveRoutes;
+
+	/**
+	 * Listeners, and queued callbacks, by id. Docs for any other id go straight
+	 * to the Callback.
+	 */
+	private final IntMap<Delivery> mDeliveries;
+
+	// Delivery queue for new subscriptions, see setDeliveryQueue()
+	private int mQueueCapacity = 0;
+	private int mQueuePolicy = OVERFLOW_DROP_OLDEST;
+	private String mQueueKeyPath;
+
+	/** Handle of the next listener subscription */
+	private int mNextHandle = Delivery.FIRST_HANDLE;
+
+	/** Folds overlapping subscriptions when local routing is on, else null */
+	private volatile SubscriptionIndex mIndex;
+
+	/** Writes what the index wants sent */
+	private final SubscriptionIndex.Sender mSender = new SubscriptionIndex.Sender() {
+		public void subscribe(JSONObject filter, int wire_id) {
+			addRoute(wire_id);
+			write(PubsubParser.encodeSubscribe(filter, wire_id));
+		}
+
+		public void unsubscribe(int wire_id) {
+			removeRoute(wire_id);
+			write(PubsubParser.encodeUnsubscribe(wire_id));
+		}
+	};
+
+	/** Messages dropped because nobody subscribed to their id anymore */
+	private final AtomicLong mUnroutedMessages = new AtomicLong();
+
+	/** How long to wait before offering the outbox to a full write queue again */
+	private static final long OUTBOX_RETRY_MILLIS = 250;
+
+	/** Where publishes wait while they can't be written, or null */
+	private volatile Outbox mOutbox;
+
+	/** True while a drain of the outbox is posted */
+	private final AtomicBoolean mOutboxScheduled = new AtomicBoolean();
+
+	private final Outbox.Sink mOutboxSink = new Outbox.Sink() {
+		public boolean offer(byte[] message) {
+			return PubsubClient.this.offer(message);
+		}
+	};
+
+	private final Runnable mDrainOutbox = new Runnable() {
+		public void run() {
+			drainOutbox();
+		}
+	};
+
+	/** A connection that held up this long starts the backoff over */
+	private static final long STABLE_MILLIS = 30 * 1000;
+
+	/** Delays between reconnect attempts, or null to leave it to the app */
+	private Backoff mBackoff;
+
+	// Where the last connect() went, for reconnecting
+	private String mHost;
+	private String mPort;
+	private String mSub;
+
+	/** True from connect() until stop() */
+	private boolean mWantConnected;
+	private long mConnectedAt;
+
+	private final Runnable mReconnect = new Runnable() {
+		public void run() {
+			reconnect();
+		}
+	};
+
+	/**
+	 * handler_callback to filter of every active subscription, sent again when
+	 * we reconnect
+	 */
+	private final Map<Integer, String> mSubscriptions;
+
+	/** Probes the connection, see setHeartbeat() */
+	private final Heartbeat mHeartbeat;
+
+	private final Runnable mResubscribe = new Runnable() {
+		public void run() {
+			resubscribe();
+		}
+	};
+
+	// Connection status constants
+	/** Default state */
+	public static final int STATE_NONE = 0;
+	/** Attempting to connect to PubSub.io */
+	public static final int STATE_CONNECTING = 1;
+	/** Connection to PubSub.io established */
+	public static final int STATE_CONNECTED = 2;
+
+	// Parse mode constants
+	/** Parse every message, msg.obj is the doc as a JSONObject (default) */
+	public static final int PARSE_FULL = 0;
+	/**
+	 * Look at the id first and drop messages for subscriptions that are gone,
+	 * msg.obj is a LazyDoc that is parsed when it's read
+	 */
+	public static final int PARSE_LAZY = 1;
+
+	// Overflow policies of the delivery queues, see setDeliveryQueue()
+	/**
+	 * Stop reading from the hub until the consumer has taken half of the docs,
+	 * which holds up every subscription of the connection. Reading stops after
+	 * the current read, so the queue can go over by the docs of one read.
+	 */
+	public static final int OVERFLOW_BLOCK = 0;
+	/** Drop the oldest waiting doc to make room (default) */
+	public static final int OVERFLOW_DROP_OLDEST = 1;
+	/** Drop the doc that doesn't fit */
+	public static final int OVERFLOW_DROP_NEWEST = 2;
+	/** Replace a waiting doc with the same key, else drop the oldest */
+	public static final int OVERFLOW_CONFLATE = 3;
+
+	/**
+	 * A client with blocking sockets, that runs its housekeeping on the shared
+	 * ThreadScheduler.
+	 * 
+	 * @param callback
+	 */
+	public PubsubClient(Callback callback) {
+		this(callback, ThreadScheduler.getDefault());
+	}
+
+	/**
+	 * A client with blocking sockets: a thread to connect, and a reader and a
+	 * writer thread per connection.
+	 * 
+	 * @param callback
+	 * @param scheduler
+	 *          Runs the reconnects, resubscribes, outbox drains and probes
+	 */
+	public PubsubClient(Callback callback, Scheduler scheduler) {
+		this(callback, scheduler, null, null);
+	}
+
+	/**
+	 * A non-blocking client. Instead of its own threads every connection is
+	 * served by the one shared selector thread, and reads and writes go through
+	 * pooled direct buffers. Callback.onRead() is never called since the read
+	 * bytes never end up in a byte array. The selector thread is the writer of
+	 * every connection, the write queue capacity and max batch size from
+	 * setWriteQueue() apply, there is no linger.
+	 * 
+	 * @param callback
+	 * @param scheduler
+	 *          Runs the reconnects, resubscribes, outbox drains and probes
+	 * @param selector
+	 *          See PubsubSelector.getDefault(), null for blocking sockets
+	 * @param pool
+	 *          See BufferPool.getDefault()
+	 */
+	public PubsubClient(Callback callback, Scheduler scheduler,
+			PubsubSelector selector, BufferPool pool) {
+		mState = STATE_NONE;
+		mCallback = callback;
+		mScheduler = scheduler;
+		mLiveRoutes = new ConcurrentHashMap<Integer, Boolean>();
+		mDeliveries = new IntMap<Delivery>();
+		mSubscriptions = new LinkedHashMap<Integer, String>();
+		mHeartbeat = new Heartbeat(this, scheduler);
+		mTransport = selector != null ? new NioTransport(this, selector, pool)
+				: new BlockingTransport(this);
+	}
+
+	/**
+	 * @return Milliseconds since some fixed point, never going back
+	 */
+	static long uptimeMillis() {
+		return System.nanoTime() / 1000000;
+	}
+
+	/**
+	 * Set the current state of the connection
+	 * 
+	 * @param state
+	 *          An integer defining the current connection state
+	 */
+	synchronized void setState(int state) {
+		mState = state;
+
+		// Tell the app about the state change
+		mCallback.onStateChange(state);
+	}
+
+	/**
+	 * Configure the write queue of the connection. Messages are written by a
+	 * single writer thread that drains the queue in batches, one flush per
+	 * batch. Takes effect on the next connect.
+	 * 
+	 * @param capacity
+	 *          Number of messages that can wait for the writer, write() drops
+	 *          messages when the queue is full
+	 * @param maxBatch
+	 *          Max number of messages written in one batch
+	 * @param lingerMillis
+	 *          How long the writer waits for more messages before writing a batch
+	 *          that isn't full, 0 (default) writes right away
+	 */
+	public synchronized void setWriteQueue(int capacity, int maxBatch,
+			long lingerMillis) {
+		mWriteCapacity = capacity;
+		mWriteMaxBatch = maxBatch;
+		mWriteLingerMillis = lingerMillis;
+	}
+
+	/**
+	 * Measure the connection: bytes and messages in and out, decode and parse
+	 * times, the write queue depth, the time from the read to the listener,
+	 * reconnects and connection uptime. See MetricsSink for what's what.
+	 * 
+	 * @param metrics
+	 *          Where the measurements go, MetricsSink.NONE (default) to
+	 *          measure nothing
+	 */
+	public void setMetrics(MetricsSink metrics) {
+		mMetrics = metrics != null ? metrics : MetricsSink.NONE;
+	}
+
+	public MetricsSink getMetrics() {
+		return mMetrics;
+	}
+
+	/**
+	 * Set the factory that resolves the hub and opens the socket, with its
+	 * timeouts and socket options. Takes effect on the next connect().
+	 * 
+	 * @param factory
+	 */
+	public synchronized void setConnectionFactory(ConnectionFactory factory) {
+		mConnectionFactory = factory;
+	}
+
+	/**
+	 * Run the connect, read and write loops of the blocking transport on an
+	 * executor instead of a new platform thread each, for example on virtual
+	 * threads with PubsubExecutors.virtualThreads(). Every loop keeps its
+	 * thread for as long as the connection lasts, so the executor must start a
+	 * thread per task; a fixed pool runs out. Takes effect on the next
+	 * connect(), the NIO transport has no such threads.
+	 * 
+	 * @param executor
+	 *          The executor, null for platform threads (default)
+	 */
+	public synchronized void setConnectionExecutor(Executor executor) {
+		mConnectionExecutor = executor;
+	}
+
+	/**
+	 * Select how incoming messages are parsed. In PARSE_LAZY mode only the id of
+	 * a message is read before deciding what to do with it; messages for
+	 * subscriptions that have been unsubscribed are dropped right there, and the
+	 * rest are delivered as a LazyDoc instead of a JSONObject.
+	 * 
+	 * @param mode
+	 *          PARSE_FULL (default) or PARSE_LAZY
+	 */
+	public void setParseMode(int mode) {
+		mParseMode = mode;
+	}
+
+	/**
+	 * Drop docs that were delivered a moment ago, like those the hub sends
+	 * again after a reconnect. A doc is only a repeat for the subscription it
+	 * came in for, every subscription that matches it still gets it once; with
+	 * local routing on, overlapping subscriptions get a doc that came in once
+	 * anyway. JSON docs are hashed on their bytes, or their key field, before
+	 * they are parsed. Binary frames are hashed whole before they're decoded,
+	 * or by their key field once decoded.
+	 * 
+	 * @param dedup
+	 *          The recent docs, null (default) to deliver every doc
+	 */
+	public void setDedup(Dedup dedup) {
+		mDedup = dedup;
+	}
+
+	public Dedup getDedup() {
+		return mDedup;
+	}
+
+	/**
+	 * Offer the hub a more compact encoding than JSON text, like a
+	 * MessagePackCodec. A hello message with the codec follows the sub on every
+	 * connection, and only once the hub answers that it will use it does
+	 * anything go out in it; a hub that doesn't know the hello simply stays
+	 * with JSON. Listeners get the same docs either way. Takes effect on the
+	 * next connection.
+	 * 
+	 * @param codec
+	 *          The codec, Codec.JSON (default) to not ask
+	 */
+	public void setCodec(Codec codec) {
+		mCodec = codec != null ? codec : Codec.JSON;
+	}
+
+	/**
+	 * @return The codec of the current connection, Codec.JSON unless the hub
+	 *         agreed to the one from setCodec()
+	 */
+	public Codec getWireCodec() {
+		return mWireCodec;
+	}
+
+	/**
+	 * Offer the hub compressed frames. Like the codec it's asked for in the
+	 * hello, and frames only go out compressed once the hub agreed to the
+	 * dictionary, whatever the codec. The level and threshold can be changed
+	 * while connected. Takes effect on the next connection.
+	 * 
+	 * @param compression
+	 *          The compression, null (default) to not ask
+	 */
+	public void setCompression(Compression compression) {
+		mCompression = compression;
+	}
+
+	/**
+	 * @return The compression from setCompression(), or null
+	 */
+	public Compression getCompression() {
+		return mCompression;
+	}
+
+	/**
+	 * @return The compression of the current connection, null unless the hub
+	 *         agreed to the one from setCompression()
+	 */
+	public Compression getWireCompression() {
+		Compression.Compressor compressor = mWireCompressor;
+		return compressor != null ? compressor.getCompression() : null;
+	}
+
+	/**
+	 * Route subscriptions on the client. Overlapping filters are folded into
+	 * one subscription on the wire, and incoming docs are matched against every
+	 * filter it covers; a doc is parsed once however many callbacks it goes
+	 * to. Only takes effect for subscriptions made afterwards, so set it before
+	 * connecting.
+	 * 
+	 * @param enabled
+	 */
+	public synchronized void setLocalRouting(boolean enabled) {
+		if (enabled == (mIndex != null))
+			return;
+		mIndex = enabled ? new SubscriptionIndex() : null;
+	}
+
+	/**
+	 * Subscribe to a filter, through the subscription index if local routing is
+	 * on. Its docs go to Callback.onDoc() with handler_callback, unless a
+	 * listener was added for it.
+	 * 
+	 * @param json_filter
+	 * @param handler_callback
+	 *          Any id below Delivery.FIRST_HANDLE
+	 * @throws JSONException
+	 */
+	public void subscribe(JSONObject json_filter, int handler_callback)
+			throws JSONException {
+		synchronized (this) {
+			if (mQueueCapacity > 0 && mDeliveries.get(handler_callback) == null)
+				setDeliveryQueue(handler_callback, mQueueCapacity, mQueuePolicy,
+						mQueueKeyPath);
+		}
+
+		SubscriptionIndex index = mIndex;
+		String filter = json_filter.toString();
+		synchronized (mSubscriptions) {
+			// Subscribed again on onConnected() after we already sent it for the app
+			if (index == null && filter.equals(mSubscriptions.get(handler_callback))
+					&& isRouted(handler_callback))
+				return;
+			mSubscriptions.put(handler_callback, filter);
+		}
+
+		if (index != null) {
+			index.subscribe(json_filter, handler_callback, mSender);
+			return;
+		}
+
+		mSender.subscribe(json_filter, handler_callback);
+	}
+
+	/**
+	 * Subscribe to a filter and have its docs sent to a listener.
+	 * 
+	 * @param json_filter
+	 * @param listener
+	 * @param executor
+	 *          Where the listener is called, see PubsubExecutors
+	 * @return The handle of the subscription, for unsubscribe()
+	 * @throws JSONException
+	 */
+	public int subscribe(JSONObject json_filter, PubsubListener listener,
+			Executor executor) throws JSONException {
+		int handle;
+		synchronized (this) {
+			handle = mNextHandle++;
+		}
+		addListener(new Delivery(handle, listener, executor));
+		subscribe(json_filter, handle);
+		return handle;
+	}
+
+	/**
+	 * The docs matching a filter as a PubsubFlow.Publisher, for consumers that
+	 * ask for docs as they can take them. Subscribed to the hub while it has
+	 * subscribers; once a subscriber has capacity docs waiting, reading from
+	 * the hub stops until it catches up. See DocPublisher.
+	 * 
+	 * @param json_filter
+	 * @param capacity
+	 *          Docs buffered per subscriber
+	 * @param executor
+	 *          Where the subscribers are called, see PubsubExecutors
+	 * @return The publisher
+	 */
+	public DocPublisher publisher(JSONObject json_filter, int capacity,
+			Executor executor) {
+		int handle;
+		synchronized (this) {
+			handle = mNextHandle++;
+		}
+		return new DocPublisher(this, handle, json_filter, capacity, executor);
+	}
+
+	/**
+	 * Unsubscribe handler_callback, through the subscription index if local
+	 * routing is on. Docs still queued for it are dropped.
+	 * 
+	 * @param handler_callback
+	 *          The handler_callback, or listener handle, of the subscription
+	 */
+	public void unsubscribe(int handler_callback) {
+		synchronized (mSubscriptions) {
+			mSubscriptions.remove(handler_callback);
+		}
+
+		SubscriptionIndex index = mIndex;
+		if (index != null) {
+			index.unsubscribe(handler_callback, mSender);
+		} else {
+			mSender.unsubscribe(handler_callback);
+		}
+
+		removeDelivery(handler_callback);
+	}
+
+	/**
+	 * Send the docs for handle somewhere else than Callback.onDoc(), usually a
+	 * listener.
+	 * 
+	 * @param delivery
+	 */
+	public synchronized void addListener(Delivery delivery) {
+		delivery.attach(this);
+		if (mQueueCapacity > 0)
+			delivery.setQueue(mQueueCapacity, mQueuePolicy, mQueueKeyPath);
+		mDeliveries.put(delivery.mHandle, delivery);
+	}
+
+	/**
+	 * Stop delivering to handle, docs still queued for it are dropped.
+	 * 
+	 * @param handle
+	 */
+	public void removeDelivery(int handle) {
+		Delivery delivery = mDeliveries.remove(handle);
+		if (delivery != null)
+			delivery.close();
+	}
+
+	/**
+	 * Stop reading from the hub until releaseReads(), for a consumer that can't
+	 * take more docs. Holds add up, reading goes on once all are released.
+	 */
+	synchronized void holdReads() {
+		mReadHolds++;
+		updateReads();
+	}
+
+	synchronized void releaseReads() {
+		mReadHolds--;
+		updateReads();
+	}
+
+	private void updateReads() {
+		// A release can overtake the hold it belongs to
+		boolean held = mReadHolds > 0;
+		if (held == mReadsHeld)
+			return;
+		mReadsHeld = held;
+		mTransport.holdReads(held);
+	}
+
+	/**
+	 * Put a bounded queue between the reader and every subscription made from
+	 * now on, so a consumer that falls behind can't make its executor's queue
+	 * grow without limit.
+	 * 
+	 * @param capacity
+	 *          Max number of docs waiting per subscription, 0 (default) for no
+	 *          limit
+	 * @param policy
+	 *          What to do when a queue is full, one of the OVERFLOW_ constants
+	 * @param keyPath
+	 *          Dotted path to the key docs are conflated by, only used by
+	 *          OVERFLOW_CONFLATE
+	 */
+	public synchronized void setDeliveryQueue(int capacity, int policy,
+			String keyPath) {
+		mQueueCapacity = capacity;
+		mQueuePolicy = policy;
+		mQueueKeyPath = keyPath;
+	}
+
+	/**
+	 * Put a bounded queue in front of a single subscription, see
+	 * setDeliveryQueue(int, int, String). Lasts until it's unsubscribed.
+	 * 
+	 * @param handler_callback
+	 *          The handler_callback, or listener handle, of the subscription
+	 * @param capacity
+	 * @param policy
+	 * @param keyPath
+	 */
+	public synchronized void setDeliveryQueue(int handler_callback,
+			int capacity, int policy, String keyPath) {
+		Delivery delivery = mDeliveries.get(handler_callback);
+		if (delivery == null) {
+			delivery = newDelivery(handler_callback);
+			delivery.attach(this);
+			mDeliveries.put(handler_callback, delivery);
+		}
+		delivery.setQueue(capacity, policy, keyPath);
+	}
+
+	/**
+	 * Make the Delivery that queues docs for Callback.onDoc(), which is then
+	 * called on the Scheduler. A subclass with a better place for the docs can
+	 * override this.
+	 * 
+	 * @param handler_callback
+	 */
+	protected Delivery newDelivery(final int handler_callback) {
+		return new Delivery(handler_callback, new Executor() {
+			public void execute(Runnable command) {
+				mScheduler.schedule(command, 0);
+			}
+		}) {
+			@Override
+			protected void handle(Object doc) {
+				mCallback.onDoc(handler_callback, doc);
+			}
+		};
+	}
+
+	/**
+	 * @param handler_callback
+	 * @return Docs for the subscription dropped because its queue was full
+	 */
+	public long getDroppedDocs(int handler_callback) {
+		Delivery delivery = mDeliveries.get(handler_callback);
+		return delivery != null ? delivery.getDropped() : 0;
+	}
+
+	/**
+	 * @param handler_callback
+	 * @return Docs for the subscription replaced by a newer one with the same
+	 *         key
+	 */
+	public long getConflatedDocs(int handler_callback) {
+		Delivery delivery = mDeliveries.get(handler_callback);
+		return delivery != null ? delivery.getConflated() : 0;
+	}
+
+	/**
+	 * Mark a subscription id as live, messages for it are delivered.
+	 * 
+	 * @param callback_id
+	 */
+	void addRoute(int callback_id) {
+		mLiveRoutes.put(callback_id, Boolean.TRUE);
+	}
+
+	/**
+	 * Forget a subscription id, in PARSE_LAZY mode late messages for it are
+	 * dropped before they are parsed.
+	 * 
+	 * @param callback_id
+	 */
+	void removeRoute(int callback_id) {
+		mLiveRoutes.remove(callback_id);
+	}
+
+	/**
+	 * @return true if someone still wants the messages for callback_id
+	 */
+	protected boolean isRouted(int callback_id) {
+		return mLiveRoutes.containsKey(callback_id);
+	}
+
+	/**
+	 * @return Number of messages dropped in PARSE_LAZY mode because their
+	 *         subscription was gone
+	 */
+	public long getUnroutedMessages() {
+		return mUnroutedMessages.get();
+	}
+
+	/**
+	 * Return the current connection state.
+	 */
+	public synchronized int getState() {
+		return mState;
+	}
+
+	/**
+	 * Close the connection, if any, without stopping. Called by the app to
+	 * start over, and when a connection fails or is lost.
+	 */
+	public synchronized void start() {
+		PubsubLog.d(TAG, "start");
+
+		mTransport.close();
+	}
+
+	/**
+	 * Start connecting to a hub.
+	 * 
+	 * @param host
+	 *          PubSub.io server host.
+	 * @param port
+	 *          PubSub.io server port.
+	 * @param sub
+	 *          The sub to hook up to
+	 */
+	public synchronized void connect(String host, String port, String sub) {
+		PubsubLog.d(TAG, "connect to: " + host + ":" + port);
+
+		connecting(host, port, sub);
+
+		// Cancel any connection, or attempt to make one
+		mTransport.close();
+
+		mTransport.connect(host, Integer.parseInt(port), sub);
+
+		setState(STATE_CONNECTING);
+	}
+
+	/**
+	 * Tell the app that the connection is ready and hook up to the sub, called
+	 * by the transport.
+	 * 
+	 * @param hostName
+	 *          The name of the connected host
+	 * @param sub
+	 *          The sub to hook up to
+	 */
+	protected synchronized void connected(String hostName, String sub) {
+		// The hub doesn't remember subscriptions between connections
+		mLiveRoutes.clear();
+		SubscriptionIndex index = mIndex;
+		if (index != null)
+			index.clear();
+
+		// Send the name of the connected host to the app, subscribes are now safe!
+		mCallback.onConnected(hostName);
+
+		setState(STATE_CONNECTED);
+
+		// Subscribe to the defined sub, and ask for a codec and compression.
+		// Everything is uncompressed JSON until the hub answers.
+		mWireCodec = Codec.JSON;
+		Compression.Compressor compressor = mWireCompressor;
+		mWireCompressor = null;
+		if (compressor != null)
+			compressor.end();
+		write(PubsubParser.encodeSub(sub));
+		Codec codec = mCodec;
+		Compression compression = mCompression;
+		if (codec != Codec.JSON || compression != null)
+			write(PubsubParser.encodeHello(codec.getName(),
+					compression != null ? compression.getDictionaryId() : -1));
+		mConnectedAt = uptimeMillis();
+
+		// Then every subscription the hub forgot, and what was published while we
+		// were away. On the scheduler, both call back into offer() and the index
+		// takes its own lock first.
+		mScheduler.schedule(mResubscribe, 0);
+		scheduleOutbox(0);
+
+		mHeartbeat.start();
+	}
+
+	/**
+	 * Remember where connect() goes.
+	 */
+	synchronized void connecting(String host, String port, String sub) {
+		mHost = host;
+		mPort = port;
+		mSub = sub;
+		mWantConnected = true;
+		mScheduler.cancel(mReconnect);
+	}
+
+	/**
+	 * Don't reconnect or probe after stop().
+	 */
+	synchronized void stopped() {
+		mWantConnected = false;
+		mScheduler.cancel(mReconnect);
+		mHeartbeat.stop();
+	}
+
+	/**
+	 * Send a probe through the hub every interval and time how long it takes
+	 * to come back, see getLatency(). A connection that loses maxMissed probes
+	 * in a row is dropped as lost, long before the socket would notice, and
+	 * with setReconnect() a new one is made. Takes effect on the next
+	 * connection.
+	 * 
+	 * @param intervalMillis
+	 *          Time between probes, 0 for no probes (default)
+	 * @param maxMissed
+	 *          Probes in a row that may go missing, 0 to only measure
+	 */
+	public void setHeartbeat(long intervalMillis, int maxMissed) {
+		mHeartbeat.configure(intervalMillis, maxMissed);
+	}
+
+	/**
+	 * @return Round trip times of the heartbeat probes, in microseconds, since
+	 *         the client was created
+	 */
+	public LatencyHistogram getLatency() {
+		return mHeartbeat.getLatency();
+	}
+
+	/**
+	 * The heartbeat gave up on the connection, drop it as if the socket had
+	 * noticed.
+	 */
+	void linkDead() {
+		synchronized (this) {
+			if (mState != STATE_CONNECTED)
+				return;
+		}
+		connectionLost();
+	}
+
+	/**
+	 * Reconnect by itself when a connection fails or is lost, until stop() is
+	 * called. The delays double from initialMillis up to maxMillis, and a random
+	 * part of each is taken off so a hub that restarts isn't hit by all its
+	 * clients at once. Every active subscription is sent again when the
+	 * connection is back, right after the sub.
+	 * 
+	 * @param initialMillis
+	 *          Delay before the first attempt, 0 to leave reconnecting to the
+	 *          app (default)
+	 * @param maxMillis
+	 *          Longest delay
+	 * @param jitter
+	 *          Part of each delay that is random, from 0 to 1
+	 */
+	public synchronized void setReconnect(long initialMillis, long maxMillis,
+			double jitter) {
+		mBackoff = initialMillis > 0 ? new Backoff(initialMillis, maxMillis,
+				jitter) : null;
+		if (mBackoff == null)
+			mScheduler.cancel(mReconnect);
+	}
+
+	private synchronized void scheduleReconnect(boolean wasConnected) {
+		if (mBackoff == null || !mWantConnected)
+			return;
+
+		// A connection that held up is a fresh start, one that dropped right away
+		// keeps backing off
+		if (wasConnected
+				&& uptimeMillis() - mConnectedAt >= STABLE_MILLIS)
+			mBackoff.reset();
+
+		long delay = mBackoff.next();
+		PubsubLog.i(TAG, "Reconnecting in " + delay + " ms, attempt "
+				+ mBackoff.getAttempts());
+		mScheduler.cancel(mReconnect);
+		mScheduler.schedule(mReconnect, delay);
+	}
+
+	private synchronized void reconnect() {
+		// stop() or connect() got there first
+		if (!mWantConnected || mState != STATE_NONE)
+			return;
+
+		mMetrics.count(MetricsSink.RECONNECTS, 1);
+
+		connect(mHost, mPort, mSub);
+	}
+
+	/**
+	 * Send every active subscription, after a reconnect. They're all queued at
+	 * once without waiting for the hub, so the writer sends them in as few
+	 * writes as it can.
+	 */
+	private void resubscribe() {
+		if (getState() != STATE_CONNECTED)
+			return;
+
+		Map<Integer, String> subscriptions;
+		synchronized (mSubscriptions) {
+			subscriptions = new LinkedHashMap<Integer, String>(mSubscriptions);
+		}
+
+		for (Map.Entry<Integer, String> entry : subscriptions.entrySet()) {
+			try {
+				subscribe(new JSONObject(entry.getValue()), entry.getKey());
+			} catch (JSONException e) {
+				PubsubLog.e(TAG, e.getMessage(), e);
+			}
+		}
+	}
+
+	/**
+	 * Close the connection for good, no reconnects.
+	 */
+	public synchronized void stop() {
+		PubsubLog.d(TAG, "stop");
+
+		stopped();
+		mTransport.close();
+
+		// The native memory of zlib, the next connection makes its own
+		Compression.Compressor compressor = mWireCompressor;
+		mWireCompressor = null;
+		if (compressor != null)
+			compressor.end();
+
+		setState(STATE_NONE);
+	}
+
+	/**
+	 * Queue a message for the writer of the connection, this never blocks
+	 * 
+	 * @param out
+	 *          The bytes to write
+	 */
+	public void write(byte[] out) {
+		if (!offer(out) && getState() == STATE_CONNECTED)
+			PubsubLog.w(TAG, "Write queue full, message dropped");
+	}
+
+	/**
+	 * Write a publish. With an outbox it's kept on disk while it can't be
+	 * written, and written in order once it can; without one it's dropped.
+	 * 
+	 * @param out
+	 *          The bytes to write
+	 * @see #setOutbox(Outbox)
+	 */
+	public void publish(byte[] out) {
+		Outbox outbox = mOutbox;
+		if (outbox == null) {
+			write(out);
+			return;
+		}
+
+		try {
+			if (!outbox.publish(out, mOutboxSink))
+				PubsubLog.w(TAG, "Message too large for the outbox, dropped");
+		} catch (IOException e) {
+			PubsubLog.e(TAG, "Outbox failed, writing directly", e);
+			write(out);
+			return;
+		}
+
+		// Backpressured, try again once the writer has caught up
+		if (outbox.getPending() > 0)
+			scheduleOutbox(OUTBOX_RETRY_MILLIS);
+	}
+
+	/**
+	 * Publish a doc to the sub. Without an outbox it's encoded straight into
+	 * the write buffer of the connection where the transport can.
+	 * 
+	 * @param doc
+	 * @see #publish(byte[])
+	 */
+	public void publish(JSONObject doc) {
+		if (mOutbox != null)
+			publish(PubsubParser.encodePublish(doc));
+		else if (!mTransport.offerPublish(doc) && getState() == STATE_CONNECTED)
+			PubsubLog.w(TAG, "Write queue full, message dropped");
+	}
+
+	/**
+	 * Publish a doc written straight to bytes, without a JSONObject.
+	 * 
+	 * @param doc
+	 * @see #publish(JSONObject)
+	 */
+	public void publish(DocWriter doc) {
+		if (mOutbox != null)
+			publish(PubsubParser.encodePublish(doc));
+		else if (!mTransport.offerPublish(doc) && getState() == STATE_CONNECTED)
+			PubsubLog.w(TAG, "Write queue full, message dropped");
+	}
+
+	/**
+	 * Keep publishes that can't be written, because we're not connected or the
+	 * write queue is full, in an outbox until they can. Anything already in the
+	 * outbox is sent once we're connected.
+	 * 
+	 * @param outbox
+	 *          The outbox, null to drop such publishes (default)
+	 */
+	public void setOutbox(Outbox outbox) {
+		mOutbox = outbox;
+		scheduleOutbox(0);
+	}
+
+	private void scheduleOutbox(long delayMillis) {
+		if (mOutbox == null || getState() != STATE_CONNECTED)
+			return;
+		if (mOutboxScheduled.compareAndSet(false, true))
+			mScheduler.schedule(mDrainOutbox, delayMillis);
+	}
+
+	private void drainOutbox() {
+		mOutboxScheduled.set(false);
+
+		Outbox outbox = mOutbox;
+		if (outbox == null || getState() != STATE_CONNECTED)
+			return;
+
+		outbox.drain(mOutboxSink);
+		if (outbox.getPending() > 0)
+			scheduleOutbox(OUTBOX_RETRY_MILLIS);
+	}
+
+	/**
+	 * Queue a message for the writer, if there is room.
+	 * 
+	 * @param out
+	 *          The bytes to write
+	 * @return false if we're not connected or the write queue is full
+	 */
+	boolean offer(byte[] out) {
+		return mTransport.offer(out);
+	}
+
+	/**
+	 * Indicate that the connection attempt failed and notify the app.
+	 */
+	void connectionFailed() {
+		// Notify the client that the connection failed.
+		mCallback.onConnectionFailed();
+
+		// Start the service over to restart listening mode
+		start();
+		setState(STATE_NONE);
+		mHeartbeat.stop();
+
+		scheduleReconnect(false);
+	}
+
+	/**
+	 * Indicate that the connection was lost and notify the app.
+	 */
+	void connectionLost() {
+		mMetrics.record(MetricsSink.UPTIME, uptimeMillis()
+				- mConnectedAt);
+
+		// Notify the client that a disconnection happend.
+		mCallback.onConnectionLost();
+		
+		// Start the service over to restart listening mode
+		start();
+		setState(STATE_NONE);
+		mHeartbeat.stop();
+
+		scheduleReconnect(true);
+	}
+
+	/**
+	 * Decode a complete frame and send the doc to the callback it belongs to.
+	 * 
+	 * @param scanner
+	 *          Scanner owned by the calling reader, used in PARSE_LAZY mode
+	 *          and by the dedup
+	 * @param buffer
+	 *          Holds the frame payload
+	 * @param offset
+	 *          Offset of the payload
+	 * @param length
+	 *          Length of the payload
+	 * @param readNanos
+	 *          System.nanoTime() of the read that completed the frame, 0 when
+	 *          nothing is measured
+	 */
+	void process(MessageScanner scanner, byte[] buffer, int offset,
+			int length, long readNanos) {
+		long start = readNanos != 0 ? System.nanoTime() : 0;
+
+		int callback_id;
+		Object doc;
+
+		// Read the id and find the doc only, if that's all lazy mode or the
+		// dedup need. Anything the scanner doesn't understand is parsed as usual.
+		int mode = mParseMode;
+		Dedup dedup = mDedup;
+		boolean scanned = (mode == PARSE_LAZY || dedup != null)
+				&& scanner.scan(buffer, offset, length) && scanner.docOffset != -1;
+
+		// Lazy mode: drop the message if its subscription is gone
+		if (scanned && mode == PARSE_LAZY && scanner.id != Heartbeat.PROBE_ID
+				&& !isRouted(scanner.id)) {
+			mUnroutedMessages.incrementAndGet();
+			return;
+		}
+
+		if (scanned && dedup != null && scanner.id != Heartbeat.PROBE_ID
+				&& dedup.isRepeat(mDedupScope | scanner.id & 0xffffffffL, scanner,
+						buffer))
+			return;
+
+		if (scanned && mode == PARSE_LAZY) {
+			callback_id = scanner.id;
+			doc = new LazyDoc(buffer, scanner.docOffset, scanner.docLength);
+		} else {
+			try {
+				JSONObject message = new JSONObject(new String(buffer, offset,
+						length, "UTF-8"));
+				if (!message.has("id")) {
+					hello(message);
+					return;
+				}
+				callback_id = message.getInt("id");
+				doc = message.getJSONObject("doc");
+			} catch (JSONException e) {
+				PubsubLog.e(TAG, e.getMessage(), e);
+				return;
+			} catch (UnsupportedEncodingException e) {
+				PubsubLog.e(TAG, e.getMessage(), e);
+				return;
+			}
+		}
+
+		received(callback_id, doc, start, readNanos);
+	}
+
+	/**
+	 * Decode a complete binary frame with the codec of the connection and send
+	 * the doc to the callback it belongs to. In PARSE_LAZY mode messages for
+	 * subscriptions that are gone are still dropped, but only after decoding;
+	 * the others are delivered as a JSONObject.
+	 * 
+	 * @param buffer
+	 *          Holds the frame payload
+	 * @param offset
+	 *          Offset of the payload
+	 * @param length
+	 *          Length of the payload
+	 * @param readNanos
+	 *          System.nanoTime() of the read that completed the frame, 0 when
+	 *          nothing is measured
+	 */
+	void processBinary(byte[] buffer, int offset, int length, long readNanos) {
+		long start = readNanos != 0 ? System.nanoTime() : 0;
+
+		Codec codec = mWireCodec;
+		if (!codec.isBinary()) {
+			PubsubLog.w(TAG, "Binary frame without a binary codec, dropped");
+			return;
+		}
+
+		// Without a key field the dedup takes the frame as it is, id and all
+		Dedup dedup = mDedup;
+		boolean byKey = dedup != null && dedup.hasKeyField();
+		if (dedup != null && !byKey
+				&& dedup.isRepeat(mDedupScope, buffer, offset, length))
+			return;
+
+		int callback_id;
+		JSONObject doc;
+		try {
+			JSONObject message = codec.decode(buffer, offset, length);
+			callback_id = message.getInt("id");
+			doc = message.getJSONObject("doc");
+		} catch (JSONException e) {
+			PubsubLog.e(TAG, e.getMessage(), e);
+			return;
+		}
+
+		if (mParseMode == PARSE_LAZY && callback_id != Heartbeat.PROBE_ID
+				&& !isRouted(callback_id)) {
+			mUnroutedMessages.incrementAndGet();
+			return;
+		}
+
+		if (byKey && callback_id != Heartbeat.PROBE_ID
+				&& dedup.isRepeat(mDedupScope | callback_id & 0xffffffffL, doc))
+			return;
+
+		received(callback_id, doc, start, readNanos);
+	}
+
+	/**
+	 * Inflate a complete compressed frame and process it as the frame it was,
+	 * in the codec of the connection.
+	 * 
+	 * @param scanner
+	 * @param buffer
+	 *          Holds the compressed payload
+	 * @param offset
+	 * @param length
+	 * @param readNanos
+	 *          System.nanoTime() of the read that completed the frame, 0 when
+	 *          nothing is measured
+	 */
+	void processDeflated(MessageScanner scanner, byte[] buffer, int offset,
+			int length, long readNanos) {
+		Compression.Compressor compressor = mWireCompressor;
+		if (compressor == null) {
+			PubsubLog.w(TAG, "Compressed frame without compression, dropped");
+			return;
+		}
+
+		int inflated;
+		try {
+			inflated = compressor.inflate(buffer, offset, length);
+		} catch (DataFormatException e) {
+			PubsubLog.e(TAG, e.getMessage(), e);
+			return;
+		}
+
+		// Only the reader inflates, the payload is safe until the next frame
+		if (mWireCodec.isBinary())
+			processBinary(compressor.inflated(), 0, inflated, readNanos);
+		else
+			process(scanner, compressor.inflated(), 0, inflated, readNanos);
+	}
+
+	/**
+	 * The hub answered our hello, switch to the codec it picked if that's the
+	 * one we asked for, and compress if it has our dictionary. Anything else
+	 * without an id is ignored.
+	 */
+	private void hello(JSONObject message) {
+		if (!"hello".equals(message.optString("name")))
+			return;
+
+		Codec codec = mCodec;
+		if (codec.getName().equals(message.optString("codec"))) {
+			PubsubLog.i(TAG, "Hub speaks " + codec.getName());
+			mWireCodec = codec;
+		}
+
+		Compression compression = mCompression;
+		if (compression != null
+				&& message.optLong("deflate", -1) == compression.getDictionaryId()) {
+			PubsubLog.i(TAG, "Hub deflates");
+			mWireCompressor = compression.newCompressor();
+		}
+	}
+
+	/**
+	 * A message was parsed, hand its doc on.
+	 */
+	private void received(int callback_id, Object doc, long start,
+			long readNanos) {
+		if (readNanos != 0)
+			mMetrics.record(MetricsSink.PARSE_TIME,
+					(System.nanoTime() - start) / 1000);
+
+		if (callback_id == Heartbeat.PROBE_ID) {
+			mHeartbeat.received(doc);
+			return;
+		}
+
+		// Send the message
+		deliver(callback_id, doc, readNanos);
+	}
+
+	/**
+	 * Hand a doc to whoever subscribed with callback_id, by default the Callback.
+	 * With local routing on callback_id is the id of a wire subscription, and
+	 * the doc goes to every callback it serves whose filter matches. Callbacks
+	 * that have a listener get the doc on the listener's executor instead.
+	 * 
+	 * @param callback_id
+	 *          The id the subscription was made with
+	 * @param doc
+	 *          The doc that matched the subscription, a JSONObject or a LazyDoc
+	 * @param readNanos
+	 *          When the doc was read, for MetricsSink.DELIVERY_TIME, 0 if it's
+	 *          not measured
+	 */
+	protected void deliver(int callback_id, Object doc, long readNanos) {
+		SubscriptionIndex index = mIndex;
+		if (index == null) {
+			dispatch(callback_id, doc, readNanos);
+			return;
+		}
+
+		List<Integer> callbacks = new ArrayList<Integer>(2);
+		try {
+			index.route(callback_id, doc, callbacks);
+		} catch (JSONException e) {
+			PubsubLog.e(TAG, e.getMessage(), e);
+			return;
+		}
+
+		// Everyone gets the same doc, so it's parsed at most once
+		for (int i = 0; i < callbacks.size(); i++)
+			dispatch(callbacks.get(i), doc, readNanos);
+	}
+
+	private void dispatch(int callback_id, Object doc, long readNanos) {
+		Delivery delivery = mDeliveries.get(callback_id);
+		if (delivery != null)
+			delivery.deliver(doc, readNanos, mMetrics);
+		else
+			mCallback.onDoc(callback_id, doc);
+	}
+}
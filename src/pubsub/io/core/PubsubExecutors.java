@@ -0,0 +1,110 @@
+/*
+ * pubsub.io Android Library
+ * Copyright (C) 2011  Andreas Göransson
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pubsub.io.core;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The executors a PubsubListener can be called on. Any other Executor works
+ * too, for example a single thread executor of your own if a background
+ * listener needs its docs in order. On Android, HandlerExecutor.mainThread()
+ * calls listeners on the main thread.
+ */
+public class PubsubExecutors {
+
+	private static final String TAG = "PubsubExecutors";
+
+	/**
+	 * Runs the listener right away on the thread that read the doc. The
+	 * fastest option, but the listener must be quick and must not block or
+	 * every other subscription on the connection waits.
+	 */
+	public static final Executor CALLER = new Executor() {
+		public void execute(Runnable command) {
+			command.run();
+		}
+	};
+
+	private static ExecutorService sBackground;
+
+	private static Executor sVirtual;
+	private static boolean sVirtualLooked;
+
+	/**
+	 * @return A shared pool of background threads, one per core. Docs may be
+	 *         delivered concurrently and out of order.
+	 */
+	public static synchronized Executor background() {
+		if (sBackground == null) {
+			int threads = Math.max(1, Runtime.getRuntime().availableProcessors());
+			sBackground = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+				private final AtomicInteger mCount = new AtomicInteger();
+
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "PubsubListener-"
+							+ mCount.incrementAndGet());
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		return sBackground;
+	}
+
+	/**
+	 * Starts every task on a virtual thread of its own. Meant for
+	 * PubsubClient.setConnectionExecutor(), where a blocking connection then
+	 * costs a few KB of heap instead of two or three OS threads.
+	 *
+	 * @return The executor, or null if the JVM has no virtual threads (before
+	 *         Java 21, and on Android), which setConnectionExecutor() takes as
+	 *         platform threads
+	 */
+	public static synchronized Executor virtualThreads() {
+		if (sVirtualLooked)
+			return sVirtual;
+		sVirtualLooked = true;
+
+		try {
+			// Thread.ofVirtual().name("PubsubVirtual-", 0).factory(), looked up so
+			// the library still builds for Java 6
+			Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+			Method name = builderClass.getMethod("name", String.class, long.class);
+			Method factory = builderClass.getMethod("factory");
+
+			Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+			builder = name.invoke(builder, "PubsubVirtual-", 0L);
+			final ThreadFactory threads = (ThreadFactory) factory.invoke(builder);
+
+			sVirtual = new Executor() {
+				public void execute(Runnable command) {
+					threads.newThread(command).start();
+				}
+			};
+		} catch (Exception e) {
+			PubsubLog.i(TAG, "No virtual threads: " + e);
+		}
+		return sVirtual;
+	}
+}
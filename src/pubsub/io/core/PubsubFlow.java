@@ -0,0 +1,80 @@
+/*
+ * pubsub.io Android Library
+ * Copyright (C) 2011  Andreas Göransson
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pubsub.io.core;
+
+/**
+ * Interfaces for streams of items with demand driven backpressure, the same
+ * shape as java.util.concurrent.Flow and the Reactive Streams interfaces, so
+ * an adapter to either is a few lines of delegation. Kept here since the
+ * library still runs where neither is available, see DocPublisher.
+ *
+ * A Subscriber gets onSubscribe() first, then at most as many onNext() as it
+ * has asked for with Subscription.request(), then onComplete() or onError()
+ * unless it cancelled. The calls to one Subscriber never overlap.
+ */
+public final class PubsubFlow {
+
+	private PubsubFlow() {
+	}
+
+	/**
+	 * Hands items to the subscribers that ask for them.
+	 */
+	public interface Publisher<T> {
+
+		/**
+		 * @param subscriber
+		 *          Gets onSubscribe() with its Subscription right away
+		 */
+		public void subscribe(Subscriber<? super T> subscriber);
+	}
+
+	/**
+	 * Receives the items it asked for.
+	 */
+	public interface Subscriber<T> {
+
+		public void onSubscribe(Subscription subscription);
+
+		public void onNext(T item);
+
+		/** Nothing more is coming, because of throwable */
+		public void onError(Throwable throwable);
+
+		/** Nothing more is coming */
+		public void onComplete();
+	}
+
+	/**
+	 * The link between a Publisher and one of its Subscribers.
+	 */
+	public interface Subscription {
+
+		/**
+		 * Ask for n more items.
+		 * 
+		 * @param n
+		 *          Greater than 0, Long.MAX_VALUE for no limit
+		 */
+		public void request(long n);
+
+		/** Stop the items, some may still come after this */
+		public void cancel();
+	}
+}
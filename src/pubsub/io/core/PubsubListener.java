@@ -0,0 +1,40 @@
+/*
+ * pubsub.io Android Library
+ * Copyright (C) 2011  Andreas Göransson
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pubsub.io.core;
+
+import org.json.JSONObject;
+
+/**
+ * Receives the docs of one subscription, as an alternative to
+ * PubsubClient.Callback.onDoc() (on Android, the handler_callback of the
+ * Handler). Called on the Executor the listener was subscribed with, see
+ * PubsubExecutors.
+ */
+public interface PubsubListener {
+
+	/**
+	 * A doc matching the subscription arrived.
+	 *
+	 * @param handle
+	 *          The handle subscribe() returned
+	 * @param doc
+	 *          The doc
+	 */
+	void onDoc(int handle, JSONObject doc);
+}
@@ -0,0 +1,107 @@
+/*
+ * pubsub.io Android Library
+ * Copyright (C) 2011  Andreas Göransson
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pubsub.io.core;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+
+/**
+ * Where the core logs to. On a plain JVM warnings and errors go to
+ * System.err; the Android classes send everything to android.util.Log
+ * instead, see setSink(). The priorities are the same as android.util.Log's.
+ */
+public class PubsubLog {
+
+	public static final int DEBUG = 3;
+	public static final int INFO = 4;
+	public static final int WARN = 5;
+	public static final int ERROR = 6;
+
+	/**
+	 * Receives every log line. Called from any thread.
+	 */
+	public interface Sink {
+		/**
+		 * @param priority
+		 *          DEBUG, INFO, WARN or ERROR
+		 * @param tag
+		 *          The class that logged
+		 * @param message
+		 * @param tr
+		 *          What was thrown, or null
+		 */
+		public void log(int priority, String tag, String message, Throwable tr);
+	}
+
+	/** Warnings and errors to System.err, the default */
+	public static final Sink STDERR = new Sink() {
+		public void log(int priority, String tag, String message, Throwable tr) {
+			if (priority < WARN)
+				return;
+
+			StringWriter line = new StringWriter();
+			PrintWriter out = new PrintWriter(line);
+			out.print(priority == WARN ? "W/" : "E/");
+			out.print(tag);
+			out.print(": ");
+			out.println(message);
+			if (tr != null)
+				tr.printStackTrace(out);
+			out.flush();
+			System.err.print(line);
+		}
+	};
+
+	private static volatile Sink sSink = STDERR;
+
+	private PubsubLog() {
+	}
+
+	/**
+	 * @param sink
+	 *          Where the log goes from now on, STDERR by default
+	 */
+	public static void setSink(Sink sink) {
+		sSink = sink != null ? sink : STDERR;
+	}
+
+	public static void d(String tag, String message) {
+		sSink.log(DEBUG, tag, message, null);
+	}
+
+	public static void i(String tag, String message) {
+		sSink.log(INFO, tag, message, null);
+	}
+
+	public static void w(String tag, String message) {
+		sSink.log(WARN, tag, message, null);
+	}
+
+	public static void w(String tag, String message, Throwable tr) {
+		sSink.log(WARN, tag, message, tr);
+	}
+
+	public static void e(String tag, String message) {
+		sSink.log(ERROR, tag, message, null);
+	}
+
+	public static void e(String tag, String message, Throwable tr) {
+		sSink.log(ERROR, tag, message, tr);
+	}
+}
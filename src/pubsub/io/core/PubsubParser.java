@@ -0,0 +1,307 @@
+/*
+ * pubsub.io Android Library
+ * Copyright (C) 2011  Andreas Göransson
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pubsub.io.core;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Class for parsing pubsub.io messages.
+ * 
+ * The String methods build the messages as JSONObjects. The encode methods
+ * stream the same messages straight to UTF-8 bytes with a JsonWriter, which is
+ * what the library itself uses since it skips the JSONObject envelope, the
+ * String and the getBytes() copy.
+ * 
+ * @author Andreas G�ransson
+ * 
+ */
+public class PubsubParser {
+
+	/**
+	 * Creates the "sub" message.
+	 * 
+	 * @param sub
+	 * @return
+	 * @throws JSONException
+	 */
+	public static String sub(String sub) throws JSONException {
+
+		JSONObject root = new JSONObject();
+		root.put("sub", sub);
+
+		return root.toString();
+	}
+
+	/**
+	 * Creates the "subscribe" message.
+	 * 
+	 * @param json_filter
+	 * @param handler_callback
+	 * @return
+	 * @throws JSONException
+	 */
+	public static String subscribe(JSONObject json_filter, int handler_callback)
+			throws JSONException {
+
+		JSONObject root = new JSONObject();
+		root.put("name", "subscribe");
+		root.put("query", json_filter);
+		root.put("id", handler_callback);
+
+		return root.toString();
+	}
+
+	/**
+	 * Creates the "unsubscribe" message.
+	 * 
+	 * @param sub
+	 * @return
+	 * @throws JSONException
+	 */
+	public static String unsubscribe(int handler_callback) throws JSONException {
+
+		JSONObject root = new JSONObject();
+		root.put("name", "unsubscribe");
+		root.put("id", handler_callback);
+
+		return root.toString();
+	}
+
+	/**
+	 * Creates the "publish" message.
+	 * 
+	 * @param doc
+	 * @return
+	 * @throws JSONException
+	 */
+	public static String publish(JSONObject doc) throws JSONException {
+
+		JSONObject root = new JSONObject();
+		root.put("name", "publish");
+		root.put("doc", doc);
+
+		return root.toString();
+	}
+
+	/**
+	 * Scratch space for the encode methods, one per thread.
+	 */
+	private static final ThreadLocal<JsonWriter> sWriter =
+			new ThreadLocal<JsonWriter>() {
+		@Override
+		protected JsonWriter initialValue() {
+			return new JsonWriter(new FrameBuffer());
+		}
+	};
+
+	/**
+	 * Writes the "sub" message.
+	 * 
+	 * @param json
+	 * @param sub
+	 */
+	public static void writeSub(JsonWriter json, String sub) {
+		json.beginObject().name("sub").value(sub).endObject();
+	}
+
+	/**
+	 * Writes the "hello" message, offering the hub a codec. JSON is always
+	 * offered last, so a hub that knows none of the others can stay with it.
+	 * 
+	 * @param json
+	 * @param codec
+	 */
+	public static void writeHello(JsonWriter json, String codec) {
+		writeHello(json, codec, -1);
+	}
+
+	/**
+	 * Writes the "hello" message, offering the hub a codec and compressed
+	 * frames.
+	 * 
+	 * @param json
+	 * @param codec
+	 * @param dictionaryId
+	 *          The Compression.getDictionaryId() the frames are compressed
+	 *          with, -1 to not offer compression
+	 */
+	public static void writeHello(JsonWriter json, String codec,
+			long dictionaryId) {
+		json.beginObject().name("name").value("hello").name("codecs")
+				.beginArray();
+		if (!codec.equals(Codec.JSON.getName()))
+			json.value(codec);
+		json.value(Codec.JSON.getName()).endArray();
+		if (dictionaryId != -1)
+			json.name("deflate").value(dictionaryId);
+		json.endObject();
+	}
+
+	/**
+	 * Writes the "subscribe" message.
+	 * 
+	 * @param json
+	 * @param json_filter
+	 * @param handler_callback
+	 */
+	public static void writeSubscribe(JsonWriter json, JSONObject json_filter,
+			int handler_callback) {
+		json.beginObject().name("name").value("subscribe").name("query")
+				.value(json_filter).name("id").value(handler_callback).endObject();
+	}
+
+	/**
+	 * Writes the "unsubscribe" message.
+	 * 
+	 * @param json
+	 * @param handler_callback
+	 */
+	public static void writeUnsubscribe(JsonWriter json, int handler_callback) {
+		json.beginObject().name("name").value("unsubscribe").name("id")
+				.value(handler_callback).endObject();
+	}
+
+	/**
+	 * Writes the "publish" message.
+	 * 
+	 * @param json
+	 * @param doc
+	 */
+	public static void writePublish(JsonWriter json, JSONObject doc) {
+		json.beginObject().name("name").value("publish").name("doc").value(doc)
+				.endObject();
+	}
+
+	/**
+	 * Writes the "publish" message, the doc is written by the DocWriter.
+	 * 
+	 * @param json
+	 * @param doc
+	 */
+	public static void writePublish(JsonWriter json, DocWriter doc) {
+		json.beginObject().name("name").value("publish").name("doc");
+		doc.writeDoc(json);
+		json.endObject();
+	}
+
+	/**
+	 * Encodes the "sub" message as UTF-8.
+	 * 
+	 * @param sub
+	 * @return
+	 */
+	public static byte[] encodeSub(String sub) {
+		JsonWriter json = begin();
+		writeSub(json, sub);
+		return end(json);
+	}
+
+	/**
+	 * Encodes the "hello" message as UTF-8.
+	 * 
+	 * @param codec
+	 * @return
+	 */
+	public static byte[] encodeHello(String codec) {
+		return encodeHello(codec, -1);
+	}
+
+	/**
+	 * Encodes the "hello" message with compression as UTF-8.
+	 * 
+	 * @param codec
+	 * @param dictionaryId
+	 *          -1 to not offer compression
+	 * @return
+	 */
+	public static byte[] encodeHello(String codec, long dictionaryId) {
+		JsonWriter json = begin();
+		writeHello(json, codec, dictionaryId);
+		return end(json);
+	}
+
+	/**
+	 * Encodes the "subscribe" message as UTF-8.
+	 * 
+	 * @param json_filter
+	 * @param handler_callback
+	 * @return
+	 */
+	public static byte[] encodeSubscribe(JSONObject json_filter,
+			int handler_callback) {
+		JsonWriter json = begin();
+		writeSubscribe(json, json_filter, handler_callback);
+		return end(json);
+	}
+
+	/**
+	 * Encodes the "unsubscribe" message as UTF-8.
+	 * 
+	 * @param handler_callback
+	 * @return
+	 */
+	public static byte[] encodeUnsubscribe(int handler_callback) {
+		JsonWriter json = begin();
+		writeUnsubscribe(json, handler_callback);
+		return end(json);
+	}
+
+	/**
+	 * Encodes the "publish" message as UTF-8.
+	 * 
+	 * @param doc
+	 * @return
+	 */
+	public static byte[] encodePublish(JSONObject doc) {
+		JsonWriter json = begin();
+		writePublish(json, doc);
+		return end(json);
+	}
+
+	/**
+	 * Encodes the "publish" message as UTF-8, the doc is written by the
+	 * DocWriter.
+	 * 
+	 * @param doc
+	 * @return
+	 */
+	public static byte[] encodePublish(DocWriter doc) {
+		JsonWriter json = begin();
+		writePublish(json, doc);
+		return end(json);
+	}
+
+	private static JsonWriter begin() {
+		JsonWriter json = sWriter.get();
+		json.buffer().clear();
+		return json.reset(json.buffer());
+	}
+
+	private static byte[] end(JsonWriter json) {
+		if (!json.isComplete())
+			throw new IllegalStateException("Incomplete message");
+
+		FrameBuffer buffer = json.buffer();
+		byte[] message = new byte[buffer.length()];
+		System.arraycopy(buffer.array(), 0, message, 0, message.length);
+		return message;
+	}
+
+}
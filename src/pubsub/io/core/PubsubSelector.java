@@ -0,0 +1,439 @@
+/*
+ * pubsub.io Android Library
+ * Copyright (C) 2011  Andreas Göransson
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pubsub.io.core;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.Channel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+
+/**
+ * A single I/O thread that serves every non-blocking pubsub.io connection.
+ * Connections register a SocketChannel together with a Session, and the
+ * selector thread calls the session whenever the channel is ready.
+ *
+ * All channel operations happen on the selector thread, other threads hand
+ * work to it with execute().
+ */
+public class PubsubSelector implements Runnable {
+
+	private static final String TAG = "PubsubSelector";
+
+	/**
+	 * Called on the selector thread when a registered channel is ready.
+	 */
+	public interface Session {
+		/** The non-blocking connect has completed, or failed */
+		public void onConnect(SelectionKey key);
+
+		/** The channel has bytes to read */
+		public void onRead(SelectionKey key);
+
+		/** The channel can accept more bytes */
+		public void onWrite(SelectionKey key);
+
+		/** The connect could not be started, for example the host is unknown */
+		public void onConnectFailed(IOException e);
+	}
+
+	private static PubsubSelector sDefault;
+
+	private final Selector mSelector;
+
+	/** Work handed to the selector thread by other threads */
+	private final ConcurrentLinkedQueue<Runnable> mTasks;
+
+	/** Host name lookups are blocking so they are kept off the selector thread */
+	private final ExecutorService mResolver;
+
+	/** Tasks waiting for their time, only touched on the selector thread */
+	private final PriorityQueue<Timer> mTimers;
+	private long mTimerSequence;
+
+	private final Thread mThread;
+
+	private volatile boolean mRunning;
+
+	/**
+	 * @return The selector shared by all non-blocking connections
+	 * @throws IOException
+	 *           If the selector can't be opened
+	 */
+	public static synchronized PubsubSelector getDefault() throws IOException {
+		if (sDefault == null || !sDefault.mRunning)
+			sDefault = new PubsubSelector();
+		return sDefault;
+	}
+
+	public PubsubSelector() throws IOException {
+		mSelector = Selector.open();
+		mTasks = new ConcurrentLinkedQueue<Runnable>();
+		mTimers = new PriorityQueue<Timer>();
+		mResolver = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "PubsubResolver");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+
+		mRunning = true;
+		mThread = new Thread(this, "PubsubSelector");
+		mThread.setDaemon(true);
+		mThread.start();
+	}
+
+	/**
+	 * Resolve the host and start a non-blocking connect, with the default
+	 * ConnectionFactory.
+	 *
+	 * @param host
+	 *          PubSub.io server host.
+	 * @param port
+	 *          PubSub.io server port.
+	 * @param session
+	 *          Receives the events for the new channel
+	 */
+	public void connect(String host, int port, Session session) {
+		connect(host, port, session, ConnectionFactory.getDefault());
+	}
+
+	/**
+	 * Resolve the host and start a non-blocking connect. Every address of the
+	 * host is tried in turn, each for at most the connect timeout of the
+	 * factory. The session is called with onConnect once a connect completes,
+	 * or with onConnectFailed if none did.
+	 *
+	 * @param host
+	 *          PubSub.io server host.
+	 * @param port
+	 *          PubSub.io server port.
+	 * @param session
+	 *          Receives the events for the new channel
+	 * @param factory
+	 *          Resolves the host and sets up the socket
+	 */
+	public void connect(final String host, final int port,
+			final Session session, final ConnectionFactory factory) {
+		mResolver.execute(new Runnable() {
+			public void run() {
+				final InetAddress[] addresses;
+				try {
+					addresses = factory.resolve(host);
+				} catch (final UnknownHostException e) {
+					execute(new Runnable() {
+						public void run() {
+							session.onConnectFailed(e);
+						}
+					});
+					return;
+				}
+
+				execute(new Runnable() {
+					public void run() {
+						new Attempt(host, port, addresses, session, factory).next();
+					}
+				});
+			}
+		});
+	}
+
+	/**
+	 * Run a task on the selector thread.
+	 *
+	 * @param task
+	 */
+	public void execute(Runnable task) {
+		mTasks.offer(task);
+		mSelector.wakeup();
+	}
+
+	/**
+	 * Add interest in an operation for a key, from any thread.
+	 *
+	 * @param key
+	 * @param ops
+	 */
+	public void addInterest(final SelectionKey key, final int ops) {
+		execute(new Runnable() {
+			public void run() {
+				if (key.isValid())
+					key.interestOps(key.interestOps() | ops);
+			}
+		});
+	}
+
+	/**
+	 * Run a task on the selector thread after a delay. There's no way to cancel
+	 * it, the task has to check whether it's still wanted.
+	 *
+	 * @param task
+	 * @param delayMillis
+	 */
+	public void schedule(final Runnable task, long delayMillis) {
+		final long when = PubsubClient.uptimeMillis() + delayMillis;
+		execute(new Runnable() {
+			public void run() {
+				mTimers.add(new Timer(when, mTimerSequence++, task));
+			}
+		});
+	}
+
+	/**
+	 * Stop the selector thread and close every channel it serves.
+	 */
+	public void shutdown() {
+		mRunning = false;
+		mResolver.shutdownNow();
+		mSelector.wakeup();
+	}
+
+	public void run() {
+		PubsubLog.i(TAG, "BEGIN PubsubSelector");
+
+		while (mRunning) {
+			try {
+				Timer next = mTimers.peek();
+				if (next == null) {
+					mSelector.select();
+				} else {
+					long wait = next.mWhen - PubsubClient.uptimeMillis();
+					if (wait > 0)
+						mSelector.select(wait);
+					else
+						mSelector.selectNow();
+				}
+			} catch (IOException e) {
+				PubsubLog.e(TAG, "select() failed", e);
+				break;
+			}
+
+			// Run whatever the other threads asked us to do
+			Runnable task;
+			while ((task = mTasks.poll()) != null) {
+				try {
+					task.run();
+				} catch (RuntimeException e) {
+					PubsubLog.e(TAG, "Selector task failed", e);
+				}
+			}
+
+			// And the timers that are due
+			long now = PubsubClient.uptimeMillis();
+			Timer timer;
+			while ((timer = mTimers.peek()) != null && timer.mWhen <= now) {
+				mTimers.poll();
+				try {
+					timer.mTask.run();
+				} catch (RuntimeException e) {
+					PubsubLog.e(TAG, "Selector timer failed", e);
+				}
+			}
+
+			Iterator<SelectionKey> keys = mSelector.selectedKeys().iterator();
+			while (keys.hasNext()) {
+				SelectionKey key = keys.next();
+				keys.remove();
+
+				Session session = (Session) key.attachment();
+				try {
+					if (key.isValid() && key.isConnectable())
+						session.onConnect(key);
+					if (key.isValid() && key.isReadable())
+						session.onRead(key);
+					if (key.isValid() && key.isWritable())
+						session.onWrite(key);
+				} catch (CancelledKeyException e) {
+					// The session closed the channel while we were busy with it
+				}
+			}
+		}
+
+		// Close everything that's still open
+		for (SelectionKey key : mSelector.keys())
+			close(key.channel());
+		try {
+			mSelector.close();
+		} catch (IOException e) {
+			PubsubLog.e(TAG, "close() of selector failed", e);
+		}
+		mRunning = false;
+	}
+
+	/**
+	 * Close a channel, ignoring any errors.
+	 */
+	static void close(Channel channel) {
+		if (channel == null)
+			return;
+		try {
+			channel.close();
+		} catch (IOException e) {
+			PubsubLog.e(TAG, "close() of channel failed", e);
+		}
+	}
+
+	/**
+	 * Connects to the addresses of a host one at a time until one works, then
+	 * hands the channel over to the real session.
+	 */
+	private class Attempt implements Session {
+		private final String mHost;
+		private final int mPort;
+		private final InetAddress[] mAddresses;
+		private final Session mSession;
+		private final ConnectionFactory mFactory;
+
+		private int mNext;
+		private InetAddress mAddress;
+
+		/** The channel still connecting, null once it's done either way */
+		private SocketChannel mChannel;
+		private IOException mLast;
+
+		Attempt(String host, int port, InetAddress[] addresses, Session session,
+				ConnectionFactory factory) {
+			mHost = host;
+			mPort = port;
+			mAddresses = addresses;
+			mSession = session;
+			mFactory = factory;
+		}
+
+		/**
+		 * Start the connect to the next address, or give up.
+		 */
+		void next() {
+			while (mNext < mAddresses.length) {
+				mAddress = mAddresses[mNext++];
+
+				SocketChannel channel = null;
+				try {
+					channel = SocketChannel.open();
+					channel.configureBlocking(false);
+					mFactory.configure(channel.socket());
+
+					if (channel.connect(new InetSocketAddress(mAddress, mPort))) {
+						connected(channel.register(mSelector, 0, mSession));
+					} else {
+						mChannel = channel;
+						channel.register(mSelector, SelectionKey.OP_CONNECT, this);
+						scheduleTimeout(channel);
+					}
+					return;
+				} catch (IOException e) {
+					close(channel);
+					mLast = e;
+				}
+			}
+
+			// The host may have moved, look it up again next time
+			mFactory.failed(mHost);
+			mSession.onConnectFailed(mLast != null ? mLast : new IOException(
+					"Unable to connect to " + mHost));
+		}
+
+		public void onConnect(SelectionKey key) {
+			SocketChannel channel = (SocketChannel) key.channel();
+			try {
+				channel.finishConnect();
+			} catch (IOException e) {
+				PubsubLog.w(TAG, "connect to " + mAddress + " failed", e);
+				close(channel);
+				mChannel = null;
+				mLast = e;
+				next();
+				return;
+			}
+
+			mChannel = null;
+			key.interestOps(0);
+			key.attach(mSession);
+			connected(key);
+		}
+
+		public void onRead(SelectionKey key) {
+		}
+
+		public void onWrite(SelectionKey key) {
+		}
+
+		public void onConnectFailed(IOException e) {
+		}
+
+		private void connected(SelectionKey key) {
+			mFactory.succeeded(mHost, mAddress);
+			mSession.onConnect(key);
+		}
+
+		private void scheduleTimeout(final SocketChannel channel) {
+			final int timeout = mFactory.getConnectTimeout();
+			if (timeout <= 0)
+				return;
+
+			schedule(new Runnable() {
+				public void run() {
+					// Connected, or failed, in time
+					if (mChannel != channel)
+						return;
+
+					PubsubLog.w(TAG, "connect to " + mAddress + " timed out");
+					close(channel);
+					mChannel = null;
+					mLast = new SocketTimeoutException("connect to " + mAddress
+							+ " timed out after " + timeout + " ms");
+					next();
+				}
+			}, timeout);
+		}
+	}
+
+	private static class Timer implements Comparable<Timer> {
+		final long mWhen;
+		final long mSequence;
+		final Runnable mTask;
+
+		Timer(long when, long sequence, Runnable task) {
+			mWhen = when;
+			mSequence = sequence;
+			mTask = task;
+		}
+
+		public int compareTo(Timer other) {
+			if (mWhen != other.mWhen)
+				return mWhen < other.mWhen ? -1 : 1;
+			// Same time, first come first served
+			return mSequence < other.mSequence ? -1
+					: (mSequence == other.mSequence ? 0 : 1);
+		}
+	}
+}
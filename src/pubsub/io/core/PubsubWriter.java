@@ -0,0 +1,283 @@
+/*
+ * pubsub.io Android Library
+ * Copyright (C) 2011  Andreas Göransson
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pubsub.io.core;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The single writer of a connection. Any thread can add messages, they are
+ * framed right away into the FrameBuffer of the batch that's being filled,
+ * between begin() and commit(). The writer thread hands every batch to the
+ * Sink, which writes the buffer with one call, so a burst of publishes costs
+ * one flush instead of one per message and messages always go out in the
+ * order they were added.
+ *
+ * The queue is bounded, begin() never blocks and returns null when the
+ * connection can't keep up. The buffers of written batches are reused.
+ */
+public class PubsubWriter implements Runnable {
+
+	private static final String TAG = "PubsubWriter";
+
+	/** Default number of messages that can wait for the writer */
+	public static final int DEFAULT_CAPACITY = 1024;
+
+	/** Default max number of messages written in one batch */
+	public static final int DEFAULT_MAX_BATCH = 64;
+
+	/**
+	 * Writes a batch of messages to the connection.
+	 */
+	public interface Sink {
+		/**
+		 * Write the frames of the batch and flush once.
+		 *
+		 * @param frames
+		 *          Every message of the batch, framed
+		 * @param batch
+		 *          The messages, without header and footer, in order
+		 * @throws IOException
+		 */
+		public void write(FrameBuffer frames, List<byte[]> batch)
+				throws IOException;
+	}
+
+	/**
+	 * Messages framed into one buffer.
+	 */
+	private static class Batch {
+		final FrameBuffer mmFrames = new FrameBuffer();
+		final List<byte[]> mmMessages;
+
+		Batch(int maxBatch) {
+			mmMessages = new ArrayList<byte[]>(maxBatch);
+		}
+	}
+
+	private final Sink mSink;
+	private final int mCapacity;
+	private final int mMaxBatch;
+	private final long mLingerNanos;
+
+	// Guards everything below, not a monitor so a virtual thread waiting for
+	// messages doesn't pin its carrier thread
+	private final ReentrantLock mLock = new ReentrantLock();
+	private final Condition mAdded = mLock.newCondition();
+
+	/** The batch messages are added to */
+	private Batch mFilling;
+
+	/** Full batches waiting for the writer, oldest first */
+	private final List<Batch> mFull = new ArrayList<Batch>();
+
+	/** Written batches, ready to be filled again */
+	private final List<Batch> mIdle = new ArrayList<Batch>();
+
+	/** Messages waiting for the writer */
+	private volatile int mQueued;
+
+	private volatile boolean mRunning = true;
+
+	/** The thread the writer runs on, for cancel() */
+	private volatile Thread mThread;
+
+	public PubsubWriter(Sink sink) {
+		this(sink, DEFAULT_CAPACITY, DEFAULT_MAX_BATCH, 0);
+	}
+
+	/**
+	 * @param sink
+	 *          Where the batches are written
+	 * @param capacity
+	 *          Number of messages that can be queued
+	 * @param maxBatch
+	 *          Max number of messages in a single batch
+	 * @param lingerMillis
+	 *          How long to wait for more messages before writing a batch that
+	 *          isn't full, 0 writes whatever is queued right away
+	 */
+	public PubsubWriter(Sink sink, int capacity, int maxBatch, long lingerMillis) {
+		mSink = sink;
+		mCapacity = capacity;
+		mMaxBatch = maxBatch;
+		mLingerNanos = TimeUnit.MILLISECONDS.toNanos(lingerMillis);
+		mFilling = new Batch(maxBatch);
+	}
+
+	/**
+	 * Start the writer on a daemon thread of its own.
+	 */
+	public void start() {
+		Thread thread = new Thread(this, "PubsubWriter");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Start the writer on an executor. It keeps the thread it's given until it
+	 * is cancelled, so the executor must start a thread per task.
+	 *
+	 * @param executor
+	 */
+	public void start(Executor executor) {
+		executor.execute(this);
+	}
+
+	/**
+	 * Start adding a message, from any thread. Frame it into the returned
+	 * buffer, then call commit() whatever happens; other threads wait in
+	 * begin() until then.
+	 *
+	 * @return The buffer to frame the message into, null if the queue is full
+	 *         and the message can't be added
+	 */
+	public FrameBuffer begin() {
+		mLock.lock();
+		if (!mRunning || mQueued >= mCapacity) {
+			mLock.unlock();
+			return null;
+		}
+
+		if (mFilling.mmMessages.size() >= mMaxBatch) {
+			mFull.add(mFilling);
+			mFilling = mIdle.isEmpty() ? new Batch(mMaxBatch) : mIdle
+					.remove(mIdle.size() - 1);
+		}
+		return mFilling.mmFrames;
+	}
+
+	/**
+	 * Finish the message started with a successful begin().
+	 *
+	 * @param message
+	 *          The message without header and footer, null if nothing was
+	 *          framed after all
+	 */
+	public void commit(byte[] message) {
+		try {
+			if (message != null) {
+				mFilling.mmMessages.add(message);
+				mQueued++;
+				mAdded.signal();
+			}
+		} finally {
+			mLock.unlock();
+		}
+	}
+
+	/**
+	 * @return Number of messages waiting to be written
+	 */
+	public int getQueueDepth() {
+		return mQueued;
+	}
+
+	/**
+	 * Stop the writer, anything still queued is dropped.
+	 */
+	public void cancel() {
+		mRunning = false;
+		Thread thread = mThread;
+		if (thread != null)
+			thread.interrupt();
+	}
+
+	public void run() {
+		PubsubLog.i(TAG, "BEGIN mWriterThread");
+
+		mThread = Thread.currentThread();
+
+		while (mRunning) {
+			Batch batch;
+			try {
+				batch = take();
+			} catch (InterruptedException e) {
+				break;
+			}
+
+			try {
+				mSink.write(batch.mmFrames, batch.mmMessages);
+			} catch (IOException e) {
+				PubsubLog.e(TAG, "Exception during write", e);
+			}
+
+			mLock.lock();
+			try {
+				recycle(batch);
+			} finally {
+				mLock.unlock();
+			}
+		}
+
+		mLock.lock();
+		try {
+			while (!mFull.isEmpty())
+				recycle(mFull.remove(0));
+			mFilling.mmFrames.clear();
+			mFilling.mmMessages.clear();
+			mQueued = 0;
+		} finally {
+			mLock.unlock();
+		}
+		mThread = null;
+	}
+
+	/**
+	 * Wait for the next batch and take it off the queue.
+	 */
+	private Batch take() throws InterruptedException {
+		mLock.lockInterruptibly();
+		try {
+			while (mQueued == 0)
+				mAdded.await();
+
+			// Give the producers a moment to fill up the batch
+			if (mLingerNanos > 0 && mFull.isEmpty()) {
+				long remaining = mLingerNanos;
+				while (mFilling.mmMessages.size() < mMaxBatch && remaining > 0)
+					remaining = mAdded.awaitNanos(remaining);
+			}
+
+			Batch batch;
+			if (!mFull.isEmpty()) {
+				batch = mFull.remove(0);
+			} else {
+				batch = mFilling;
+				mFilling = mIdle.isEmpty() ? new Batch(mMaxBatch) : mIdle
+						.remove(mIdle.size() - 1);
+			}
+			mQueued -= batch.mmMessages.size();
+			return batch;
+		} finally {
+			mLock.unlock();
+		}
+	}
+
+	private void recycle(Batch batch) {
+		batch.mmFrames.clear();
+		batch.mmMessages.clear();
+		mIdle.add(batch);
+	}
+}
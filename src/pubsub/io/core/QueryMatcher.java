@@ -0,0 +1,484 @@
+/*
+ * pubsub.io Android Library
+ * Copyright (C) 2011  Andreas Göransson
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pubsub.io.core;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * A subscribe query compiled so it can be evaluated on the client. Supports
+ * plain values, dotted paths ("pos.lat"), $gt, $gte, $lt, $lte, $ne, $in,
+ * $nin, $exists and a top level $or.
+ *
+ * A field that holds an array matches if the array itself, or one of its
+ * elements, satisfies every condition on the field.
+ *
+ * Besides matching docs a matcher can tell whether it covers another one, ie
+ * whether every doc the other matches is matched by this one as well. That
+ * check is conservative, when in doubt the answer is no.
+ *
+ * A query using anything else is opaque: it can't be matched locally and never
+ * covers, or is covered by, another query.
+ */
+public class QueryMatcher {
+
+	/** Returned by compare() for values that have no order */
+	private static final int INCOMPARABLE = Integer.MIN_VALUE;
+
+	private final boolean mOpaque;
+
+	/** Conditions per path, all of them have to hold */
+	private final Map<String, Field> mFields;
+
+	/** Alternatives of a top level $or, null if there is none */
+	private final List<QueryMatcher> mOr;
+
+	private QueryMatcher(boolean opaque, Map<String, Field> fields,
+			List<QueryMatcher> or) {
+		mOpaque = opaque;
+		mFields = fields;
+		mOr = or;
+	}
+
+	/**
+	 * Compile a subscribe query, this never fails; queries we don't understand
+	 * give an opaque matcher.
+	 *
+	 * @param query
+	 * @return The matcher
+	 */
+	public static QueryMatcher compile(JSONObject query) {
+		Map<String, Field> fields = new HashMap<String, Field>();
+		List<QueryMatcher> or = null;
+
+		Iterator<?> keys = query.keys();
+		while (keys.hasNext()) {
+			String key = (String) keys.next();
+			Object value = query.opt(key);
+
+			if (key.equals("$or")) {
+				if (!(value instanceof JSONArray))
+					return opaque();
+
+				JSONArray alternatives = (JSONArray) value;
+				or = new ArrayList<QueryMatcher>(alternatives.length());
+				for (int i = 0; i < alternatives.length(); i++) {
+					Object alternative = alternatives.opt(i);
+					if (!(alternative instanceof JSONObject))
+						return opaque();
+
+					QueryMatcher matcher = compile((JSONObject) alternative);
+					if (matcher.mOpaque)
+						return opaque();
+					or.add(matcher);
+				}
+				continue;
+			}
+
+			if (key.startsWith("$"))
+				return opaque();
+
+			Field field = Field.compile(key, value);
+			if (field == null)
+				return opaque();
+			fields.put(key, field);
+		}
+
+		return new QueryMatcher(false, fields, or);
+	}
+
+	private static QueryMatcher opaque() {
+		return new QueryMatcher(true, null, null);
+	}
+
+	/**
+	 * @return true if the query can't be evaluated on the client
+	 */
+	public boolean isOpaque() {
+		return mOpaque;
+	}
+
+	/**
+	 * @param doc
+	 * @return true if the doc matches the query, always false for opaque
+	 *         queries
+	 */
+	public boolean matches(JSONObject doc) {
+		if (mOpaque)
+			return false;
+
+		for (Field field : mFields.values())
+			if (!field.matches(doc))
+				return false;
+
+		if (mOr == null)
+			return true;
+
+		for (int i = 0; i < mOr.size(); i++)
+			if (mOr.get(i).matches(doc))
+				return true;
+		return false;
+	}
+
+	/**
+	 * @param other
+	 * @return true if every doc matched by other is matched by this query too
+	 */
+	public boolean covers(QueryMatcher other) {
+		if (mOpaque || other.mOpaque)
+			return false;
+
+		// other's $or only narrows it further, so it's enough to cover the rest
+		// of it. Our own $or needs one alternative that covers other.
+		if (mOr != null) {
+			boolean covered = false;
+			for (int i = 0; i < mOr.size() && !covered; i++)
+				covered = mOr.get(i).covers(other);
+			if (!covered)
+				return false;
+		}
+
+		for (Map.Entry<String, Field> entry : mFields.entrySet()) {
+			Field narrower = other.mFields.get(entry.getKey());
+			if (narrower == null || !entry.getValue().covers(narrower))
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * The conditions on a single path.
+	 */
+	private static class Field {
+		final String[] mPath;
+
+		boolean mHasEq;
+		Object mEq;
+
+		List<Object> mIn;
+		List<Object> mNin;
+
+		Object mLower;
+		boolean mLowerInclusive;
+		Object mUpper;
+		boolean mUpperInclusive;
+
+		/** $exists, null when not given */
+		Boolean mExists;
+
+		Field(String path) {
+			mPath = path.split("\\.");
+		}
+
+		/**
+		 * @return The field, or null if the conditions can't be compiled
+		 */
+		static Field compile(String path, Object condition) {
+			Field field = new Field(path);
+
+			int operators = countOperators(condition);
+			if (operators == 0) {
+				field.mHasEq = true;
+				field.mEq = condition;
+				return field;
+			}
+
+			// A mix of operators and fields is something we don't know
+			JSONObject object = (JSONObject) condition;
+			if (operators != object.length())
+				return null;
+
+			Iterator<?> keys = object.keys();
+			while (keys.hasNext()) {
+				String op = (String) keys.next();
+				Object value = object.opt(op);
+
+				if (op.equals("$gt") || op.equals("$gte")) {
+					field.mLower = value;
+					field.mLowerInclusive = op.equals("$gte");
+				} else if (op.equals("$lt") || op.equals("$lte")) {
+					field.mUpper = value;
+					field.mUpperInclusive = op.equals("$lte");
+				} else if (op.equals("$in") && value instanceof JSONArray) {
+					field.mIn = toList((JSONArray) value);
+				} else if (op.equals("$nin") && value instanceof JSONArray) {
+					field.addNin(toList((JSONArray) value));
+				} else if (op.equals("$ne")) {
+					List<Object> ne = new ArrayList<Object>(1);
+					ne.add(value);
+					field.addNin(ne);
+				} else if (op.equals("$exists") && value instanceof Boolean) {
+					field.mExists = (Boolean) value;
+				} else {
+					return null;
+				}
+			}
+			return field;
+		}
+
+		/**
+		 * Count the keys starting with $, an object without them (or any other
+		 * value) is matched as is.
+		 */
+		private static int countOperators(Object condition) {
+			if (!(condition instanceof JSONObject))
+				return 0;
+
+			Iterator<?> keys = ((JSONObject) condition).keys();
+			int operators = 0;
+			while (keys.hasNext())
+				if (((String) keys.next()).startsWith("$"))
+					operators++;
+			return operators;
+		}
+
+		private void addNin(List<Object> values) {
+			if (mNin == null)
+				mNin = new ArrayList<Object>();
+			mNin.addAll(values);
+		}
+
+		boolean matches(JSONObject doc) {
+			Object value = lookup(doc);
+
+			if (mExists != null && mExists.booleanValue() != (value != null))
+				return false;
+
+			if (value == null) {
+				// A missing field only equals null, and has no order
+				if (mHasEq)
+					return mEq == JSONObject.NULL;
+				return mIn == null && mLower == null && mUpper == null;
+			}
+
+			if (matchesValue(value))
+				return true;
+
+			if (value instanceof JSONArray) {
+				JSONArray array = (JSONArray) value;
+				for (int i = 0; i < array.length(); i++)
+					if (matchesValue(array.opt(i)))
+						return true;
+			}
+			return false;
+		}
+
+		private boolean matchesValue(Object value) {
+			if (mHasEq && !equal(mEq, value))
+				return false;
+			if (mIn != null && !contains(mIn, value))
+				return false;
+			if (mNin != null && contains(mNin, value))
+				return false;
+			return inRange(value);
+		}
+
+		private boolean inRange(Object value) {
+			if (mLower != null) {
+				int c = compare(value, mLower);
+				if (c == INCOMPARABLE || c < 0 || (c == 0 && !mLowerInclusive))
+					return false;
+			}
+			if (mUpper != null) {
+				int c = compare(value, mUpper);
+				if (c == INCOMPARABLE || c > 0 || (c == 0 && !mUpperInclusive))
+					return false;
+			}
+			return true;
+		}
+
+		private Object lookup(JSONObject doc) {
+			Object value = doc;
+			for (int i = 0; i < mPath.length; i++) {
+				if (!(value instanceof JSONObject))
+					return null;
+				value = ((JSONObject) value).opt(mPath[i]);
+			}
+			return value;
+		}
+
+		/**
+		 * @return true if every value allowed by narrower is allowed by this field
+		 */
+		boolean covers(Field narrower) {
+			if (mExists != null) {
+				if (mExists.booleanValue() && !narrower.requiresValue())
+					return false;
+				if (!mExists.booleanValue()
+						&& !Boolean.FALSE.equals(narrower.mExists))
+					return false;
+			}
+
+			if (mHasEq) {
+				if (narrower.mHasEq) {
+					if (!equal(mEq, narrower.mEq))
+						return false;
+				} else if (narrower.mIn == null || narrower.mIn.size() != 1
+						|| !equal(mEq, narrower.mIn.get(0))) {
+					return false;
+				}
+			}
+
+			if (mIn != null) {
+				if (narrower.mHasEq) {
+					if (!contains(mIn, narrower.mEq))
+						return false;
+				} else if (narrower.mIn == null || !containsAll(mIn, narrower.mIn)) {
+					return false;
+				}
+			}
+
+			if (mNin != null && !Boolean.FALSE.equals(narrower.mExists)) {
+				if (narrower.mHasEq) {
+					if (contains(mNin, narrower.mEq))
+						return false;
+				} else if (narrower.mIn != null) {
+					for (int i = 0; i < narrower.mIn.size(); i++)
+						if (contains(mNin, narrower.mIn.get(i)))
+							return false;
+				} else if (narrower.mNin == null
+						|| !containsAll(narrower.mNin, mNin)) {
+					return false;
+				}
+			}
+
+			if (mLower != null || mUpper != null) {
+				if (narrower.mHasEq)
+					return inRange(narrower.mEq);
+
+				if (narrower.mIn != null) {
+					for (int i = 0; i < narrower.mIn.size(); i++)
+						if (!inRange(narrower.mIn.get(i)))
+							return false;
+					return true;
+				}
+
+				if (mLower != null) {
+					if (narrower.mLower == null)
+						return false;
+					int c = compare(narrower.mLower, mLower);
+					if (c == INCOMPARABLE || c < 0
+							|| (c == 0 && narrower.mLowerInclusive && !mLowerInclusive))
+						return false;
+				}
+				if (mUpper != null) {
+					if (narrower.mUpper == null)
+						return false;
+					int c = compare(narrower.mUpper, mUpper);
+					if (c == INCOMPARABLE || c > 0
+							|| (c == 0 && narrower.mUpperInclusive && !mUpperInclusive))
+						return false;
+				}
+			}
+
+			return true;
+		}
+
+		/**
+		 * @return true if a doc without this field can't match
+		 */
+		private boolean requiresValue() {
+			if (Boolean.TRUE.equals(mExists))
+				return true;
+			if (mHasEq)
+				return mEq != JSONObject.NULL;
+			return mIn != null || mLower != null || mUpper != null;
+		}
+	}
+
+	private static List<Object> toList(JSONArray array) {
+		List<Object> list = new ArrayList<Object>(array.length());
+		for (int i = 0; i < array.length(); i++)
+			list.add(array.opt(i));
+		return list;
+	}
+
+	private static boolean contains(List<Object> list, Object value) {
+		for (int i = 0; i < list.size(); i++)
+			if (equal(list.get(i), value))
+				return true;
+		return false;
+	}
+
+	private static boolean containsAll(List<Object> list, List<Object> values) {
+		for (int i = 0; i < values.size(); i++)
+			if (!contains(list, values.get(i)))
+				return false;
+		return true;
+	}
+
+	/**
+	 * Numbers compare by value and strings alphabetically, anything else is
+	 * INCOMPARABLE.
+	 */
+	private static int compare(Object a, Object b) {
+		if (a instanceof Number && b instanceof Number)
+			return Double.compare(((Number) a).doubleValue(),
+					((Number) b).doubleValue());
+		if (a instanceof String && b instanceof String)
+			return ((String) a).compareTo((String) b);
+		return INCOMPARABLE;
+	}
+
+	/**
+	 * Deep equality of JSON values, numbers are equal if their values are.
+	 */
+	static boolean equal(Object a, Object b) {
+		if (a == b)
+			return true;
+		if (a == null || b == null)
+			return false;
+
+		if (a instanceof Number && b instanceof Number)
+			return ((Number) a).doubleValue() == ((Number) b).doubleValue();
+
+		if (a instanceof JSONObject && b instanceof JSONObject) {
+			JSONObject x = (JSONObject) a;
+			JSONObject y = (JSONObject) b;
+			if (x.length() != y.length())
+				return false;
+			Iterator<?> keys = x.keys();
+			while (keys.hasNext()) {
+				String key = (String) keys.next();
+				if (!equal(x.opt(key), y.opt(key)))
+					return false;
+			}
+			return true;
+		}
+
+		if (a instanceof JSONArray && b instanceof JSONArray) {
+			JSONArray x = (JSONArray) a;
+			JSONArray y = (JSONArray) b;
+			if (x.length() != y.length())
+				return false;
+			for (int i = 0; i < x.length(); i++)
+				if (!equal(x.opt(i), y.opt(i)))
+					return false;
+			return true;
+		}
+
+		return a.equals(b);
+	}
+}
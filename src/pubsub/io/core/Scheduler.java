@@ -0,0 +1,44 @@
+/*
+ * pubsub.io Android Library
+ * Copyright (C) 2011  Andreas Göransson
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pubsub.io.core;
+
+/**
+ * Runs the housekeeping of a PubsubClient: reconnects, resubscribes, outbox
+ * drains and heartbeat probes. Every task must run on one thread, one at a
+ * time, in the order they are due.
+ *
+ * ThreadScheduler does that on a thread of its own. On Android the
+ * connection's Handler does it, see HandlerExecutor.
+ */
+public interface Scheduler {
+
+	/**
+	 * @param task
+	 * @param delayMillis
+	 *          Time until it runs, 0 to run it as soon as possible
+	 */
+	public void schedule(Runnable task, long delayMillis);
+
+	/**
+	 * Forget every pending run of the task.
+	 *
+	 * @param task
+	 */
+	public void cancel(Runnable task);
+}
@@ -0,0 +1,251 @@
+/*
+ * pubsub.io Android Library
+ * Copyright (C) 2011  Andreas Göransson
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pubsub.io.core;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Folds overlapping subscriptions into as few subscriptions on the wire as
+ * possible. Every local subscription (a handler_callback and its filter) is
+ * attached to a wire subscription whose filter covers it; only the broadest
+ * filters are sent to the hub, and the docs they bring in are matched against
+ * the narrower local filters on the client.
+ *
+ * With {version: {$gt: 0.1}} and {version: {$gt: 0.5}} subscribed only the
+ * first one goes on the wire, and a doc with version 0.7 arrives once and is
+ * handed to both callbacks.
+ *
+ * Filters the QueryMatcher doesn't understand always get a wire subscription
+ * of their own. Thread safe.
+ */
+public class SubscriptionIndex {
+
+	/**
+	 * Receives the subscribe and unsubscribe messages the index wants sent.
+	 */
+	public interface Sender {
+		void subscribe(JSONObject filter, int wire_id);
+
+		void unsubscribe(int wire_id);
+	}
+
+	/** handler_callback to its local subscription */
+	private final Map<Integer, Local> mLocals;
+
+	/** Wire subscription id to the wire subscription */
+	private final Map<Integer, Wire> mWires;
+
+	private int mNextWireId = 1;
+
+	public SubscriptionIndex() {
+		mLocals = new HashMap<Integer, Local>();
+		mWires = new HashMap<Integer, Wire>();
+	}
+
+	/**
+	 * Add, or replace, the local subscription for handler_callback.
+	 *
+	 * @param json_filter
+	 * @param handler_callback
+	 * @param sender
+	 *          Told what to send to the hub
+	 * @throws JSONException
+	 */
+	public synchronized void subscribe(JSONObject json_filter,
+			int handler_callback, Sender sender) throws JSONException {
+		// Keep a copy, the caller is free to change json_filter afterwards
+		String filter = json_filter.toString();
+
+		Local existing = mLocals.get(handler_callback);
+		if (existing != null) {
+			if (existing.mFilterString.equals(filter))
+				return;
+			unsubscribe(handler_callback, sender);
+		}
+
+		Local local = new Local(handler_callback, new JSONObject(filter), filter);
+		mLocals.put(handler_callback, local);
+		attach(local, sender);
+	}
+
+	/**
+	 * Remove the local subscription for handler_callback.
+	 *
+	 * @param handler_callback
+	 * @param sender
+	 *          Told what to send to the hub
+	 */
+	public synchronized void unsubscribe(int handler_callback, Sender sender) {
+		Local local = mLocals.remove(handler_callback);
+		if (local == null)
+			return;
+
+		Wire wire = local.mWire;
+		wire.mMembers.remove(local);
+
+		if (wire.mOwner != local) {
+			// The wire subscription is still needed by its owner
+			return;
+		}
+
+		// The wire filter was the owner's, anything left on it may be covered by
+		// something narrower now. Attach them again before dropping the wire so
+		// there's no gap.
+		mWires.remove(wire.mId);
+		for (int i = 0; i < wire.mMembers.size(); i++)
+			attach(wire.mMembers.get(i), sender);
+		sender.unsubscribe(wire.mId);
+	}
+
+	/**
+	 * Forget everything, for when the hub has forgotten the subscriptions.
+	 */
+	public synchronized void clear() {
+		mLocals.clear();
+		mWires.clear();
+	}
+
+	/**
+	 * Find the callbacks a doc that arrived for a wire subscription belongs to.
+	 * The doc is parsed at most once, and not at all if the wire subscription
+	 * serves a single callback.
+	 *
+	 * @param wire_id
+	 *          The id the doc arrived with
+	 * @param doc
+	 *          A JSONObject or a LazyDoc
+	 * @param callbacks
+	 *          The callbacks are added to this list
+	 * @throws JSONException
+	 *           If a LazyDoc had to be parsed and wasn't valid
+	 */
+	public synchronized void route(int wire_id, Object doc,
+			List<Integer> callbacks) throws JSONException {
+		Wire wire = mWires.get(wire_id);
+		if (wire == null)
+			return;
+
+		JSONObject json = null;
+		for (int i = 0; i < wire.mMembers.size(); i++) {
+			Local local = wire.mMembers.get(i);
+
+			// The hub has already matched the owner's filter
+			if (local != wire.mOwner) {
+				if (json == null)
+					json = doc instanceof LazyDoc ? ((LazyDoc) doc).get()
+							: (JSONObject) doc;
+				if (!local.mMatcher.matches(json))
+					continue;
+			}
+			callbacks.add(local.mCallback);
+		}
+	}
+
+	/**
+	 * @param wire_id
+	 * @return true if the wire subscription is live
+	 */
+	public synchronized boolean isSubscribed(int wire_id) {
+		return mWires.containsKey(wire_id);
+	}
+
+	/**
+	 * @return Number of subscriptions on the wire
+	 */
+	public synchronized int getWireCount() {
+		return mWires.size();
+	}
+
+	/**
+	 * @return Number of local subscriptions
+	 */
+	public synchronized int getLocalCount() {
+		return mLocals.size();
+	}
+
+	/**
+	 * Attach a local subscription to a wire subscription that covers it, or
+	 * give it one of its own and move everything it covers over to it.
+	 */
+	private void attach(Local local, Sender sender) {
+		for (Wire wire : mWires.values()) {
+			if (wire.mOwner.mMatcher.covers(local.mMatcher)) {
+				wire.mMembers.add(local);
+				local.mWire = wire;
+				return;
+			}
+		}
+
+		Wire wire = new Wire(mNextWireId++, local);
+		local.mWire = wire;
+		sender.subscribe(local.mFilter, wire.mId);
+
+		List<Wire> covered = new ArrayList<Wire>();
+		for (Wire other : mWires.values())
+			if (local.mMatcher.covers(other.mOwner.mMatcher))
+				covered.add(other);
+		mWires.put(wire.mId, wire);
+
+		for (int i = 0; i < covered.size(); i++) {
+			Wire other = covered.get(i);
+			for (int j = 0; j < other.mMembers.size(); j++) {
+				Local member = other.mMembers.get(j);
+				wire.mMembers.add(member);
+				member.mWire = wire;
+			}
+			mWires.remove(other.mId);
+			sender.unsubscribe(other.mId);
+		}
+	}
+
+	private static class Local {
+		final int mCallback;
+		final JSONObject mFilter;
+		final String mFilterString;
+		final QueryMatcher mMatcher;
+		Wire mWire;
+
+		Local(int callback, JSONObject filter, String filterString) {
+			mCallback = callback;
+			mFilter = filter;
+			mFilterString = filterString;
+			mMatcher = QueryMatcher.compile(filter);
+		}
+	}
+
+	private static class Wire {
+		final int mId;
+		/** Whose filter is on the wire */
+		final Local mOwner;
+		final List<Local> mMembers;
+
+		Wire(int id, Local owner) {
+			mId = id;
+			mOwner = owner;
+			mMembers = new ArrayList<Local>();
+			mMembers.add(owner);
+		}
+	}
+}
@@ -0,0 +1,119 @@
+/*
+ * pubsub.io Android Library
+ * Copyright (C) 2011  Andreas Göransson
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pubsub.io.core;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A Scheduler with a daemon thread of its own, for running a PubsubClient
+ * without Android. One is plenty for any number of clients, see
+ * getDefault().
+ */
+public class ThreadScheduler implements Scheduler {
+
+	private static ThreadScheduler sDefault;
+
+	private final ScheduledExecutorService mExecutor;
+
+	/** Pending runs of every task, for cancel() */
+	private final Map<Runnable, List<ScheduledFuture<?>>> mPending;
+
+	/**
+	 * @return The scheduler shared by every client that wasn't given one
+	 */
+	public static synchronized ThreadScheduler getDefault() {
+		if (sDefault == null)
+			sDefault = new ThreadScheduler("PubsubScheduler");
+		return sDefault;
+	}
+
+	/**
+	 * @param name
+	 *          Name of the thread
+	 */
+	public ThreadScheduler(final String name) {
+		mExecutor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, name);
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		mPending = new HashMap<Runnable, List<ScheduledFuture<?>>>();
+	}
+
+	public void schedule(final Runnable task, long delayMillis) {
+		synchronized (mPending) {
+			// Registered before it can run, so run() always finds itself
+			final ScheduledFuture<?>[] future = new ScheduledFuture<?>[1];
+			future[0] = mExecutor.schedule(new Runnable() {
+				public void run() {
+					synchronized (mPending) {
+						forget(task, future[0]);
+					}
+					task.run();
+				}
+			}, Math.max(0, delayMillis), TimeUnit.MILLISECONDS);
+
+			List<ScheduledFuture<?>> pending = mPending.get(task);
+			if (pending == null) {
+				pending = new ArrayList<ScheduledFuture<?>>(1);
+				mPending.put(task, pending);
+			}
+			pending.add(future[0]);
+		}
+	}
+
+	public void cancel(Runnable task) {
+		synchronized (mPending) {
+			List<ScheduledFuture<?>> pending = mPending.remove(task);
+			if (pending == null)
+				return;
+			for (int i = 0; i < pending.size(); i++)
+				pending.get(i).cancel(false);
+		}
+	}
+
+	/**
+	 * Stop the thread, pending tasks are dropped.
+	 */
+	public void shutdown() {
+		mExecutor.shutdownNow();
+		synchronized (mPending) {
+			mPending.clear();
+		}
+	}
+
+	private void forget(Runnable task, ScheduledFuture<?> future) {
+		List<ScheduledFuture<?>> pending = mPending.get(task);
+		if (pending == null)
+			return;
+		pending.remove(future);
+		if (pending.isEmpty())
+			mPending.remove(task);
+	}
+}
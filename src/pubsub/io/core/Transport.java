@@ -0,0 +1,92 @@
+/*
+ * pubsub.io Android Library
+ * Copyright (C) 2011  Andreas Göransson
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pubsub.io.core;
+
+import org.json.JSONObject;
+
+/**
+ * How a PubsubClient talks to the hub: BlockingTransport with a pair of
+ * threads per connection, or NioTransport on a shared selector. Holds at most
+ * one connection at a time, and reports back through the package methods of
+ * the client (connected(), connectionFailed(), process() and so on).
+ */
+abstract class Transport {
+
+	final PubsubClient mClient;
+
+	Transport(PubsubClient client) {
+		mClient = client;
+	}
+
+	/**
+	 * Start connecting to a hub, with the client locked. Whatever was there
+	 * before has been closed.
+	 * 
+	 * @param host
+	 * @param port
+	 * @param sub
+	 *          The sub to hook up to once connected
+	 */
+	abstract void connect(String host, int port, String sub);
+
+	/**
+	 * Close the connection, or the attempt to make one, with the client locked.
+	 * Nothing is reported for a connection closed on purpose.
+	 */
+	abstract void close();
+
+	/**
+	 * Queue a message for the current connection, this never blocks.
+	 * 
+	 * @param out
+	 *          The bytes to write
+	 * @return false if we're not connected or the write queue is full
+	 */
+	abstract boolean offer(byte[] out);
+
+	/**
+	 * Queue a publish of the doc. Encoded to bytes for offer(), transports that
+	 * can encode it straight into their write buffer do so instead.
+	 * 
+	 * @param doc
+	 * @return false if we're not connected or the write queue is full
+	 */
+	boolean offerPublish(JSONObject doc) {
+		return offer(PubsubParser.encodePublish(doc));
+	}
+
+	/**
+	 * Queue a publish of the doc written by the DocWriter.
+	 * 
+	 * @param doc
+	 * @return false if we're not connected or the write queue is full
+	 * @see #offerPublish(JSONObject)
+	 */
+	boolean offerPublish(DocWriter doc) {
+		return offer(PubsubParser.encodePublish(doc));
+	}
+
+	/**
+	 * Stop or resume reading, with the client locked. Held reads stay held
+	 * across reconnects, the transport checks PubsubClient.mReadsHeld.
+	 * 
+	 * @param held
+	 */
+	abstract void holdReads(boolean held);
+}